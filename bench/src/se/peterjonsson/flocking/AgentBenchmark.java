@@ -0,0 +1,79 @@
+package se.peterjonsson.flocking;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a single {@link Agent#update(int)} call, cycling through every agent of a {@link BenchmarkWorld},
+ * visiting neighbours in swarm order and in cell order, with agents at random indices and sorted along a Hilbert
+ * curve.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AgentBenchmark {
+
+    /**
+     * Number of agents in the world.
+     */
+    @Param({ "100", "1000", "10000", "50000" })
+    public int agents;
+
+    /**
+     * Visit neighbours in cell order instead of swarm order.
+     */
+    @Param({ "false", "true" })
+    public boolean cellOrder;
+
+    /**
+     * Sort the agents along a Hilbert curve instead of leaving them at random indices.
+     */
+    @Param({ "false", "true" })
+    public boolean sorted;
+
+    /**
+     * World being updated.
+     */
+    private BenchmarkWorld world;
+
+    /**
+     * Rules being measured.
+     */
+    private Agent rules;
+
+    /**
+     * Index of the next agent to update.
+     */
+    private int index;
+
+    /**
+     * Creates the world.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        world = new BenchmarkWorld(agents, FlockingSimulation.DEFAULT_SEED);
+        if (sorted) {
+            world.sortAgents();
+        }
+        rules = world.createAgentRules(cellOrder);
+        index = 0;
+    }
+
+    /**
+     * Updates the next agent.
+     */
+    @Benchmark
+    public void update() {
+        rules.update(index);
+
+        if (++index == world.agents.size()) {
+            index = 0;
+        }
+    }
+}
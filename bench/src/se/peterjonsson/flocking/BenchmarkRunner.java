@@ -0,0 +1,42 @@
+package se.peterjonsson.flocking;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs all benchmarks with the allocation profiler ({@code -prof gc}) enabled,
+ * so that both time and allocation rate per operation are reported.
+ *
+ * Any regular JMH arguments can be given, for example {@code -p agents=1000} or {@code AgentBenchmark}
+ * to only run some of the benchmarks.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Called on application start.
+     * @param args JMH arguments.
+     */
+    public static void main(String[] args) {
+        try {
+            CommandLineOptions commandLine = new CommandLineOptions(args);
+            OptionsBuilder builder = new OptionsBuilder();
+            builder.parent(commandLine);
+            if (commandLine.getIncludes().isEmpty()) {
+                builder.include("se\\.peterjonsson\\.flocking\\..*Benchmark");
+            }
+
+            Options options = builder.addProfiler(GCProfiler.class).build();
+            new Runner(options).run();
+        } catch (CommandLineOptionException | RunnerException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package se.peterjonsson.flocking;
+
+import java.util.Random;
+
+/**
+ * Randomly placed agents and predators that the rule benchmarks operate on.
+ * Both swarms are double-buffered, so updating them never changes the state that the next update reads.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class BenchmarkWorld {
+
+    /**
+     * Number of predators, the same as in a simulation once they have been released.
+     */
+    static final int PREDATORS = 4;
+
+    /**
+     * Settings of the world.
+     */
+    final SimulationConfig config;
+
+    /**
+     * State of all agents.
+     */
+    final Swarm agents;
+
+    /**
+     * State of all predators.
+     */
+    final Swarm predators = new Swarm(PREDATORS);
+
+    /**
+     * Spatial index of all obstacles, which is empty.
+     */
+    final ObstacleIndex obstacles;
+
+    /**
+     * Spatial index of all agents.
+     */
+    final SpatialGrid grid;
+
+    /**
+     * Creates a new world.
+     * Every predator is placed next to an agent, so that predator benchmarks include kills.
+     * @param numberOfAgents Number of agents to place.
+     * @param seed Seed used for placing agents.
+     */
+    BenchmarkWorld(int numberOfAgents, long seed) {
+        config = new SimulationConfig(numberOfAgents).withSeed(seed);
+        grid = new SpatialGrid(config.size, Agent.NEIGHBOUR_DISTANCE, Agent.SPEED);
+        obstacles = new ObstacleIndex(config.size, Agent.OBSTACLE_AVOIDANCE_DISTANCE);
+
+        Random random = new Random(seed);
+        int size = config.size;
+
+        agents = new Swarm(numberOfAgents);
+        for (int i = 0; i < numberOfAgents; i++) {
+            double angle = random.nextDouble() * 2 * Math.PI;
+            agents.add(random.nextInt(size), random.nextInt(size), Math.cos(angle), Math.sin(angle));
+        }
+
+        for (int i = 0; i < PREDATORS && i < numberOfAgents; i++) {
+            predators.add(agents.x[i] + 1, agents.y[i] + 1, -agents.dx[i], -agents.dy[i]);
+        }
+
+        agents.setDoubleBuffered(true);
+        predators.setDoubleBuffered(true);
+        grid.rebuild(agents);
+    }
+
+    /**
+     * Sorts the agents along a Hilbert curve, see {@link HilbertOrder}, so that neighbours are close in memory
+     * instead of at random indices.
+     */
+    void sortAgents() {
+        agents.reorder(new HilbertOrder(grid).sort(agents));
+        grid.rebuild(agents);
+    }
+
+    /**
+     * Creates the rules for the agents of this world.
+     * @return Agent rules.
+     */
+    Agent createAgentRules() {
+        return createAgentRules(false);
+    }
+
+    /**
+     * Creates the rules for the agents of this world.
+     * @param cellOrder Visit neighbours cell by cell, see {@link Agent#setCellOrder(boolean)}.
+     * @return Agent rules.
+     */
+    Agent createAgentRules(boolean cellOrder) {
+        Agent rules = new Agent(agents, obstacles, new ObstacleField(), predators, grid, config);
+        rules.setCellOrder(cellOrder);
+        return rules;
+    }
+
+    /**
+     * Creates the rules for the predators of this world.
+     * @return Predator rules.
+     */
+    Predator createPredatorRules() {
+        return new Predator(agents, predators, grid, config);
+    }
+}
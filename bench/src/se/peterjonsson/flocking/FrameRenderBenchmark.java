@@ -0,0 +1,78 @@
+package se.peterjonsson.flocking;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rendering a frame with {@link FrameRenderer#toImage(SimulationFrame)}.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameRenderBenchmark {
+
+    /**
+     * Number of agents in the frame.
+     */
+    @Param({ "100", "1000", "10000", "50000" })
+    public int agents;
+
+    /**
+     * Frame being rendered.
+     */
+    private SimulationFrame frame;
+
+    /**
+     * Creates a frame with randomly placed agents and predators.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        int size = FlockingSimulation.DEFAULT_SIZE;
+        Random random = new Random(FlockingSimulation.DEFAULT_SEED);
+
+        frame = new SimulationFrame(0, size, randomSnapshot(agents, size, random), Collections.emptyList(),
+                randomSnapshot(BenchmarkWorld.PREDATORS, size, random));
+    }
+
+    /**
+     * Renders the frame.
+     * @return Rendered image.
+     */
+    @Benchmark
+    public javafx.scene.image.Image getImage() {
+        return FrameRenderer.toImage(frame);
+    }
+
+    /**
+     * Creates a snapshot of randomly placed and rotated entities.
+     * @param count Number of entities.
+     * @param size Horizontal and vertical size of the area to place entities in.
+     * @param random Random number generator to use.
+     * @return Created snapshot.
+     */
+    private static SwarmSnapshot randomSnapshot(int count, int size, Random random) {
+        float[] x = new float[count];
+        float[] y = new float[count];
+        double[] dx = new double[count];
+        double[] dy = new double[count];
+        int[] id = new int[count];
+        for (int i = 0; i < count; i++) {
+            double angle = random.nextDouble() * 2 * Math.PI;
+            x[i] = random.nextInt(size);
+            y[i] = random.nextInt(size);
+            dx[i] = Math.cos(angle);
+            dy[i] = Math.sin(angle);
+            id[i] = i;
+        }
+
+        return new SwarmSnapshot(count, x, y, dx, dy, id);
+    }
+}
@@ -0,0 +1,65 @@
+package se.peterjonsson.flocking;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Predator#update(int)} followed by {@link Predator#killNearbyAgents(int)} for every predator
+ * of a {@link BenchmarkWorld}. Killed agents are revived afterwards, so every invocation does the same work.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PredatorBenchmark {
+
+    /**
+     * Number of agents in the world.
+     */
+    @Param({ "100", "1000", "10000", "50000" })
+    public int agents;
+
+    /**
+     * World being updated.
+     */
+    private BenchmarkWorld world;
+
+    /**
+     * Rules being measured.
+     */
+    private Predator rules;
+
+    /**
+     * Creates the world.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        world = new BenchmarkWorld(agents, FlockingSimulation.DEFAULT_SEED);
+        rules = world.createPredatorRules();
+    }
+
+    /**
+     * Moves every predator and lets it kill the closest agent within reach.
+     * @return Number of killed agents.
+     */
+    @Benchmark
+    public int updateAndKill() {
+        for (int predator = 0; predator < world.predators.size(); predator++) {
+            rules.update(predator);
+        }
+
+        for (int predator = 0; predator < world.predators.size(); predator++) {
+            rules.killNearbyAgents(predator);
+        }
+
+        int kills = world.agents.dead.cardinality();
+        world.agents.dead.clear();
+
+        return kills;
+    }
+}
@@ -0,0 +1,55 @@
+package se.peterjonsson.flocking;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a full simulation step, {@link FlockingSimulation#update(int)}, with predators released.
+ * The simulation is recreated for every iteration so that each iteration starts from the same state.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimulationBenchmark {
+
+    /**
+     * Number of agents to simulate.
+     */
+    @Param({ "100", "1000", "10000", "50000" })
+    public int agents;
+
+    /**
+     * Simulation being updated.
+     */
+    private FlockingSimulation simulation;
+
+    /**
+     * Number of the next step to simulate.
+     */
+    private int step;
+
+    /**
+     * Creates a new simulation and releases the predators.
+     */
+    @Setup(Level.Iteration)
+    public void setUp() {
+        SimulationConfig config = new SimulationConfig(agents);
+        simulation = new FlockingSimulation(config, null);
+        simulation.update(config.predatorReleaseStep); // Releases the predators
+        step = config.predatorReleaseStep + 1;
+    }
+
+    /**
+     * Steps the simulation forward once.
+     */
+    @Benchmark
+    public void update() {
+        simulation.update(step++);
+    }
+}
@@ -0,0 +1,133 @@
+package se.peterjonsson.flocking;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures rendering a full-resolution frame with {@link TileRasterizer}, compared to Java2D.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileRasterizerBenchmark {
+
+    /**
+     * Number of agents in the frame.
+     */
+    @Param({ "100", "1000", "10000", "50000" })
+    public int agents;
+
+    /**
+     * Number of threads rasterising tiles.
+     */
+    @Param({ "1", "4" })
+    public int threads;
+
+    /**
+     * Frame being rendered.
+     */
+    private SimulationFrame frame;
+
+    /**
+     * Pool rasterising tiles.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Rasteriser being measured.
+     */
+    private TileRasterizer rasterizer;
+
+    /**
+     * Pixel buffer rendered into by the rasteriser.
+     */
+    private int[] pixels;
+
+    /**
+     * Image rendered into by Java2D.
+     */
+    private BufferedImage image;
+
+    /**
+     * Creates a frame with randomly placed agents and predators.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        int size = FlockingSimulation.DEFAULT_SIZE;
+        int imageSize = size * SimulationFrame.IMAGE_SCALE;
+        Random random = new Random(FlockingSimulation.DEFAULT_SEED);
+
+        frame = new SimulationFrame(0, size, randomSnapshot(agents, imageSize, random), Collections.emptyList(),
+                randomSnapshot(BenchmarkWorld.PREDATORS, imageSize, random));
+
+        pool = new ForkJoinPool(threads);
+        rasterizer = new TileRasterizer(size, Collections.emptyList(), pool);
+        pixels = new int[imageSize * imageSize];
+        image = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Stops the pool rasterising tiles.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Renders the frame with the tile rasteriser.
+     * @return Rendered pixels.
+     */
+    @Benchmark
+    public int[] rasterize() {
+        return rasterizer.render(frame, pixels);
+    }
+
+    /**
+     * Renders the frame with Java2D, at the same resolution.
+     * @return Rendered image.
+     */
+    @Benchmark
+    public BufferedImage java2d() {
+        Graphics2D graphics = image.createGraphics();
+        frame.render(graphics, image.getWidth(), image.getHeight());
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Creates a snapshot of randomly placed and rotated entities.
+     * @param count Number of entities.
+     * @param size Horizontal and vertical size of the area to place entities in.
+     * @param random Random number generator to use.
+     * @return Created snapshot.
+     */
+    private static SwarmSnapshot randomSnapshot(int count, int size, Random random) {
+        float[] x = new float[count];
+        float[] y = new float[count];
+        double[] dx = new double[count];
+        double[] dy = new double[count];
+        int[] id = new int[count];
+        for (int i = 0; i < count; i++) {
+            double angle = random.nextDouble() * 2 * Math.PI;
+            x[i] = random.nextInt(size);
+            y[i] = random.nextInt(size);
+            dx[i] = Math.cos(angle);
+            dy[i] = Math.sin(angle);
+            id[i] = i;
+        }
+
+        return new SwarmSnapshot(count, x, y, dx, dy, id);
+    }
+}
@@ -1,24 +1,21 @@
 package se.peterjonsson.flocking;
 
-import math.geom2d.Vector2D;
-
 import java.awt.*;
 import java.awt.geom.AffineTransform;
-import java.util.List;
 
 /**
- * Represents a simple agent for a flocking simulation.
+ * Represents the simple agents of a flocking simulation.
+ * The state of every agent is stored in a shared {@link Swarm}, and this class applies the agent rules to an
+ * agent by its index. The update allocates no objects.
  *
  * @author Peter Jonsson <95jonpet@gmail.com>
  */
 class Agent {
 
-    private static final boolean FLOCKING = FlockingSimulation.FLOCKING_PREY;
-
     /**
      * Distance the agent moves in one step/update.
      */
-    private static final int SPEED = 5;
+    static final int SPEED = 5;
 
     /**
      * Maximum distance to apply alignment force to.
@@ -41,302 +38,384 @@ class Agent {
     private static final int MAX_SEPARATION_DISTANCE = 16;
 
     /**
-     * List of all agents in the simulation.
-     * This should include the current agent.
+     * Maximum distance at which other agents affect the agent.
      */
-    private final List<Agent> agents;
+    static final int NEIGHBOUR_DISTANCE = Math.max(MAX_SEPARATION_DISTANCE, Math.max(MAX_ALIGNMENT_DISTANCE, MAX_COHESION_DISTANCE));
 
     /**
-     * List of all obstacles that should be avoided.
+     * Scaling of the rotated obstacle normal that agents steer along, which is also the distance at which
+     * obstacles are avoided.
      */
-    private final List<Obstacle> obstacles;
+    static final double OBSTACLE_AVOIDANCE_DISTANCE = Obstacle.RADIUS * 1.5;
 
     /**
-     * List of all predators that should be avoided.
+     * Cosine of the rotation applied to obstacle normals.
      */
-    private final List<Predator> predators;
+    private static final double OBSTACLE_ROTATION_COS = Math.cos(-Math.PI / 2);
 
     /**
-     * Current agent position.
+     * Sine of the rotation applied to obstacle normals.
      */
-    private Vector2D position;
+    private static final double OBSTACLE_ROTATION_SIN = Math.sin(-Math.PI / 2);
 
     /**
-     * Normalized vector of the last force applied to the agent.
-     * Use {@link Vector2D#angle()} to find the actual angle of this force.
+     * State of all agents in the simulation.
      */
-    private Vector2D direction;
+    private final Swarm agents;
 
     /**
-     * Gets if the agent is dead.
+     * Spatial index of all obstacles that should be avoided.
      */
-    private boolean dead;
+    private final ObstacleIndex obstacles;
 
     /**
-     * The color to use when drawing the agent.
+     * Precomputed avoidance field of all obstacles, which is used instead of {@link #obstacles} once built.
      */
-    private static Color color = Color.BLUE;
+    private final ObstacleField obstacleField;
 
     /**
-     * The x points used for rendering the agent.
+     * Reusable result of {@link #obstacleVector(ObstacleIndex, double, double, double[])}.
      */
-    private static final int[] xPoints = new int[] { 0, 5, 10};
+    private final double[] obstacleVector = new double[2];
 
     /**
-     * The y points used for rendering the agent.
+     * State of all predators that should be avoided.
      */
-    private static final int[] yPoints = new int[] { 15, 0, 15 };
+    private final Swarm predators;
 
     /**
-     * Creates a new agent.
-     * @param x Horizontal position.
-     * @param y Vertical position.
-     * @param agents List of all agents.
-     * @param obstacles List of all obstacles.
-     * @param predators List of all predators.
+     * Search over the spatial index of all agents, used for finding nearby agents.
      */
-    Agent(int x, int y, List<Agent> agents, List<Obstacle> obstacles, List<Predator> predators) {
-        this.agents = agents;
-        this.obstacles = obstacles;
-        this.predators = predators;
-
-        position = new Vector2D(x, y);
-        direction = new Vector2D(FlockingSimulation.SIZE / 2 - x, FlockingSimulation.SIZE / 2 - y).normalize();
-    }
+    private final GridSearch search;
 
     /**
-     * Updates the agent by stepping forward one step of the simulation.
+     * Distance from the edge to the middle of the simulation.
      */
-    void update() {
-        Vector2D resultant = boidsVector(); // General boids vector
+    private final double center;
 
-        // Avoid obstacles
-        Vector2D obstacleVector = obstacleVector();
-        if (obstacleVector.getX() != 0 && obstacleVector.getY() != 0)
-            resultant = resultant.plus(obstacleVector.normalize().times(3));
+    /**
+     * Indicates if agents flock together or not.
+     */
+    private final boolean flocking;
 
-        // Avoid predators
-        Vector2D predatorVector = predatorVector();
-        if (predatorVector.getX() != 0 && predatorVector.getY() != 0)
-            resultant = resultant.plus(predatorVector.normalize().times(3));
+    /**
+     * Indicates if nearby agents are visited in the order of the grid cells instead of the order of the swarm.
+     */
+    private boolean cellOrder = false;
 
-        resultant = resultant.normalize().times(SPEED); // Normalize
-        position = position.plus(resultant);
-        direction = resultant.normalize();
-    }
+    /**
+     * Verlet lists of the nearby agents, or null to search the grid for them.
+     */
+    private NeighbourList neighbourList = null;
 
     /**
-     * Renders an agent onto a graphics object.
-     * @param position Position of the agent.
-     * @param graphics Canvas to render onto.
+     * Horizontal component of the force applied to the agent being updated.
      */
-    static void render(Position position, Graphics2D graphics) {
-        AffineTransform at = new AffineTransform();
-        Dimension size = getTriangleSize();
+    private double forceX;
 
-        int x = (int) Math.round(position.x);
-        int y = (int) Math.round(position.y);
-        double angle = position.angle + Math.PI / 2;
+    /**
+     * Vertical component of the force applied to the agent being updated.
+     */
+    private double forceY;
 
-        at.translate(x - size.width / 2, y - size.height / 2);
-        at.rotate(angle, size.width / 2, size.height / 2);
+    /**
+     * The color to use when drawing the agent.
+     */
+    static Color color = Color.BLUE;
 
-        graphics.setTransform(at);
-        graphics.setColor(color);
-        graphics.fillPolygon(xPoints, yPoints, 3);
+    /**
+     * The x points used for rendering the agent.
+     */
+    static final int[] xPoints = new int[] { 0, 5, 10};
 
-        graphics.setTransform(new AffineTransform());
-    }
+    /**
+     * The y points used for rendering the agent.
+     */
+    static final int[] yPoints = new int[] { 15, 0, 15 };
 
     /**
-     * Gets the horizontal position of the agent.
-     * @return Horizontal coordinate.
+     * Creates the rules for a group of agents.
+     * Each thread updating agents needs its own instance.
+     * @param agents State of all agents.
+     * @param obstacles Spatial index of all obstacles.
+     * @param obstacleField Avoidance field of all obstacles, used if it has been built.
+     * @param predators State of all predators.
+     * @param grid Spatial index of all agents.
+     * @param config Settings of the simulation.
      */
-    double getX() {
-        return position.x();
+    Agent(Swarm agents, ObstacleIndex obstacles, ObstacleField obstacleField, Swarm predators, SpatialGrid grid,
+          SimulationConfig config) {
+        this.agents = agents;
+        this.obstacles = obstacles;
+        this.obstacleField = obstacleField;
+        this.predators = predators;
+        search = new GridSearch(grid);
+        center = config.size / 2;
+        flocking = config.flockingPrey;
     }
 
     /**
-     * Gets the vertical position of the agent.
-     * @return Vertical coordinate.
+     * Selects the order in which the boids sums are accumulated over the nearby agents.
+     * @param cellOrder Visit the agents cell by cell, see {@link GridSearch#queryUnordered(double, double, double)},
+     *                  or false to visit them in swarm order, which gives the reference results.
      */
-    double getY() {
-        return position.y();
+    void setCellOrder(boolean cellOrder) {
+        this.cellOrder = cellOrder;
     }
 
     /**
-     * Gets the agent's angle in radians.
-     * @return Angle in radians.
+     * Sets Verlet lists that nearby agents are read from instead of searching the grid.
+     * The lists are in swarm order, so {@link #setCellOrder(boolean)} has no effect while they are used.
+     * @param neighbourList Lists kept up to date by the simulation, or null to search the grid.
      */
-    double getAngle() {
-        return direction.angle();
+    void setNeighbourList(NeighbourList neighbourList) {
+        this.neighbourList = neighbourList;
     }
 
     /**
-     * Gets a normalized vector pointing toward the middle of the flock.
-     * @return Normalized vector toward flock center.
+     * Updates an agent by stepping forward one step of the simulation.
+     * The new state is written to the {@code next} arrays of the agent swarm.
+     * @param index Index of the agent.
      */
-    private Vector2D cohesionVector() {
-        Vector2D cohesion = new Vector2D();
+    void update(int index) {
+        applyBoidsForce(index); // General boids vector
+        applyObstacleForce(index); // Avoid obstacles
+        applyPredatorForce(index); // Avoid predators
 
-        for (Agent agent : agents) {
-            double distance = distanceToAgent(agent);
-            if (agent != this && distance >= MIN_COHESION_DISTANCE && distance <= MAX_COHESION_DISTANCE) {
-                cohesion = cohesion.plus(new Vector2D(agent.getX() - getX(), agent.getY() - getY()));
-            }
-        }
+        double length = Math.hypot(forceX, forceY);
+        double stepX = forceX / length * SPEED;
+        double stepY = forceY / length * SPEED;
 
-        if (cohesion.x() != 0 && cohesion.y() != 0) {
-            cohesion = cohesion.normalize();
-        }
+        agents.nextX[index] = agents.x[index] + stepX;
+        agents.nextY[index] = agents.y[index] + stepY;
 
-        return cohesion;
+        double stepLength = Math.hypot(stepX, stepY);
+        agents.nextDx[index] = stepX / stepLength;
+        agents.nextDy[index] = stepY / stepLength;
     }
 
     /**
-     * Gets a normalized vector representing the general direction of all nearby agents.
-     * @return Normalized vector representing general agent direction.
+     * Renders an agent onto a graphics object.
+     * @param x Horizontal position of the agent.
+     * @param y Vertical position of the agent.
+     * @param angle Angle of the agent in radians.
+     * @param graphics Canvas to render onto.
      */
-    private Vector2D alignmentVector() {
-        Vector2D generalDirection = new Vector2D();
+    static void render(double x, double y, double angle, Graphics2D graphics) {
+        AffineTransform at = new AffineTransform();
+        Dimension size = getTriangleSize();
 
-        for (Agent agent : agents) {
-            if (agent != this && distanceToAgent(agent) <= MAX_ALIGNMENT_DISTANCE) {
-                generalDirection = generalDirection.plus(agent.direction);
-            }
-        }
+        int pixelX = (int) Math.round(x);
+        int pixelY = (int) Math.round(y);
+        double rotation = angle + Math.PI / 2;
+
+        at.translate(pixelX - size.width / 2, pixelY - size.height / 2);
+        at.rotate(rotation, size.width / 2, size.height / 2);
+
+        // Applied on top of any existing transform, so that the canvas can be scaled
+        AffineTransform transform = graphics.getTransform();
+        graphics.transform(at);
+        graphics.setColor(color);
+        graphics.fillPolygon(xPoints, yPoints, 3);
 
-        return generalDirection.normalize();
+        graphics.setTransform(transform);
     }
 
     /**
-     * Gets a normalized vector pointing away from the the closest agent.
-     * If there is no agent in close proximity, a zero-vector will be returned instead.
-     * @return Normalized vector pointing away from the closest agent.
+     * Sets the force to the boids vector created by the three rules:
+     *  1. Separation - a normalized vector pointing away from agents in close proximity.
+     *  2. Alignment - a normalized vector representing the general direction of nearby agents.
+     *  3. Cohesion - a normalized vector pointing toward the middle of the flock.
+     * All three rules are accumulated in a single pass over the nearby agents, comparing squared distances.
+     * The force is not normalized.
+     * @param index Index of the agent.
      */
-    private Vector2D separationVector() {
-        Vector2D separation = new Vector2D(0, 0);
+    private void applyBoidsForce(int index) {
+        final double x = agents.x[index];
+        final double y = agents.y[index];
+
+        double separationX = 0;
+        double separationY = 0;
+
+        // Alignment and cohesion start from new Vector2D(), which is (1, 0)
+        double alignmentX = 1;
+        double alignmentY = 0;
+        double cohesionX = 1;
+        double cohesionY = 0;
+
+        final int[] candidates;
+        final int first;
+        final int last;
+        if (neighbourList != null) {
+            candidates = neighbourList.items;
+            first = neighbourList.start[index];
+            last = neighbourList.start[index + 1];
+        } else {
+            // In cell order the sums round differently, but the candidates do not have to be merged into swarm order
+            IntList neighbours = cellOrder
+                    ? search.queryUnordered(x, y, NEIGHBOUR_DISTANCE) : search.query(x, y, NEIGHBOUR_DISTANCE);
+            candidates = neighbours.array();
+            first = 0;
+            last = neighbours.size();
+        }
+
+        for (int i = first; i < last; i++) {
+            int other = candidates[i];
+            if (other == index) {
+                continue;
+            }
+
+            double dx = agents.x[other] - x;
+            double dy = agents.y[other] - y;
+            double distanceSquared = dx * dx + dy * dy;
+
+            if (distanceSquared <= MAX_SEPARATION_DISTANCE * MAX_SEPARATION_DISTANCE) {
+                separationX -= dx;
+                separationY -= dy;
+            }
+
+            if (distanceSquared <= MAX_ALIGNMENT_DISTANCE * MAX_ALIGNMENT_DISTANCE) {
+                alignmentX += agents.dx[other];
+                alignmentY += agents.dy[other];
+            }
 
-        for (Agent agent : agents) {
-            if (agent != this && distanceToAgent(agent) <= MAX_SEPARATION_DISTANCE) {
-                separation = separation.plus(new Vector2D(getX() - agent.getX(), getY() - agent.getY()));
+            if (distanceSquared >= MIN_COHESION_DISTANCE * MIN_COHESION_DISTANCE
+                    && distanceSquared <= MAX_COHESION_DISTANCE * MAX_COHESION_DISTANCE) {
+                cohesionX += dx;
+                cohesionY += dy;
             }
         }
 
-        if (separation.x() != 0 && separation.y() != 0) {
-            separation = separation.normalize();
+        if (separationX != 0 && separationY != 0) {
+            double length = Math.hypot(separationX, separationY);
+            separationX /= length;
+            separationY /= length;
         }
 
-        return separation;
-    }
+        forceX = agents.dx[index] + separationX * 3;
+        forceY = agents.dy[index] + separationY * 3;
 
-    /**
-     * Gets a vector for avoiding obstacles.
-     * @return Vector pointing away from nearby obstacles.
-     */
-    private Vector2D obstacleVector() {
-        Vector2D vector = new Vector2D(0, 0);
-        for (Obstacle obstacle : obstacles) {
-            if (distanceToPoint(obstacle.x, obstacle.y) <= Obstacle.RADIUS * 1.5) {
-                Vector2D v = new Vector2D(getX() - obstacle.x, getY() - obstacle.y)
-                        .normalize()
-                        .rotate(-Math.PI / 2)
-                        .times(Obstacle.RADIUS * 1.5);
+        if (flocking) {
+            double alignmentLength = Math.hypot(alignmentX, alignmentY);
+            forceX += alignmentX / alignmentLength;
+            forceY += alignmentY / alignmentLength;
 
-                vector = vector.plus(new Vector2D(v.getX() - getX(), v.getY() - getY()));
-                // TODO Aim for point along the normal vector
+            if (cohesionX != 0 && cohesionY != 0) {
+                double cohesionLength = Math.hypot(cohesionX, cohesionY);
+                cohesionX /= cohesionLength;
+                cohesionY /= cohesionLength;
             }
+
+            forceX += cohesionX;
+            forceY += cohesionY;
         }
 
-        return vector;
+        applyRestraintForce(x, y);
     }
 
     /**
-     * Gets a vector for avoiding predators.
-     * @return Vector pointing away from nearby predators.
+     * Adds a force pulling the agent back toward the middle once it leaves the simulation area.
+     * @param x Horizontal position of the agent.
+     * @param y Vertical position of the agent.
      */
-    private Vector2D predatorVector() {
-        Vector2D vector = new Vector2D(0, 0);
-        for (Predator predator : predators) {
-            if (distanceToPoint(predator.getX(), predator.getY()) <= MAX_ALIGNMENT_DISTANCE) {
-                vector = vector.plus(new Vector2D(getX() - predator.getX(), getY() - predator.getY()));
-            }
+    private void applyRestraintForce(double x, double y) {
+        double distance = Math.sqrt((x - center) * (x - center) + (y - center) * (y - center));
+        if (distance >= center) {
+            double restraintForce = (distance / center) - 1;
+            double toCenterX = center - x;
+            double toCenterY = center - y;
+            double length = Math.hypot(toCenterX, toCenterY);
+            forceX += toCenterX / length * restraintForce;
+            forceY += toCenterY / length * restraintForce;
         }
-
-        return vector;
     }
 
     /**
-     * Gets the boids vector created by the three rules:
-     *  1. Separation
-     *  2. Alignment
-     *  3. Cohesion
-     * The vector is not normalized.
-     * @return Boids vector.
+     * Adds a force for avoiding obstacles.
+     * @param index Index of the agent.
      */
-    private Vector2D boidsVector() {
-        Vector2D resultant = direction;
-
-        resultant = resultant.plus(separationVector().times(3));
-
-        if (FLOCKING) {
-            resultant = resultant.plus(alignmentVector());
-            resultant = resultant.plus(cohesionVector());
+    private void applyObstacleForce(int index) {
+        if (obstacleField.isBuilt()) {
+            obstacleField.sample(agents.x[index], agents.y[index], obstacleVector);
+        } else {
+            obstacleVector(obstacles, agents.x[index], agents.y[index], obstacleVector);
         }
 
-        double distance = distanceToPoint(FlockingSimulation.SIZE / 2, FlockingSimulation.SIZE / 2);
-        if (distance >= FlockingSimulation.SIZE / 2) {
-            double restraintForce = (distance / (FlockingSimulation.SIZE / 2)) - 1;
-            Vector2D restraintVector = new Vector2D(
-                    FlockingSimulation.SIZE / 2 - getX(),
-                    FlockingSimulation.SIZE / 2 - getY()
-            ).normalize().times(restraintForce);
-            resultant = resultant.plus(restraintVector);
+        double vectorX = obstacleVector[0];
+        double vectorY = obstacleVector[1];
+        if (vectorX != 0 && vectorY != 0) {
+            double length = Math.hypot(vectorX, vectorY);
+            forceX += vectorX / length * 3;
+            forceY += vectorY / length * 3;
         }
-
-        return resultant;
     }
 
     /**
-     * Gets the distance to another {@link Agent}.
-     * @param agent Other agent.
-     * @return Distance to the specified agent.
+     * Computes the vector that an agent steers along to avoid the obstacles near it.
+     * @param obstacles Spatial index of all obstacles.
+     * @param x Horizontal position of the agent.
+     * @param y Vertical position of the agent.
+     * @param vector Array receiving the horizontal and vertical component, which are 0 if no obstacle is near.
      */
-    private double distanceToAgent(Agent agent) {
-        return distanceToPoint(agent.getX(), agent.getY());
-    }
+    static void obstacleVector(ObstacleIndex obstacles, double x, double y, double[] vector) {
+        // The cell lists every obstacle within the avoidance distance, in the order of the obstacle list
+        int cell = obstacles.cell(x, y);
+        double vectorX = 0;
+        double vectorY = 0;
+        for (int i = obstacles.cellStart[cell]; i < obstacles.cellStart[cell + 1]; i++) {
+            int obstacle = obstacles.items[i];
+            double dx = x - obstacles.x[obstacle];
+            double dy = y - obstacles.y[obstacle];
+            double distanceSquared = dx * dx + dy * dy;
+            // There is no normal at the center of an obstacle
+            if (distanceSquared <= OBSTACLE_AVOIDANCE_DISTANCE * OBSTACLE_AVOIDANCE_DISTANCE && distanceSquared > 0) {
+                double length = Math.hypot(dx, dy);
+                double normalX = dx / length;
+                double normalY = dy / length;
+                double vX = (normalX * OBSTACLE_ROTATION_COS - normalY * OBSTACLE_ROTATION_SIN) * OBSTACLE_AVOIDANCE_DISTANCE;
+                double vY = (normalX * OBSTACLE_ROTATION_SIN + normalY * OBSTACLE_ROTATION_COS) * OBSTACLE_AVOIDANCE_DISTANCE;
+
+                vectorX += vX - x;
+                vectorY += vY - y;
+                // TODO Aim for point along the normal vector
+            }
+        }
 
-    /**
-     * Gets the distance to a point.
-     * @param x Horizontal coordinate.
-     * @param y Vertical coordinate.
-     * @return Distance to the specified point.
-     */
-    private double distanceToPoint(final double x, final double y) {
-        return Math.sqrt(Math.pow(getX() - x, 2) + Math.pow(getY() - y, 2));
+        vector[0] = vectorX;
+        vector[1] = vectorY;
     }
 
     /**
-     * Kills the agent.
-     * This removes it from the shared list of agents.
+     * Adds a force for avoiding predators.
+     * @param index Index of the agent.
      */
-    void kill() {
-        dead = true;
-    }
+    private void applyPredatorForce(int index) {
+        final double x = agents.x[index];
+        final double y = agents.y[index];
+
+        double vectorX = 0;
+        double vectorY = 0;
+        for (int i = 0; i < predators.size(); i++) {
+            double dx = x - predators.x[i];
+            double dy = y - predators.y[i];
+            if (dx * dx + dy * dy <= MAX_ALIGNMENT_DISTANCE * MAX_ALIGNMENT_DISTANCE) {
+                vectorX += dx;
+                vectorY += dy;
+            }
+        }
 
-    /**
-     * Gets if the agent is dead or not.
-     * @return Agent is dead.
-     */
-    boolean isDead() {
-        return dead;
+        if (vectorX != 0 && vectorY != 0) {
+            double length = Math.hypot(vectorX, vectorY);
+            forceX += vectorX / length * 3;
+            forceY += vectorY / length * 3;
+        }
     }
 
     /**
      * Gets the size of the triangle used to render the agent.
      * @return Dimensions for rendering a triangle.
      */
-    private static Dimension getTriangleSize() {
+    static Dimension getTriangleSize() {
         int maxX = 0;
         int maxY = 0;
 
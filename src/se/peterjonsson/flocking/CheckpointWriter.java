@@ -0,0 +1,178 @@
+package se.peterjonsson.flocking;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes checkpoints of a running simulation on a background thread, see {@link FlockingSimulation#resume(Path)}.
+ *
+ * Each checkpoint is first written to a temporary file, which is forced to the disk and then renamed over the
+ * previous checkpoint. A checkpoint file is therefore always complete, even if the simulation is killed while a
+ * checkpoint is being written. If a checkpoint is still being written when the next one is taken, the new one is
+ * skipped, so checkpoints never pile up in memory.
+ *
+ * All values are big-endian. The file consists of a magic number, the format version and the length of the
+ * metrics file at the checkpoint, followed by the state written by the simulation.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class CheckpointWriter implements Closeable {
+
+    /**
+     * Magic number identifying a checkpoint file.
+     */
+    static final int MAGIC = 0x464c4350;
+
+    /**
+     * Current format version.
+     */
+    static final int VERSION = 5;
+
+    /**
+     * Path of the checkpoint file.
+     */
+    private final Path path;
+
+    /**
+     * Path of the file that a checkpoint is written to before it replaces the checkpoint file.
+     */
+    private final Path temporaryPath;
+
+    /**
+     * Thread writing the checkpoints.
+     */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    /**
+     * Checkpoint being written, or null if no checkpoint has been taken.
+     */
+    private Future<?> pending = null;
+
+    /**
+     * First failure of the writer thread, or null if all checkpoints have been written.
+     */
+    private volatile IOException failure = null;
+
+    /**
+     * Creates a new writer.
+     * @param path Path of the checkpoint file.
+     */
+    CheckpointWriter(Path path) {
+        this.path = path;
+        temporaryPath = path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    /**
+     * Writes a checkpoint in the background, unless the previous checkpoint is still being written.
+     * @param state State written by the simulation.
+     * @param metricsPosition Length of the metrics file at the checkpoint, or null if no metrics are written.
+     * @return The checkpoint will be written.
+     */
+    boolean write(final byte[] state, final Future<Long> metricsPosition) {
+        if (pending != null && !pending.isDone()) {
+            return false;
+        }
+
+        pending = writer.submit(() -> {
+            try {
+                writeFile(state, metricsPosition != null ? metricsPosition.get() : -1);
+            } catch (IOException e) {
+                fail(e);
+            } catch (ExecutionException e) {
+                fail(new IOException("Metrics could not be written", e.getCause()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Waits for the last checkpoint to be written.
+     * @throws IOException Any checkpoint could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a checkpoint to be written", e);
+        }
+
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("Checkpoint could not be written: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Opens a checkpoint file for reading.
+     * @param path Path of the checkpoint file.
+     * @return Input positioned at the length of the metrics file.
+     * @throws IOException File could not be read or is not a checkpoint file.
+     */
+    static DataInputStream open(Path path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            in.close();
+            throw new IOException("Not a supported checkpoint file: " + path);
+        }
+
+        return in;
+    }
+
+    /**
+     * Writes a checkpoint to the temporary file and renames it over the checkpoint file.
+     * @param state State written by the simulation.
+     * @param metricsPosition Length of the metrics file, or -1 if no metrics are written.
+     * @throws IOException Checkpoint could not be written.
+     */
+    private void writeFile(byte[] state, long metricsPosition) throws IOException {
+        try (FileChannel channel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(metricsPosition);
+            header.flip();
+
+            ByteBuffer body = ByteBuffer.wrap(state);
+            while (header.hasRemaining() || body.hasRemaining()) {
+                channel.write(new ByteBuffer[] { header, body });
+            }
+
+            // The rename must not reach the disk before the content
+            channel.force(true);
+        }
+
+        Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Records a failure, unless an earlier failure has already been recorded.
+     * @param e Failure to record.
+     */
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        } else if (failure != e) {
+            failure.addSuppressed(e);
+        }
+    }
+}
@@ -1,64 +1,409 @@
 package se.peterjonsson.flocking;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.BufferedOutputStream;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Custom image writer for concurrent writing.
  * Adapted from https://blog.idrsolutions.com/2014/10/imageio-write-executorservice-io-bound-applications-java/
  *
+ * Images are encoded on a pool of encoder threads and written on a single writer thread, in the order that they
+ * were given, even if they finish encoding out of order. At most a fixed number of images are being encoded or
+ * waiting to be written at any time. Giving another image blocks until a slot is free, so memory stays flat when
+ * images are produced faster than they can be written.
+ *
+ * Images are either encoded to PNG or JPEG and written to one file each, or written as raw frames to the
+ * standard input of an encoder process, for example {@code ffmpeg -f rawvideo -pix_fmt bgr0 -s WxH -i - out.mp4}.
+ * Raw frames hold 32 bits per pixel, row by row, in blue, green, red, unused byte order.
+ *
+ * Once any image fails to be encoded or written, no further images are written and the failure is thrown by the
+ * next call to {@link #writeImage} or {@link #waitForImages()}.
+ *
  * @author Leon Atherton
  * @author Peter Jonsson <95jonpet@gmail.com>
  */
 class CustomImageWriter {
 
     /**
-     * Runnable executor.
+     * Size of a raw pixel in bytes.
+     */
+    private static final int RAW_PIXEL_SIZE = 4;
+
+    /**
+     * Runnable executor encoding images.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Executor writing encoded images in order.
+     */
+    private final ExecutorService writer;
+
+    /**
+     * Slots for images that are being encoded or waiting to be written.
+     */
+    private final Semaphore slots;
+
+    /**
+     * Informal name of the image format, or null if raw frames are written to an encoder process.
+     */
+    private final String format;
+
+    /**
+     * Compression quality between 0 and 1, used if the image format supports compression.
+     */
+    private final float quality;
+
+    /**
+     * Encoder process receiving raw frames, or null if images are written to files.
+     */
+    private final Process process;
+
+    /**
+     * Standard input of the {@link #process}, or null if images are written to files.
+     */
+    private final OutputStream pipe;
+
+    /**
+     * Encoded images waiting for earlier images to be written, by sequence number.
+     * This is only used by the {@link #writer}.
+     */
+    private final Map<Long, EncodedImage> encoded = new HashMap<>();
+
+    /**
+     * Buffers of raw frames that have been written and can be reused.
      */
-    private ExecutorService executor;
+    private final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
 
     /**
-     * Creates a new image writer.
+     * Sequence number of the next image given.
+     */
+    private long submitted = 0;
+
+    /**
+     * Sequence number of the next image to write.
+     * This is only used by the {@link #writer}.
+     */
+    private long nextToWrite = 0;
+
+    /**
+     * First failure to encode or write an image, or null if every image so far has been written.
+     */
+    private volatile IOException failure = null;
+
+    /**
+     * Creates a new image writer writing JPEG images at 90% quality with two encoder threads.
      */
     CustomImageWriter() {
-        this.executor = Executors.newFixedThreadPool(2);
+        this("jpg", 0.9f, 2, 4);
+    }
+
+    /**
+     * Creates a new image writer writing images to files.
+     * @param format Informal name of the image format, for example {@code png} or {@code jpg}.
+     * @param quality Compression quality between 0 and 1, used if the image format supports compression.
+     * @param threads Number of encoder threads.
+     * @param capacity Maximum number of images being encoded or waiting to be written.
+     * @throws IllegalArgumentException The image format is not supported.
+     */
+    CustomImageWriter(String format, float quality, int threads, int capacity) {
+        if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+            throw new IllegalArgumentException("Unsupported image format " + format);
+        }
+        if (quality < 0 || quality > 1) {
+            throw new IllegalArgumentException("Quality must be between 0 and 1: " + quality);
+        }
+
+        this.format = format;
+        this.quality = quality;
+        this.process = null;
+        this.pipe = null;
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.writer = Executors.newSingleThreadExecutor();
+        this.slots = new Semaphore(capacity);
+    }
+
+    /**
+     * Creates a new image writer piping raw frames to an encoder process.
+     * The process is started immediately and its output is shown on the output of this process.
+     * @param command Command and arguments of the encoder process.
+     * @param threads Number of encoder threads.
+     * @param capacity Maximum number of images being encoded or waiting to be written.
+     * @throws IOException The encoder process could not be started.
+     */
+    CustomImageWriter(List<String> command, int threads, int capacity) throws IOException {
+        this.format = null;
+        this.quality = 1;
+        this.process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        this.pipe = new BufferedOutputStream(process.getOutputStream(), 1024 * 1024);
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.writer = Executors.newSingleThreadExecutor();
+        this.slots = new Semaphore(capacity);
     }
 
     /**
      * Writes an image concurrently.
      * @param image The image to write.
-     * @param path The file path to write to.
-     * @throws IOException File write fail.
+     * @param path The file path to write to. This is ignored when piping raw frames.
+     * @throws IOException An earlier image could not be written.
      */
     void writeImage(final BufferedImage image, final Path path) throws IOException {
+        writeImage(image, path, () -> { });
+    }
+
+    /**
+     * Writes an image concurrently, blocking while the maximum number of images are being processed.
+     * @param image The image to write. It must not be changed until it has been encoded.
+     * @param path The file path to write to. This is ignored when piping raw frames.
+     * @param encodedListener Called on an encoder thread once the image has been encoded and may be reused.
+     * @throws IOException An earlier image could not be written.
+     */
+    void writeImage(final BufferedImage image, final Path path, final Runnable encodedListener)
+            throws IOException {
+        checkFailure();
+
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to write " + describe(path), e);
+        }
+
+        final long sequence = submitted++;
         executor.submit(() -> {
-            try (BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(path.toFile()))) {
-                ImageIO.write(image, "JPG", output);
-            } catch (IOException e) {
-                e.printStackTrace();
+            EncodedImage result;
+            try {
+                result = new EncodedImage(path, format != null ? encode(image) : toRaw(image), null);
+            } catch (IOException | RuntimeException e) {
+                result = new EncodedImage(path, null, e);
+            } finally {
+                encodedListener.run();
             }
+
+            final EncodedImage encodedImage = result;
+            writer.submit(() -> write(sequence, encodedImage));
         });
     }
 
     /**
      * Waits for all images to be written and kills the {@link #executor}.
-     * This process is allowed a maximum execution time of 1 minute.
+     * When piping raw frames, this also waits for the encoder process to exit.
+     * @throws IOException Any image could not be written, or the encoder process failed.
      */
-    void waitForImages() {
+    void waitForImages() throws IOException {
         executor.shutdown();
 
         try {
-            executor.awaitTermination(1, TimeUnit.MINUTES);
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            writer.shutdown();
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+            if (pipe != null) {
+                try {
+                    pipe.close();
+                } catch (IOException e) {
+                    fail(new IOException("Could not close the pipe to the encoder process", e));
+                }
+
+                int exitCode = process.waitFor();
+                if (exitCode != 0) {
+                    fail(new IOException("Encoder process exited with code " + exitCode));
+                }
+            }
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for images to be written", e);
+        }
+
+        checkFailure();
+    }
+
+    /**
+     * Encodes an image to the image format.
+     * @param image Image to encode.
+     * @return Encoded file content.
+     * @throws IOException Image could not be encoded.
+     */
+    private byte[] encode(BufferedImage image) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        ImageWriter imageWriter = writers.next();
+        ImageWriteParam param = imageWriter.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+        }
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024);
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(output)) {
+            imageWriter.setOutput(stream);
+            imageWriter.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            imageWriter.dispose();
+        }
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Converts an image to a raw frame.
+     * @param image Image to convert.
+     * @return Raw frame.
+     */
+    private byte[] toRaw(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int length = width * height * RAW_PIXEL_SIZE;
+
+        byte[] raw = freeBuffers.poll();
+        if (raw == null || raw.length != length) {
+            raw = new byte[length];
+        }
+        IntBuffer output = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+
+        // Opaque packed pixels are copied row by row, anything else is converted through the color model
+        int type = image.getType();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && image.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int stride = ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+            for (int row = 0; row < height; row++) {
+                output.put(pixels, row * stride, width);
+            }
+            return raw;
+        }
+
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            output.put(row);
+        }
+
+        return raw;
+    }
+
+    /**
+     * Writes an encoded image once all earlier images have been written, followed by any later images that are
+     * already waiting. This is only called on the {@link #writer}.
+     * @param sequence Sequence number of the image.
+     * @param image Encoded image.
+     */
+    private void write(long sequence, EncodedImage image) {
+        encoded.put(sequence, image);
+
+        EncodedImage next;
+        while ((next = encoded.remove(nextToWrite)) != null) {
+            long current = nextToWrite++;
+
+            try {
+                if (next.error != null) {
+                    fail(new IOException("Could not encode " + describe(next.path) + " (image " + current + ")",
+                            next.error));
+                } else if (failure == null) {
+                    if (pipe != null) {
+                        pipe.write(next.data);
+                        freeBuffers.add(next.data);
+                    } else {
+                        Files.write(next.path, next.data);
+                    }
+                }
+            } catch (IOException e) {
+                fail(new IOException("Could not write " + describe(next.path) + " (image " + current + ")", e));
+            } finally {
+                slots.release();
+            }
+        }
+    }
+
+    /**
+     * Records a failure, unless an earlier failure has already been recorded.
+     * @param e Failure to record.
+     */
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        } else if (failure != e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Throws the first recorded failure, if any.
+     * @throws IOException An image could not be written.
+     */
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("Image export failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Describes where an image is written, for error messages.
+     * @param path File path of the image.
+     * @return Description of the destination.
+     */
+    private String describe(Path path) {
+        return pipe != null ? "raw frame to the encoder process" : String.valueOf(path);
+    }
+
+    /**
+     * An encoded image waiting to be written.
+     */
+    private static class EncodedImage {
+
+        /**
+         * The file path to write to.
+         */
+        final Path path;
+
+        /**
+         * Encoded content, or null if the image could not be encoded.
+         */
+        final byte[] data;
+
+        /**
+         * Reason that the image could not be encoded, or null if it was encoded.
+         */
+        final Exception error;
+
+        /**
+         * Creates a new encoded image.
+         * @param path The file path to write to.
+         * @param data Encoded content, or null if the image could not be encoded.
+         * @param error Reason that the image could not be encoded, or null if it was encoded.
+         */
+        EncodedImage(Path path, byte[] data, Exception error) {
+            this.path = path;
+            this.data = data;
+            this.error = error;
         }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,179 @@
+package se.peterjonsson.flocking;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a single simulation from the command line, split over several worker processes on this machine.
+ * This does not depend on JavaFX, so it can be used on headless machines.
+ *
+ * Usage: {@code DistributedRunner [--workers N] [--agents N] [--steps N] [--seed N] [--size N] [--output DIR]
+ * [--obstacles FILE] [--trajectory]}
+ *
+ * The simulation area is split into one horizontal strip per worker, and every worker process simulates the agents
+ * within its strip, see {@link DomainWorker}. This process coordinates the workers and simulates the predators, see
+ * {@link DomainCoordinator}. The processes talk over loopback sockets. Every strip must be at least
+ * {@link Agent#NEIGHBOUR_DISTANCE} high, so that agents only see agents of the neighbouring strips.
+ *
+ * The results are the same as those of a single process in the double-buffered update mode, see
+ * {@link FlockingSimulation#enableDoubleBuffering(int)}: the survival curve is written to {@code result.txt} and
+ * the kills to {@code events.bin}. With {@code --trajectory} every frame is also gathered into
+ * {@code trajectory.bin}, which costs sending every agent to this process in every step. Metrics, checkpoints,
+ * the obstacle field, Verlet lists, cell order and reordering are not supported.
+ *
+ * The workers are started by this class with {@code --connect PORT}, which is not meant to be used directly. The run
+ * fails if a worker does not connect within a minute or exits with an error.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+public class DistributedRunner {
+
+    /**
+     * Milliseconds to wait for a worker to connect before giving up, in case a worker process failed to start.
+     */
+    private static final int CONNECT_TIMEOUT = 60000;
+
+    /**
+     * Called on application start.
+     * @param args Launch arguments.
+     */
+    public static void main(String[] args) {
+        if (args.length == 2 && args[0].equals("--connect")) {
+            runWorker(Integer.parseInt(args[1]));
+            return;
+        }
+
+        int workers = 2;
+        int agents = 100;
+        int steps = FlockingSimulation.DEFAULT_STEPS;
+        long seed = FlockingSimulation.DEFAULT_SEED;
+        int size = FlockingSimulation.DEFAULT_SIZE;
+        Path output = Paths.get("");
+        Path obstacles = null;
+        boolean trajectory = false;
+
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (args[i].equals("--trajectory")) {
+                    trajectory = true;
+                    i--;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--workers":
+                        workers = Integer.parseInt(value);
+                        if (workers < 1) {
+                            throw new IllegalArgumentException("There must be at least one worker");
+                        }
+                        break;
+                    case "--agents":
+                        agents = Integer.parseInt(value);
+                        break;
+                    case "--steps":
+                        steps = Integer.parseInt(value);
+                        if (steps < 1) {
+                            throw new IllegalArgumentException("There must be at least one step");
+                        }
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    case "--size":
+                        size = Integer.parseInt(value);
+                        break;
+                    case "--output":
+                        output = Paths.get(value);
+                        break;
+                    case "--obstacles":
+                        obstacles = Paths.get(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+
+            if (size / workers < Agent.NEIGHBOUR_DISTANCE) {
+                throw new IllegalArgumentException("Strips must be at least " + Agent.NEIGHBOUR_DISTANCE
+                        + " high, use at most " + Math.max(1, size / Agent.NEIGHBOUR_DISTANCE) + " workers");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: DistributedRunner [--workers N] [--agents N] [--steps N] [--seed N] [--size N] "
+                    + "[--output DIR] [--obstacles FILE] [--trajectory]");
+            System.exit(1);
+            return;
+        }
+
+        SimulationConfig config = new SimulationConfig(agents, steps, seed, size,
+                FlockingSimulation.DEFAULT_PREDATOR_RELEASE_STEP, FlockingSimulation.FLOCKING_PREY,
+                FlockingSimulation.FLOCKING_PREDATORS);
+
+        List<Process> processes = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0, workers, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(CONNECT_TIMEOUT);
+            Files.createDirectories(output);
+            List<Obstacle> obstacleList = obstacles != null ? ObstacleFile.read(obstacles, size) : new ArrayList<>();
+
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            for (int i = 0; i < workers; i++) {
+                processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        DistributedRunner.class.getName(), "--connect", Integer.toString(server.getLocalPort()))
+                        .inheritIO().start());
+            }
+
+            long startTime = System.nanoTime();
+            DomainCoordinator coordinator = new DomainCoordinator(server, workers, config, obstacleList, output,
+                    trajectory);
+            coordinator.run();
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+
+            boolean failed = false;
+            for (Process process : processes) {
+                int exitCode = process.waitFor();
+                if (exitCode != 0) {
+                    System.err.println("Worker exited with status " + exitCode);
+                    failed = true;
+                }
+            }
+            if (failed) {
+                System.exit(1);
+                return;
+            }
+
+            System.out.printf("Simulated %d steps of %d agents on %d workers in %.3f s%n", steps, agents, workers,
+                    seconds);
+            System.out.printf("Throughput: %.0f steps/s, %d agents survived%n", steps / seconds,
+                    coordinator.getSurvivors()[steps - 1]);
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            for (Process process : processes) {
+                process.destroy();
+            }
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs a worker process until the simulation has finished.
+     * @param port Loopback port that the coordinator is listening on.
+     */
+    private static void runWorker(int port) {
+        try {
+            new DomainWorker(port).run();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package se.peterjonsson.flocking;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The coordinator of a distributed simulation, see {@link DistributedRunner}.
+ *
+ * The coordinator simulates the predators, since there are only a few of them and every worker needs all of them,
+ * and resolves the kills, since two predators in different strips may reach the same agent. Every step it sends
+ * the predators to the {@link DomainWorker} processes, picks the prey of every predator from the closest agents
+ * found by the workers, updates the predators, and kills the closest agent near every predator in predator order.
+ * Ties are broken by the lowest agent ID, which is the lowest index in a single process, so the predators chase
+ * and kill the same agents as in a single process. The survival curve, the event log and optionally the trajectory
+ * are written like by a {@link FlockingSimulation}.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class DomainCoordinator {
+
+    /**
+     * Settings of the simulation.
+     */
+    private final SimulationConfig config;
+
+    /**
+     * Obstacles of the simulation.
+     */
+    private final List<Obstacle> obstacles;
+
+    /**
+     * Directory that the results are written to.
+     */
+    private final Path outputDirectory;
+
+    /**
+     * Indicates if the trajectory is written or not.
+     */
+    private final boolean recording;
+
+    /**
+     * Links to the workers, in strip order.
+     */
+    private final DomainLink[] workers;
+
+    /**
+     * State of all predators, updated with double buffering.
+     */
+    private final Swarm predators = new Swarm(4);
+
+    /**
+     * Rules of the predators, only used for moving them towards the prey found by the workers.
+     */
+    private final Predator predatorRules;
+
+    /**
+     * All agents of the last step, gathered from the workers for writing the trajectory.
+     */
+    private final Swarm agents = new Swarm(64);
+
+    /**
+     * Agents within reach of each predator, gathered from the workers.
+     */
+    private Swarm[] candidates = new Swarm[0];
+
+    /**
+     * IDs of the agents killed in the current step.
+     */
+    private final IntList killed = new IntList(4);
+
+    /**
+     * Number of living agents after every step.
+     */
+    private final int[] survivors;
+
+    /**
+     * Accepts the workers and sends them their strips and the settings.
+     * @param server Loopback socket that the workers connect to.
+     * @param workerCount Number of workers.
+     * @param config Settings of the simulation.
+     * @param obstacles Obstacles of the simulation.
+     * @param outputDirectory Directory that the results are written to.
+     * @param recording Write the trajectory.
+     * @throws IOException Workers could not be connected.
+     */
+    DomainCoordinator(ServerSocket server, int workerCount, SimulationConfig config, List<Obstacle> obstacles,
+                      Path outputDirectory, boolean recording) throws IOException {
+        this.config = config;
+        this.obstacles = obstacles;
+        this.outputDirectory = outputDirectory;
+        this.recording = recording;
+
+        predators.setDoubleBuffered(true);
+        predatorRules = new Predator(agents, predators,
+                new SpatialGrid(config.size, Agent.NEIGHBOUR_DISTANCE, Agent.SPEED), config);
+        survivors = new int[config.steps];
+
+        // Workers get their ranks in the order they connect
+        workers = new DomainLink[workerCount];
+        int[] peerPorts = new int[workerCount];
+        for (int rank = 0; rank < workerCount; rank++) {
+            workers[rank] = new DomainLink(server.accept());
+            peerPorts[rank] = workers[rank].in.readInt();
+        }
+
+        for (int rank = 0; rank < workerCount; rank++) {
+            DomainLink worker = workers[rank];
+            worker.out.writeInt(rank);
+            worker.out.writeInt(workerCount);
+            worker.writeConfig(config);
+            worker.writeObstacles(obstacles);
+            worker.out.writeInt(rank + 1 < workerCount ? peerPorts[rank + 1] : -1);
+            worker.out.writeBoolean(recording);
+            worker.flush();
+        }
+    }
+
+    /**
+     * Simulates every step in lock-step with the workers and writes the results.
+     * @throws IOException Connection to a worker failed or the results could not be written.
+     */
+    void run() throws IOException {
+        try (TrajectoryWriter frames = recording
+                     ? new TrajectoryWriter(outputDirectory.resolve("trajectory.bin"), config.size, obstacles) : null;
+             EventLog events = new EventLog(outputDirectory.resolve("events.bin"))) {
+            survivors[0] = gather(0, frames);
+
+            for (int step = 1; step < config.steps; step++) {
+                if (step == config.predatorReleaseStep) {
+                    FlockingSimulation.releasePredators(predators, config.size);
+                }
+
+                sendPredators();
+                chasePrey();
+                sendPredators();
+                resolveKills(step, events);
+                survivors[step] = gather(step, frames);
+            }
+        }
+
+        for (DomainLink worker : workers) {
+            worker.close();
+        }
+
+        FlockingSimulation.writeSurvivors(outputDirectory.resolve("result.txt"), survivors, config.steps);
+    }
+
+    /**
+     * Gets the number of living agents after every step.
+     * @return Survival curve.
+     */
+    int[] getSurvivors() {
+        return survivors;
+    }
+
+    /**
+     * Sends the current state of the predators to every worker.
+     * @throws IOException State could not be sent.
+     */
+    private void sendPredators() throws IOException {
+        for (DomainLink worker : workers) {
+            worker.writeEntities(predators);
+            worker.flush();
+        }
+    }
+
+    /**
+     * Picks the prey of every predator from the prey found by the workers, and updates the predators.
+     * @throws IOException Prey could not be read.
+     */
+    private void chasePrey() throws IOException {
+        int count = predators.size();
+        int[] preyId = new int[count];
+        double[] preyX = new double[count];
+        double[] preyY = new double[count];
+        double[] preyDistance = new double[count];
+        Arrays.fill(preyId, -1);
+
+        for (DomainLink worker : workers) {
+            for (int predator = 0; predator < count; predator++) {
+                if (!worker.in.readBoolean()) {
+                    continue;
+                }
+
+                int id = worker.in.readInt();
+                double x = worker.in.readDouble();
+                double y = worker.in.readDouble();
+                double dx = x - predators.x[predator];
+                double dy = y - predators.y[predator];
+                double distanceSquared = dx * dx + dy * dy;
+
+                if (preyId[predator] == -1 || distanceSquared < preyDistance[predator]
+                        || (distanceSquared == preyDistance[predator] && id < preyId[predator])) {
+                    preyId[predator] = id;
+                    preyX[predator] = x;
+                    preyY[predator] = y;
+                    preyDistance[predator] = distanceSquared;
+                }
+            }
+        }
+
+        for (int predator = 0; predator < count; predator++) {
+            if (preyId[predator] != -1) {
+                predatorRules.update(predator, preyX[predator], preyY[predator]);
+            } else {
+                predatorRules.update(predator, Double.NaN, Double.NaN);
+            }
+        }
+        predators.swap();
+    }
+
+    /**
+     * Kills the closest living agent within reach of every predator, in predator order, and tells the workers.
+     * @param step Number of the step being simulated.
+     * @param events Event log that the kills are appended to.
+     * @throws IOException Candidates could not be read, or kills could not be sent or logged.
+     */
+    private void resolveKills(int step, EventLog events) throws IOException {
+        int count = predators.size();
+        if (candidates.length < count) {
+            candidates = new Swarm[count];
+            for (int predator = 0; predator < count; predator++) {
+                candidates[predator] = new Swarm(4);
+            }
+        }
+
+        for (int predator = 0; predator < count; predator++) {
+            candidates[predator].clear();
+        }
+        for (DomainLink worker : workers) {
+            for (int predator = 0; predator < count; predator++) {
+                worker.readEntities(candidates[predator]);
+            }
+        }
+
+        killed.clear();
+        for (int predator = 0; predator < count; predator++) {
+            Swarm reachable = candidates[predator];
+            int closest = -1;
+            double shortestDistanceSquared = Double.MAX_VALUE;
+
+            for (int i = 0; i < reachable.size(); i++) {
+                if (isKilled(reachable.id[i])) {
+                    continue;
+                }
+
+                double dx = reachable.x[i] - predators.x[predator];
+                double dy = reachable.y[i] - predators.y[predator];
+                double distanceSquared = dx * dx + dy * dy;
+                if (closest == -1 || distanceSquared < shortestDistanceSquared
+                        || (distanceSquared == shortestDistanceSquared && reachable.id[i] < reachable.id[closest])) {
+                    closest = i;
+                    shortestDistanceSquared = distanceSquared;
+                }
+            }
+
+            if (closest != -1) {
+                killed.add(reachable.id[closest]);
+                events.writeKill(step, predators.id[predator], reachable.id[closest], reachable.x[closest],
+                        reachable.y[closest]);
+            }
+        }
+
+        for (DomainLink worker : workers) {
+            worker.out.writeInt(killed.size());
+            for (int i = 0; i < killed.size(); i++) {
+                worker.out.writeInt(killed.get(i));
+            }
+            worker.flush();
+        }
+    }
+
+    /**
+     * Checks if an agent has already been killed in the current step.
+     * @param id Stable ID of the agent.
+     * @return Agent has been killed.
+     */
+    private boolean isKilled(int id) {
+        for (int i = 0; i < killed.size(); i++) {
+            if (killed.get(i) == id) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Gathers the number of living agents from the workers, and writes the frame of the step if recording.
+     * @param step Number of the step that was simulated.
+     * @param frames Writer of the trajectory, or null if no trajectory is written.
+     * @return Number of living agents.
+     * @throws IOException Reports could not be read or the frame could not be written.
+     */
+    private int gather(int step, TrajectoryWriter frames) throws IOException {
+        int living = 0;
+        agents.clear();
+
+        for (DomainLink worker : workers) {
+            living += worker.in.readInt();
+            if (recording) {
+                worker.readEntities(agents);
+            }
+        }
+
+        if (frames != null) {
+            frames.writeFrame(step, agents, predators);
+        }
+
+        return living;
+    }
+}
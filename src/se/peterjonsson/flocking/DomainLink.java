@@ -0,0 +1,174 @@
+package se.peterjonsson.flocking;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * A connection between two processes of a distributed simulation, see {@link DistributedRunner}.
+ * Messages are written to a buffer and only sent by {@link #flush()}, so a message made of many values is sent in
+ * as few packets as possible. Entities are sent with their stable IDs and full double precision state, so the
+ * receiving process can continue simulating them exactly.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class DomainLink implements Closeable {
+
+    /**
+     * Size of the send and receive buffers.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Socket connected to the other process.
+     */
+    private final Socket socket;
+
+    /**
+     * Input reading from the other process.
+     */
+    final DataInputStream in;
+
+    /**
+     * Output writing to the other process, which must be flushed after every message.
+     */
+    final DataOutputStream out;
+
+    /**
+     * Creates a link over a connected socket.
+     * @param socket Socket connected to the other process.
+     * @throws IOException Streams of the socket could not be opened.
+     */
+    DomainLink(Socket socket) throws IOException {
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+    }
+
+    /**
+     * Writes the entities of a swarm that pass a filter, in index order.
+     * @param swarm Swarm to write from.
+     * @param filter Filter accepting the indices of the entities to write.
+     * @throws IOException Entities could not be written.
+     */
+    void writeEntities(Swarm swarm, IntPredicate filter) throws IOException {
+        int count = 0;
+        for (int i = 0; i < swarm.size(); i++) {
+            if (filter.test(i)) {
+                count++;
+            }
+        }
+
+        out.writeInt(count);
+        for (int i = 0; i < swarm.size(); i++) {
+            if (filter.test(i)) {
+                out.writeInt(swarm.id[i]);
+                out.writeDouble(swarm.x[i]);
+                out.writeDouble(swarm.y[i]);
+                out.writeDouble(swarm.dx[i]);
+                out.writeDouble(swarm.dy[i]);
+            }
+        }
+    }
+
+    /**
+     * Writes all entities of a swarm, in index order.
+     * @param swarm Swarm to write.
+     * @throws IOException Entities could not be written.
+     */
+    void writeEntities(Swarm swarm) throws IOException {
+        writeEntities(swarm, index -> true);
+    }
+
+    /**
+     * Reads entities written by {@link #writeEntities(Swarm, IntPredicate)} and adds them to a swarm, keeping their
+     * IDs.
+     * @param swarm Swarm to add the entities to.
+     * @throws IOException Entities could not be read.
+     */
+    void readEntities(Swarm swarm) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int id = in.readInt();
+            swarm.add(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble(), id);
+        }
+    }
+
+    /**
+     * Writes the settings of a simulation.
+     * @param config Settings to write.
+     * @throws IOException Settings could not be written.
+     */
+    void writeConfig(SimulationConfig config) throws IOException {
+        out.writeInt(config.numberOfAgents);
+        out.writeInt(config.steps);
+        out.writeLong(config.seed);
+        out.writeInt(config.size);
+        out.writeInt(config.predatorReleaseStep);
+        out.writeBoolean(config.flockingPrey);
+        out.writeBoolean(config.flockingPredators);
+    }
+
+    /**
+     * Reads settings written by {@link #writeConfig(SimulationConfig)}.
+     * @return Settings of the simulation.
+     * @throws IOException Settings could not be read.
+     */
+    SimulationConfig readConfig() throws IOException {
+        return new SimulationConfig(in.readInt(), in.readInt(), in.readLong(), in.readInt(), in.readInt(),
+                in.readBoolean(), in.readBoolean());
+    }
+
+    /**
+     * Writes the obstacles of a simulation.
+     * @param obstacles Obstacles to write.
+     * @throws IOException Obstacles could not be written.
+     */
+    void writeObstacles(List<Obstacle> obstacles) throws IOException {
+        out.writeInt(obstacles.size());
+        for (Obstacle obstacle : obstacles) {
+            out.writeInt(obstacle.x);
+            out.writeInt(obstacle.y);
+        }
+    }
+
+    /**
+     * Reads obstacles written by {@link #writeObstacles(List)}.
+     * @return Obstacles of the simulation.
+     * @throws IOException Obstacles could not be read.
+     */
+    List<Obstacle> readObstacles() throws IOException {
+        int count = in.readInt();
+        List<Obstacle> obstacles = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            obstacles.add(new Obstacle(in.readInt(), in.readInt()));
+        }
+
+        return obstacles;
+    }
+
+    /**
+     * Sends everything written since the last flush.
+     * @throws IOException Output could not be sent.
+     */
+    void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Closes the connection.
+     * @throws IOException Socket could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,374 @@
+package se.peterjonsson.flocking;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * A worker process of a distributed simulation, simulating the agents within one horizontal strip of the
+ * simulation area, see {@link DistributedRunner}.
+ *
+ * Strips are numbered from the top by rank. A worker owns the agents whose vertical positions are within its strip,
+ * and the first and last strips extend beyond the simulation area. Before every step the worker exchanges a halo
+ * with the workers of the neighbouring strips: every owned agent within {@link Agent#NEIGHBOUR_DISTANCE} of the edge
+ * of the strip is sent to the neighbour as a ghost. The owned agents and the ghosts are merged into one swarm in ID
+ * order, which holds every agent that an owned agent can see in the same order as in a single process, so the
+ * owned agents are updated with exactly the same results. Agents that leave the strip are sent to the neighbour
+ * that owns them next. Predators and kills are handled by the {@link DomainCoordinator}, which every worker sends
+ * the prey and the kill candidates found among its agents to.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class DomainWorker {
+
+    /**
+     * Link to the coordinator.
+     */
+    private final DomainLink coordinator;
+
+    /**
+     * Link to the worker of the strip above, or null for the first strip.
+     */
+    private final DomainLink lower;
+
+    /**
+     * Link to the worker of the strip below, or null for the last strip.
+     */
+    private final DomainLink upper;
+
+    /**
+     * Settings of the simulation.
+     */
+    private final SimulationConfig config;
+
+    /**
+     * Lowest vertical position within the strip.
+     */
+    private final double top;
+
+    /**
+     * Vertical position below which positions are within the strip.
+     */
+    private final double bottom;
+
+    /**
+     * Indicates if the owned agents are sent to the coordinator after every step, for writing the trajectory.
+     */
+    private final boolean recording;
+
+    /**
+     * Agents owned by this worker, in ID order.
+     */
+    private Swarm owned;
+
+    /**
+     * Swarm that the owned agents are merged into when agents move between strips.
+     */
+    private Swarm spare;
+
+    /**
+     * Owned agents and ghosts in ID order, updated with double buffering.
+     */
+    private final Swarm local;
+
+    /**
+     * Agents received from the worker of the strip above.
+     */
+    private final Swarm below = new Swarm(64);
+
+    /**
+     * Agents received from the worker of the strip below.
+     */
+    private final Swarm above = new Swarm(64);
+
+    /**
+     * State of all predators, received from the coordinator.
+     */
+    private final Swarm predators = new Swarm(4);
+
+    /**
+     * Index in the merged swarm of every owned agent, from the last {@link #merge(Swarm)}.
+     */
+    private int[] mergedIndex = new int[0];
+
+    /**
+     * Spatial index of the {@link #local} agents.
+     */
+    private final SpatialGrid grid;
+
+    /**
+     * Rules of the agents.
+     */
+    private final Agent agentRules;
+
+    /**
+     * Rules of the predators, only used for finding prey.
+     */
+    private final Predator predatorRules;
+
+    /**
+     * Connects to the coordinator and to the workers of the neighbouring strips.
+     * @param coordinatorPort Loopback port that the coordinator is listening on.
+     * @throws IOException Connections could not be made.
+     */
+    DomainWorker(int coordinatorPort) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+
+        try (ServerSocket peers = new ServerSocket(0, 1, loopback)) {
+            coordinator = new DomainLink(new Socket(loopback, coordinatorPort));
+            coordinator.out.writeInt(peers.getLocalPort());
+            coordinator.flush();
+
+            int rank = coordinator.in.readInt();
+            int workers = coordinator.in.readInt();
+            config = coordinator.readConfig();
+            ObstacleIndex obstacleIndex = new ObstacleIndex(config.size, Agent.OBSTACLE_AVOIDANCE_DISTANCE);
+            obstacleIndex.build(coordinator.readObstacles());
+            int upperPort = coordinator.in.readInt();
+            recording = coordinator.in.readBoolean();
+
+            top = stripStart(rank, workers, config.size);
+            bottom = stripStart(rank + 1, workers, config.size);
+
+            // Every worker connects to the strip below before accepting the strip above, so no one waits in a cycle
+            upper = upperPort >= 0 ? new DomainLink(new Socket(loopback, upperPort)) : null;
+            lower = rank > 0 ? new DomainLink(peers.accept()) : null;
+
+            owned = new Swarm(config.numberOfAgents / workers);
+            spare = new Swarm(config.numberOfAgents / workers);
+            local = new Swarm(config.numberOfAgents / workers);
+            local.setDoubleBuffered(true);
+            grid = new SpatialGrid(config.size, Agent.NEIGHBOUR_DISTANCE, Agent.SPEED);
+            agentRules = new Agent(local, obstacleIndex, new ObstacleField(), predators, grid, config);
+            predatorRules = new Predator(local, predators, grid, config);
+        }
+    }
+
+    /**
+     * Gets the vertical position where a strip starts.
+     * @param rank Rank of the strip, or the number of strips for the end of the last strip.
+     * @param workers Number of strips.
+     * @param size Horizontal and vertical size of the simulation.
+     * @return Lowest vertical position within the strip, which is infinite for the first strip and the end.
+     */
+    static double stripStart(int rank, int workers, int size) {
+        if (rank == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        if (rank == workers) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        return (long) size * rank / workers;
+    }
+
+    /**
+     * Simulates every step in lock-step with the coordinator and the other workers.
+     * @throws IOException Connection to another process failed.
+     */
+    void run() throws IOException {
+        FlockingSimulation.placeAgents(config, new SimulationRandom(config.seed), owned, top, bottom);
+        report();
+
+        final double haloTop = top + Agent.NEIGHBOUR_DISTANCE;
+        final double haloBottom = bottom - Agent.NEIGHBOUR_DISTANCE;
+
+        for (int step = 1; step < config.steps; step++) {
+            readPredators();
+
+            exchange(index -> owned.y[index] <= haloTop, index -> owned.y[index] >= haloBottom);
+            merge(local);
+            update();
+
+            readPredators();
+            sendKillCandidates();
+            removeKilled();
+
+            exchange(index -> owned.y[index] < top, index -> owned.y[index] >= bottom);
+            migrate();
+            report();
+        }
+
+        coordinator.close();
+        if (lower != null) {
+            lower.close();
+        }
+        if (upper != null) {
+            upper.close();
+        }
+    }
+
+    /**
+     * Replaces the predators with the state sent by the coordinator.
+     * @throws IOException State could not be read.
+     */
+    private void readPredators() throws IOException {
+        predators.clear();
+        coordinator.readEntities(predators);
+    }
+
+    /**
+     * Sends owned agents to the workers of the neighbouring strips and receives their agents into {@link #below}
+     * and {@link #above}.
+     * The first worker starts, and every worker receives from the strip above before sending to it, so the
+     * exchange ripples down the strips without any two workers waiting for each other.
+     * @param toLower Filter accepting the owned agents to send to the strip above.
+     * @param toUpper Filter accepting the owned agents to send to the strip below.
+     * @throws IOException Agents could not be exchanged.
+     */
+    private void exchange(IntPredicate toLower, IntPredicate toUpper) throws IOException {
+        below.clear();
+        above.clear();
+
+        if (lower != null) {
+            lower.readEntities(below);
+            lower.writeEntities(owned, toLower);
+            lower.flush();
+        }
+
+        if (upper != null) {
+            upper.writeEntities(owned, toUpper);
+            upper.flush();
+            upper.readEntities(above);
+        }
+    }
+
+    /**
+     * Merges the owned agents and the agents received from the neighbouring strips into a swarm in ID order,
+     * recording the index of every owned agent in {@link #mergedIndex}.
+     * @param target Swarm to merge into, which is cleared first.
+     */
+    private void merge(Swarm target) {
+        target.clear();
+        if (mergedIndex.length < owned.size()) {
+            mergedIndex = new int[owned.x.length];
+        }
+
+        int fromBelow = 0;
+        int fromOwned = 0;
+        int fromAbove = 0;
+        while (fromBelow < below.size() || fromOwned < owned.size() || fromAbove < above.size()) {
+            int belowId = fromBelow < below.size() ? below.id[fromBelow] : Integer.MAX_VALUE;
+            int ownedId = fromOwned < owned.size() ? owned.id[fromOwned] : Integer.MAX_VALUE;
+            int aboveId = fromAbove < above.size() ? above.id[fromAbove] : Integer.MAX_VALUE;
+
+            if (ownedId < belowId && ownedId < aboveId) {
+                mergedIndex[fromOwned] = copy(owned, fromOwned++, target);
+            } else if (belowId < aboveId) {
+                copy(below, fromBelow++, target);
+            } else {
+                copy(above, fromAbove++, target);
+            }
+        }
+    }
+
+    /**
+     * Updates the owned agents and sends the prey that every predator would chase among the local agents.
+     * The updated agents are written back to the owned agents.
+     * @throws IOException Prey could not be sent.
+     */
+    private void update() throws IOException {
+        grid.rebuild(local);
+        for (int agent = 0; agent < owned.size(); agent++) {
+            agentRules.update(mergedIndex[agent]);
+        }
+
+        for (int predator = 0; predator < predators.size(); predator++) {
+            int prey = predatorRules.findPrey(predator);
+            coordinator.out.writeBoolean(prey != -1);
+            if (prey != -1) {
+                coordinator.out.writeInt(local.id[prey]);
+                coordinator.out.writeDouble(local.x[prey]);
+                coordinator.out.writeDouble(local.y[prey]);
+            }
+        }
+        coordinator.flush();
+
+        for (int agent = 0; agent < owned.size(); agent++) {
+            int index = mergedIndex[agent];
+            owned.x[agent] = local.nextX[index];
+            owned.y[agent] = local.nextY[index];
+            owned.dx[agent] = local.nextDx[index];
+            owned.dy[agent] = local.nextDy[index];
+        }
+    }
+
+    /**
+     * Sends the owned agents within {@link Predator#KILL_DISTANCE} of every predator.
+     * @throws IOException Agents could not be sent.
+     */
+    private void sendKillCandidates() throws IOException {
+        final double killDistanceSquared = (double) Predator.KILL_DISTANCE * Predator.KILL_DISTANCE;
+
+        for (int predator = 0; predator < predators.size(); predator++) {
+            final double x = predators.x[predator];
+            final double y = predators.y[predator];
+            coordinator.writeEntities(owned, index -> {
+                double dx = owned.x[index] - x;
+                double dy = owned.y[index] - y;
+                return dx * dx + dy * dy <= killDistanceSquared;
+            });
+        }
+        coordinator.flush();
+    }
+
+    /**
+     * Removes the owned agents killed by the coordinator.
+     * @throws IOException Kills could not be read.
+     */
+    private void removeKilled() throws IOException {
+        int count = coordinator.in.readInt();
+        for (int i = 0; i < count; i++) {
+            int agent = Arrays.binarySearch(owned.id, 0, owned.size(), coordinator.in.readInt());
+            if (agent >= 0) {
+                owned.kill(agent);
+            }
+        }
+
+        owned.removeDead();
+    }
+
+    /**
+     * Removes the owned agents that have left the strip, which have already been sent to their new owners, and
+     * adds the agents that have entered it.
+     */
+    private void migrate() {
+        for (int agent = 0; agent < owned.size(); agent++) {
+            if (owned.y[agent] < top || owned.y[agent] >= bottom) {
+                owned.kill(agent);
+            }
+        }
+        owned.removeDead();
+
+        merge(spare);
+        Swarm swap = owned;
+        owned = spare;
+        spare = swap;
+    }
+
+    /**
+     * Sends the number of owned agents to the coordinator, and their state if the trajectory is recorded.
+     * @throws IOException Report could not be sent.
+     */
+    private void report() throws IOException {
+        coordinator.out.writeInt(owned.size());
+        if (recording) {
+            coordinator.writeEntities(owned);
+        }
+        coordinator.flush();
+    }
+
+    /**
+     * Adds a copy of an entity to another swarm, keeping its ID.
+     * @param from Swarm holding the entity.
+     * @param index Index of the entity.
+     * @param to Swarm to add the copy to.
+     * @return Index of the copy.
+     */
+    private static int copy(Swarm from, int index, Swarm to) {
+        return to.add(from.x[index], from.y[index], from.dx[index], from.dy[index], from.id[index]);
+    }
+}
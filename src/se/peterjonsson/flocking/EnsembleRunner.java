@@ -0,0 +1,250 @@
+package se.peterjonsson.flocking;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a sweep of many independent simulations in a single process, without a user interface.
+ * Every combination of the given settings is simulated once per seed. Each simulation has its own
+ * {@link SimulationConfig} and random number generator and runs on a single thread. The simulations are
+ * spread over a work-stealing pool.
+ *
+ * Usage: {@code EnsembleRunner [--seeds N] [--first-seed N] [--agents N,...] [--steps N] [--size N]
+ * [--release-steps N,...] [--flocking-prey BOOL,...] [--flocking-predators BOOL,...] [--threads N]
+ * [--output FILE]}
+ *
+ * The survival curve of every run is written to a single CSV file as soon as the run has finished. Each row
+ * holds the run number, its settings and the number of living agents at every step. Rows are written in
+ * the order that runs finish, so they can be sorted by run number if needed.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+public class EnsembleRunner {
+
+    /**
+     * Usage text printed when the arguments are invalid.
+     */
+    private static final String USAGE = "Usage: EnsembleRunner [--seeds N] [--first-seed N] [--agents N,...] "
+            + "[--steps N] [--size N] [--release-steps N,...] [--flocking-prey BOOL,...] "
+            + "[--flocking-predators BOOL,...] [--threads N] [--output FILE]";
+
+    /**
+     * Called on application start.
+     * @param args Launch arguments.
+     */
+    public static void main(String[] args) {
+        int seeds = 10;
+        long firstSeed = FlockingSimulation.DEFAULT_SEED;
+        int[] agentCounts = new int[] { 100 };
+        int steps = FlockingSimulation.DEFAULT_STEPS;
+        int size = FlockingSimulation.DEFAULT_SIZE;
+        int[] releaseSteps = new int[] { FlockingSimulation.DEFAULT_PREDATOR_RELEASE_STEP };
+        boolean[] flockingPrey = new boolean[] { FlockingSimulation.FLOCKING_PREY };
+        boolean[] flockingPredators = new boolean[] { FlockingSimulation.FLOCKING_PREDATORS };
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path output = Paths.get("ensemble.csv");
+
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--seeds":
+                        seeds = Integer.parseInt(value);
+                        break;
+                    case "--first-seed":
+                        firstSeed = Long.parseLong(value);
+                        break;
+                    case "--agents":
+                        agentCounts = parseInts(value);
+                        break;
+                    case "--steps":
+                        steps = Integer.parseInt(value);
+                        break;
+                    case "--size":
+                        size = Integer.parseInt(value);
+                        break;
+                    case "--release-steps":
+                        releaseSteps = parseInts(value);
+                        break;
+                    case "--flocking-prey":
+                        flockingPrey = parseBooleans(value);
+                        break;
+                    case "--flocking-predators":
+                        flockingPredators = parseBooleans(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--output":
+                        output = Paths.get(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        List<SimulationConfig> configs = new ArrayList<>();
+        for (int agents : agentCounts) {
+            for (int releaseStep : releaseSteps) {
+                for (boolean prey : flockingPrey) {
+                    for (boolean predators : flockingPredators) {
+                        SimulationConfig config = new SimulationConfig(agents, steps, firstSeed, size, releaseStep,
+                                prey, predators);
+                        for (int seed = 0; seed < seeds; seed++) {
+                            configs.add(config.withSeed(firstSeed + seed));
+                        }
+                    }
+                }
+            }
+        }
+
+        long startTime = System.nanoTime();
+        try (BufferedWriter out = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            out.write("run,agents,steps,seed,size,predatorReleaseStep,flockingPrey,flockingPredators,survivors");
+            out.newLine();
+
+            run(configs, threads, out);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        System.out.printf("Simulated %d runs on %d threads in %.3f s%n", configs.size(), threads, seconds);
+    }
+
+    /**
+     * Runs every simulation on a work-stealing pool and writes each survival curve once its run has finished.
+     * @param configs Settings of every simulation.
+     * @param threads Number of simulations to run at the same time.
+     * Once a row cannot be written, the runs that have not started yet are skipped.
+     * @param out Writer receiving one CSV row per run.
+     * @throws IOException First row that could not be written.
+     */
+    private static void run(List<SimulationConfig> configs, int threads, BufferedWriter out) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        AtomicInteger finished = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(configs.size());
+        for (int i = 0; i < configs.size(); i++) {
+            final int run = i;
+            tasks.add(pool.submit(() -> {
+                if (failure.get() != null) {
+                    return;
+                }
+
+                FlockingSimulation simulation = new FlockingSimulation(configs.get(run), null);
+                simulation.run();
+
+                String row = toRow(run, simulation.getConfig(), simulation.getSurvivors());
+                synchronized (out) {
+                    if (failure.get() != null) {
+                        return;
+                    }
+
+                    try {
+                        out.write(row);
+                        out.newLine();
+                        out.flush();
+                    } catch (IOException e) {
+                        failure.set(e);
+                        return;
+                    }
+                }
+
+                System.out.printf("Finished run %d (%d/%d)%n", run, finished.incrementAndGet(), configs.size());
+            }));
+        }
+
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+
+        pool.shutdown();
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Creates the CSV row of a finished run.
+     * @param run Run number.
+     * @param config Settings of the run.
+     * @param survivors Number of living agents at every step.
+     * @return CSV row without a line separator.
+     */
+    private static String toRow(int run, SimulationConfig config, int[] survivors) {
+        StringBuilder row = new StringBuilder(32 + survivors.length * 5);
+        row.append(run).append(',')
+                .append(config.numberOfAgents).append(',')
+                .append(config.steps).append(',')
+                .append(config.seed).append(',')
+                .append(config.size).append(',')
+                .append(config.predatorReleaseStep).append(',')
+                .append(config.flockingPrey).append(',')
+                .append(config.flockingPredators);
+
+        for (int survivor : survivors) {
+            row.append(',').append(survivor);
+        }
+
+        return row.toString();
+    }
+
+    /**
+     * Parses a comma-separated list of integers.
+     * @param value List to parse.
+     * @return Parsed integers.
+     */
+    private static int[] parseInts(String value) {
+        String[] parts = value.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+
+        return values;
+    }
+
+    /**
+     * Parses a comma-separated list of booleans.
+     * @param value List to parse.
+     * @return Parsed booleans.
+     */
+    private static boolean[] parseBooleans(String value) {
+        String[] parts = value.split(",");
+        boolean[] values = new boolean[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim();
+            if (!part.equals("true") && !part.equals("false")) {
+                throw new IllegalArgumentException("Not a boolean: " + part);
+            }
+            values[i] = Boolean.parseBoolean(part);
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,125 @@
+package se.peterjonsson.flocking;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends simulation events to a binary event log while a simulation is running, so that analysis does not have
+ * to find them by comparing frames. Agents and predators are identified by their stable IDs, the same IDs as in
+ * the trajectory file.
+ *
+ * Events are buffered in memory and written in large blocks. All values are big-endian. The file consists of a
+ * header holding a magic number and the format version, followed by one record per event. A record starts with
+ * the event type and the step number. A {@link #KILL} record then holds the ID of the predator, the ID of the
+ * killed agent and the position of the agent as float32 x and y, 21 bytes in total.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class EventLog implements Closeable {
+
+    /**
+     * Magic number identifying an event log.
+     */
+    static final int MAGIC = 0x464c4556;
+
+    /**
+     * Current format version.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Event type of an agent being killed by a predator.
+     */
+    static final byte KILL = 0;
+
+    /**
+     * Size of the write buffer in bytes.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Stream of the file being written.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * File position that the {@link #out} stream started writing at.
+     */
+    private final long position;
+
+    /**
+     * Creates a new event log, replacing any existing file.
+     * @param path Path of the file.
+     * @throws IOException File could not be created.
+     */
+    EventLog(Path path) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), BUFFER_SIZE));
+        position = 0;
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    /**
+     * Continues an event log from a position returned by {@link #flush()}.
+     * Events written after that position are discarded.
+     * @param path Path of the file.
+     * @param position Length of the file to keep.
+     * @throws IOException File could not be opened, or is shorter than the position.
+     */
+    EventLog(Path path, long position) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        if (channel.size() < position) {
+            channel.close();
+            throw new IOException("Event log is shorter than the checkpoint: " + path);
+        }
+        channel.truncate(position);
+        channel.position(position);
+
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+        this.position = position;
+    }
+
+    /**
+     * Appends an event of an agent being killed by a predator.
+     * @param step Step number of the kill.
+     * @param predatorId Stable ID of the predator.
+     * @param preyId Stable ID of the killed agent.
+     * @param x Horizontal position of the killed agent.
+     * @param y Vertical position of the killed agent.
+     * @throws IOException Event could not be written.
+     */
+    void writeKill(int step, int predatorId, int preyId, double x, double y) throws IOException {
+        out.writeByte(KILL);
+        out.writeInt(step);
+        out.writeInt(predatorId);
+        out.writeInt(preyId);
+        out.writeFloat((float) x);
+        out.writeFloat((float) y);
+    }
+
+    /**
+     * Writes all buffered events to the file.
+     * @return Length of the file, which can be used for continuing the log after a restart.
+     * @throws IOException Events could not be written.
+     */
+    long flush() throws IOException {
+        out.flush();
+        return position + out.size();
+    }
+
+    /**
+     * Writes all buffered events and closes the file.
+     * @throws IOException File could not be completed.
+     */
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,251 @@
+package se.peterjonsson.flocking;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs a simulation from the command line and exports every frame as an image, without a user interface.
+ *
+ * Usage: {@code ExportRunner [--agents N] [--steps N] [--seed N] [--size N] [--output DIR] [--format png|jpg]
+ * [--quality Q] [--encoders N] [--queue N] [--threads N] [--pipe COMMAND]}
+ *
+ * Simulating, rendering and encoding overlap: the simulation runs on its own thread and hands a snapshot of
+ * every frame to the renderer, which renders it with a {@link TileRasterizer} and hands it to a
+ * {@link CustomImageWriter} for encoding. Every stage holds at most {@code --queue} frames and blocks the
+ * stage before it when full, so memory stays flat however slow the encoders are.
+ *
+ * Frames are written to the output directory as {@code frame00000.png} and so on. If a pipe command is given,
+ * frames are instead written as raw pixels to the standard input of that command, see {@link CustomImageWriter}.
+ * The command is split at spaces, and {@code {size}} is replaced by the image size, for example
+ * {@code --pipe "ffmpeg -y -f rawvideo -pix_fmt bgr0 -s {size}x{size} -r 30 -i - flocking.mp4"}.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+public class ExportRunner {
+
+    /**
+     * Usage text printed when the arguments are invalid.
+     */
+    private static final String USAGE = "Usage: ExportRunner [--agents N] [--steps N] [--seed N] [--size N] "
+            + "[--output DIR] [--format png|jpg] [--quality Q] [--encoders N] [--queue N] [--threads N] "
+            + "[--pipe COMMAND]";
+
+    /**
+     * Frame handed to the renderer once the simulation has finished.
+     */
+    private static final SimulationFrame END = new SimulationFrame(-1, 0, SwarmSnapshot.EMPTY,
+            Collections.emptyList(), SwarmSnapshot.EMPTY);
+
+    /**
+     * Called on application start.
+     * @param args Launch arguments.
+     */
+    public static void main(String[] args) {
+        int agents = 100;
+        int steps = FlockingSimulation.DEFAULT_STEPS;
+        long seed = FlockingSimulation.DEFAULT_SEED;
+        int size = FlockingSimulation.DEFAULT_SIZE;
+        Path output = Paths.get("");
+        String format = "png";
+        float quality = 0.9f;
+        int encoders = Runtime.getRuntime().availableProcessors();
+        int queue = 4;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String pipe = null;
+
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--agents":
+                        agents = Integer.parseInt(value);
+                        break;
+                    case "--steps":
+                        steps = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    case "--size":
+                        size = Integer.parseInt(value);
+                        break;
+                    case "--output":
+                        output = Paths.get(value);
+                        break;
+                    case "--format":
+                        format = value;
+                        break;
+                    case "--quality":
+                        quality = Float.parseFloat(value);
+                        break;
+                    case "--encoders":
+                        encoders = Integer.parseInt(value);
+                        break;
+                    case "--queue":
+                        queue = Integer.parseInt(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        break;
+                    case "--pipe":
+                        pipe = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+
+            if (encoders < 1 || queue < 1 || threads < 1) {
+                throw new IllegalArgumentException("Encoders, queue and threads must be at least 1");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        SimulationConfig config = new SimulationConfig(agents, steps, seed, size,
+                FlockingSimulation.DEFAULT_PREDATOR_RELEASE_STEP, FlockingSimulation.FLOCKING_PREY,
+                FlockingSimulation.FLOCKING_PREDATORS);
+        int imageSize = size * SimulationFrame.IMAGE_SCALE;
+
+        CustomImageWriter writer;
+        try {
+            if (pipe != null) {
+                List<String> command = Arrays.asList(pipe.replace("{size}", String.valueOf(imageSize)).split(" +"));
+                writer = new CustomImageWriter(command, encoders, queue);
+            } else {
+                Files.createDirectories(output);
+                writer = new CustomImageWriter(format, quality, encoders, queue);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+
+        long startTime = System.nanoTime();
+        int exported;
+        try {
+            exported = export(config, writer, output, format, queue, threads);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        System.out.printf("Exported %d frames of %dx%d pixels in %.3f s (%.2f frames/s)%n", exported, imageSize,
+                imageSize, seconds, exported / seconds);
+    }
+
+    /**
+     * Simulates and exports every frame, returning once every frame has been written.
+     * @param config Settings of the simulation.
+     * @param writer Writer encoding and writing the frames.
+     * @param output Directory that image files are written to.
+     * @param format File extension of image files.
+     * @param queue Maximum number of frames waiting in each stage.
+     * @param threads Number of threads rendering each frame.
+     * @return Number of frames written.
+     * @throws IOException Any frame could not be written, or the simulation failed.
+     */
+    private static int export(SimulationConfig config, CustomImageWriter writer, Path output, String format,
+                               int queue, int threads) throws IOException {
+        BlockingQueue<SimulationFrame> frames = new ArrayBlockingQueue<>(queue);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread simulationThread = new Thread(() -> {
+            try {
+                FlockingSimulation simulation = new FlockingSimulation(config, null);
+                simulation.setFrameListener(frame -> put(frames, frame));
+                simulation.run();
+            } catch (Throwable e) {
+                failure.set(e);
+            } finally {
+                put(frames, END);
+            }
+        }, "Simulation");
+        simulationThread.setDaemon(true);
+        simulationThread.start();
+
+        ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+        TileRasterizer rasterizer = null;
+
+        // Every frame being rendered, encoded or waiting to be written has a buffer of its own
+        BlockingQueue<int[]> freeBuffers = new LinkedBlockingQueue<>();
+        int buffers = 0;
+        int exported = 0;
+
+        try {
+            while (true) {
+                SimulationFrame frame = frames.take();
+                if (frame == END) {
+                    break;
+                }
+
+                if (rasterizer == null) {
+                    rasterizer = new TileRasterizer(frame.getSize(), frame.getObstacles(), pool);
+                }
+
+                int[] pixels = freeBuffers.poll();
+                if (pixels == null && buffers <= queue) {
+                    pixels = new int[rasterizer.getImageSize() * rasterizer.getImageSize()];
+                    buffers++;
+                } else if (pixels == null) {
+                    pixels = freeBuffers.take();
+                }
+
+                rasterizer.render(frame, pixels);
+
+                final int[] rendered = pixels;
+                Path path = output.resolve(String.format("frame%05d.%s", frame.getNumber(), format));
+                writer.writeImage(rasterizer.toImage(rendered), path, () -> freeBuffers.add(rendered));
+                exported++;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting frames", e);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+
+        writer.waitForImages();
+
+        if (failure.get() != null) {
+            throw new IOException("Simulation failed after " + exported + " frames", failure.get());
+        }
+
+        return exported;
+    }
+
+    /**
+     * Hands a frame to the renderer, waiting while the renderer is behind.
+     * @param frames Frames waiting to be rendered.
+     * @param frame Frame to hand over.
+     */
+    private static void put(BlockingQueue<SimulationFrame> frames, SimulationFrame frame) {
+        try {
+            frames.put(frame);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
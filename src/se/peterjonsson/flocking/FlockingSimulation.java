@@ -1,48 +1,91 @@
 package se.peterjonsson.flocking;
 
-import javafx.beans.property.DoubleProperty;
-import javafx.beans.property.SimpleDoubleProperty;
-
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.stream.IntStream;
 
 /**
  * A flocking simulation.
  *
  * @author Peter Jonsson <95jonpet@gmail.com>
  */
-class FlockingSimulation {
+class FlockingSimulation implements Closeable {
 
     static final boolean FLOCKING_PREY = true;
     static final boolean FLOCKING_PREDATORS = true;
-    //private static final Random random = new Random(861178936920257679L); // Randomized seed
+    //static final long DEFAULT_SEED = 861178936920257679L; // Randomized seed
 
-//    private static final Random random = new Random(766104113L);
-//    private static final Random random = new Random(965935330L);
-//    private static final Random random = new Random(187436842L);
-//    private static final Random random = new Random(696054169L);
-    private static final Random random = new Random(-915743478L);
+//    static final long DEFAULT_SEED = 766104113L;
+//    static final long DEFAULT_SEED = 965935330L;
+//    static final long DEFAULT_SEED = 187436842L;
+//    static final long DEFAULT_SEED = 696054169L;
+    static final long DEFAULT_SEED = -915743478L;
 
+    /**
+     * The default horizontal and vertical size of the simulation.
+     */
+    static final int DEFAULT_SIZE = 2048;
+
+    /**
+     * The default number of steps to simulate.
+     */
+    static final int DEFAULT_STEPS = 5000;
+
+    /**
+     * The default step at which the predators are released.
+     */
+    static final int DEFAULT_PREDATOR_RELEASE_STEP = 1000;
+
+    /**
+     * Number of chunks per thread that agents are split into when updating in parallel.
+     * Using more chunks than threads lets idle threads steal work from busy ones.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Random number generator used for placing agents.
+     */
+    private final SimulationRandom random;
+
+    /**
+     * Settings of the simulation.
+     */
+    private final SimulationConfig config;
 
     /**
      * The horizontal and vertical size of the simulation.
      */
-    static final int SIZE = 2048;
+    private final int size;
+
+    /**
+     * Directory that the results are written to, or null if no files are written.
+     */
+    private final Path outputDirectory;
 
     /**
-     * The number of steps to simulate.
+     * Number of living agents at every step simulated so far.
      */
-    static final int STEPS = 5000;
+    private final int[] survivors;
 
     /**
-     * List of all agents within the simulation.
+     * State of all agents within the simulation.
      */
-    private final List<Agent> agents = new ArrayList<>();
+    private final Swarm agents;
 
     /**
      * List of obstacles.
@@ -50,9 +93,106 @@ class FlockingSimulation {
     private final List<Obstacle> obstacles = new ArrayList<>();
 
     /**
-     * List of predators.
+     * Positions of all obstacles, created when the simulation starts running and shared by every snapshot.
+     */
+    private List<Position> obstaclePositions = Collections.emptyList();
+
+    /**
+     * Spatial index of all obstacles, built when the simulation starts running.
+     */
+    private final ObstacleIndex obstacleIndex;
+
+    /**
+     * Precomputed avoidance field of all obstacles, built when the simulation starts running if enabled.
      */
-    private final List<Predator> predators = new ArrayList<>();
+    private final ObstacleField obstacleField = new ObstacleField();
+
+    /**
+     * Distance between the nodes of the {@link #obstacleField}, or 0 if agents avoid the obstacles exactly.
+     */
+    private double obstacleFieldResolution = 0;
+
+    /**
+     * Indicates if agents visit their neighbours in the order of the grid cells instead of the order of the swarm.
+     */
+    private boolean cellOrder = false;
+
+    /**
+     * Verlet lists of the agents, or null if agents search the grid for their neighbours.
+     */
+    private NeighbourList neighbourList = null;
+
+    /**
+     * Order along a space-filling curve that agents are sorted into.
+     */
+    private final HilbertOrder agentOrder;
+
+    /**
+     * Number of steps between two sorts of the agents along the {@link #agentOrder}, or 0 if agents stay in the
+     * order they were added.
+     */
+    private int reorderInterval = 0;
+
+    /**
+     * State of all predators.
+     */
+    private final Swarm predators = new Swarm(4);
+
+    /**
+     * Spatial index of all agents, rebuilt at the start of every step.
+     */
+    private final SpatialGrid grid;
+
+    /**
+     * Indicates if the {@link #grid} has already been rebuilt for the current state, so that the next step does
+     * not have to rebuild it.
+     */
+    private boolean gridCurrent = false;
+
+    /**
+     * Measures the state after every step.
+     */
+    private final MetricsCollector metrics;
+
+    /**
+     * Format of the metrics file, or null if no metrics are written.
+     */
+    private MetricsWriter.Format metricsFormat = MetricsWriter.Format.CSV;
+
+    /**
+     * Number of agents killed in the last step.
+     */
+    private int stepKills = 0;
+
+    /**
+     * Agent that each predator would kill in the current step, or -1, before conflicts are resolved.
+     */
+    private int[] killTargets = new int[0];
+
+    /**
+     * Rules applied to every agent, one instance per chunk of agents.
+     */
+    private Agent[] agentRules;
+
+    /**
+     * Rules applied to every predator, one instance per chunk of predators.
+     */
+    private Predator[] predatorRules;
+
+    /**
+     * Pool used for updating in parallel, or null if the simulation is updated on the calling thread.
+     */
+    private ForkJoinPool pool = null;
+
+    /**
+     * Indicates if the simulation is updated in the double-buffered mode or not.
+     */
+    private boolean doubleBuffered = false;
+
+    /**
+     * Number of threads the simulation is updated with.
+     */
+    private int threads = 1;
 
     /**
      * Indicates if the simulation has finished or not.
@@ -65,32 +205,441 @@ class FlockingSimulation {
     private volatile boolean running = false;
 
     /**
-     * Array of individual simulation frames for each step of the simulation.
+     * Indicates if the simulation has been asked to stop before its last step.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Indicates if the simulation should wait before its next step.
+     */
+    private volatile boolean paused = false;
+
+    /**
+     * Lock that a paused simulation waits on.
+     */
+    private final Object pauseLock = new Object();
+
+    /**
+     * Number of steps simulated and recorded so far.
+     */
+    private volatile int simulatedSteps = 0;
+
+    /**
+     * Path of the trajectory file that every simulation frame is streamed to, or null if no files are written.
+     */
+    private final Path trajectoryPath;
+
+    /**
+     * Reader of the recorded frames, opened by the first {@link #getFrame(int)} once the simulation has finished.
+     */
+    private volatile TrajectoryReader trajectory = null;
+
+    /**
+     * Lock held while opening or closing the {@link #trajectory}.
+     */
+    private final Object trajectoryLock = new Object();
+
+    /**
+     * Indicates if the simulation has been closed or not.
      */
-    private final SimulationFrame[] frame = new SimulationFrame[STEPS];
+    private boolean closed = false;
 
     /**
-     * Property containing the current simulation progress.
+     * Path of the event log that every kill is appended to, or null if no files are written.
+     */
+    private final Path eventLogPath;
+
+    /**
+     * Event log being written while the simulation is running, or null if no events are logged.
+     */
+    private EventLog events = null;
+
+    /**
+     * Listener receiving the current simulation progress.
      * The value is between 0 and 1 inclusive.
      */
-    final DoubleProperty progressProperty = new SimpleDoubleProperty(0);
+    private volatile DoubleConsumer progressListener = progress -> { };
 
     /**
-     * Creates a new flocking simulation.
+     * Listener receiving a snapshot of every frame while the simulation is running, or null if no snapshots are
+     * taken.
+     */
+    private volatile Consumer<SimulationFrame> frameListener = null;
+
+    /**
+     * Number of agent updates performed so far.
+     */
+    private long agentUpdates = 0;
+
+    /**
+     * Number of steps between two checkpoints, or 0 if no checkpoints are written.
+     */
+    private int checkpointInterval = 0;
+
+    /**
+     * First step to simulate, which is after the checkpoint when resuming.
+     */
+    private int firstStep = 0;
+
+    /**
+     * State of the trajectory writer at the checkpoint being resumed from, or null if not resuming.
+     */
+    private byte[] resumedTrajectory = null;
+
+    /**
+     * Length of the event log at the checkpoint being resumed from, or -1 if not resuming.
+     */
+    private long resumedEventLog = -1;
+
+    /**
+     * Length of the metrics file at the checkpoint being resumed from, or -1 if not resuming.
+     */
+    private long resumedMetrics = -1;
+
+    /**
+     * Creates a new flocking simulation with the default settings, writing results to the working directory.
+     * @param numberOfAgents Number of agents to simulate.
      */
     FlockingSimulation(final int numberOfAgents) {
-        for (int i = 0; i < numberOfAgents; i++) {
-            addAgent(random.nextInt(SIZE), random.nextInt(SIZE));
+        this(new SimulationConfig(numberOfAgents), Paths.get(""));
+    }
+
+    /**
+     * Creates a new flocking simulation.
+     * Simulations do not share any state, so several simulations can run at the same time.
+     * @param config Settings of the simulation.
+     * @param outputDirectory Directory that the results are written to, or null to not write any files.
+     */
+    FlockingSimulation(final SimulationConfig config, final Path outputDirectory) {
+        this.config = config;
+        this.random = new SimulationRandom(config.seed);
+        this.size = config.size;
+        this.outputDirectory = outputDirectory;
+
+        survivors = new int[config.steps];
+        trajectoryPath = outputDirectory != null ? outputDirectory.resolve("trajectory.bin") : null;
+        eventLogPath = outputDirectory != null ? outputDirectory.resolve("events.bin") : null;
+        grid = new SpatialGrid(size, Agent.NEIGHBOUR_DISTANCE, Agent.SPEED);
+        agentOrder = new HilbertOrder(grid);
+        obstacleIndex = new ObstacleIndex(size, Agent.OBSTACLE_AVOIDANCE_DISTANCE);
+        agents = new Swarm(config.numberOfAgents);
+        agentRules = new Agent[] { new Agent(agents, obstacleIndex, obstacleField, predators, grid, config) };
+        predatorRules = new Predator[] { new Predator(agents, predators, grid, config) };
+        metrics = new MetricsCollector(agents, predators, grid);
+
+        placeAgents(config, random, agents, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Places the agents of a simulation at random, facing the middle of the simulation.
+     * Only the agents starting within a range of vertical positions are added, so that a part of the simulation
+     * can be created without the rest. Every agent gets the same ID, position and direction as in a simulation
+     * created with the same settings.
+     * @param config Settings of the simulation.
+     * @param random Random number generator seeded with the seed of the simulation.
+     * @param agents Swarm to add the agents to.
+     * @param top Lowest vertical position of the agents to add.
+     * @param bottom Vertical position below which agents are added.
+     */
+    static void placeAgents(final SimulationConfig config, final SimulationRandom random, final Swarm agents,
+                            final double top, final double bottom) {
+        for (int i = 0; i < config.numberOfAgents; i++) {
+            int x = random.nextInt(config.size);
+            int y = random.nextInt(config.size);
+            if (y >= top && y < bottom) {
+                addFacingCenter(agents, config.size, x, y, i);
+            }
+        }
+    }
+
+    /**
+     * Resumes a simulation from the last checkpoint in its output directory.
+     * The output files are continued from the checkpoint, and running the simulation gives exactly the same files
+     * as a run that was never interrupted, also when checkpoints are taken with the same interval.
+     * The update mode and the number of threads are restored too, since the double-buffered mode gives different
+     * results than the default in-place update.
+     * @param outputDirectory Output directory of the interrupted simulation.
+     * @return Simulation continuing from the checkpoint.
+     * @throws IOException Checkpoint could not be read.
+     */
+    static FlockingSimulation resume(final Path outputDirectory) throws IOException {
+        try (DataInputStream in = CheckpointWriter.open(outputDirectory.resolve("checkpoint.bin"))) {
+            long metricsPosition = in.readLong();
+
+            SimulationConfig config = new SimulationConfig(in.readInt(), in.readInt(), in.readLong(), in.readInt(),
+                    in.readInt(), in.readBoolean(), in.readBoolean());
+            FlockingSimulation simulation = new FlockingSimulation(config, outputDirectory);
+            simulation.readState(in);
+            simulation.resumedMetrics = metricsPosition;
+
+            return simulation;
         }
     }
 
+    /**
+     * Gets the number of steps to simulate.
+     * @return Number of steps.
+     */
+    int getSteps() {
+        return config.steps;
+    }
+
+    /**
+     * Gets the number of steps simulated so far.
+     * Once the simulation has finished this is the number of available frames, which is less than
+     * {@link #getSteps()} if the simulation was cancelled.
+     * @return Number of simulated steps.
+     */
+    int getSimulatedSteps() {
+        return simulatedSteps;
+    }
+
+    /**
+     * Gets the settings of the simulation.
+     * @return Simulation settings.
+     */
+    SimulationConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Gets the number of living agents at every step.
+     * This is the same survival curve that is written to {@code result.txt}.
+     * @return Number of living agents per step, only complete once the simulation has finished.
+     */
+    int[] getSurvivors() {
+        return survivors;
+    }
+
+    /**
+     * Gets the number of agent updates performed so far.
+     * @return Number of agent updates.
+     */
+    long getAgentUpdates() {
+        return agentUpdates;
+    }
+
+    /**
+     * Sets the listener receiving the simulation progress.
+     * The listener is called from the thread running the simulation.
+     * @param progressListener Listener receiving a value between 0 and 1 inclusive.
+     */
+    void setProgressListener(final DoubleConsumer progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Sets the listener receiving a snapshot of every frame while the simulation is running.
+     * The listener is called from the thread running the simulation, which lets it slow the simulation down.
+     * Snapshots hold the same single-precision values as the frames read back from the trajectory file.
+     * @param frameListener Listener receiving every frame, or null to not take snapshots.
+     */
+    void setFrameListener(final Consumer<SimulationFrame> frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    /**
+     * Adds the obstacles read from a file, see {@link ObstacleFile}.
+     * This must be called before the simulation is run.
+     * @param path Path of a circle list or bitmap mask.
+     * @throws IOException File could not be read or is not a valid obstacle file.
+     */
+    void loadObstacles(final Path path) throws IOException {
+        for (Obstacle obstacle : ObstacleFile.read(path, size)) {
+            addObstacle(obstacle.x, obstacle.y);
+        }
+    }
+
+    /**
+     * Lets agents avoid obstacles by sampling a precomputed field instead of visiting the obstacles near them,
+     * see {@link ObstacleField}. This makes avoidance take constant time per agent, but only approximates it.
+     * This must be called before the simulation is run.
+     * @param resolution Distance between the nodes of the field, or 0 to avoid obstacles exactly.
+     */
+    void setObstacleFieldResolution(final double resolution) {
+        this.obstacleFieldResolution = resolution;
+    }
+
+    /**
+     * Lets agents visit their neighbours cell by cell instead of in swarm order, which skips merging the grid
+     * cells into swarm order, see {@link GridSearch#queryUnordered(double, double, double)}. This is much faster in
+     * crowded simulations, but the sums round differently, so the results are not bit-identical to a simulation
+     * without it. They are still the same on every run.
+     * This must be called before the simulation is run.
+     * @param cellOrder Visit neighbours cell by cell, or false to visit them in swarm order.
+     */
+    void setCellOrder(final boolean cellOrder) {
+        this.cellOrder = cellOrder;
+    }
+
+    /**
+     * Lets agents read their neighbours from Verlet lists that are only rebuilt once agents have moved too far,
+     * see {@link NeighbourList}. The results are exactly the same as without the lists.
+     * This must be called before the simulation is run.
+     * @param skin Distance listed beyond the neighbour radius, which must be larger than {@link Agent#SPEED},
+     *             or 0 to search the grid in every step.
+     */
+    void setVerletSkin(final double skin) {
+        if (skin > 0 && skin <= Agent.SPEED) {
+            throw new IllegalArgumentException("Verlet skin must be larger than " + Agent.SPEED);
+        }
+
+        neighbourList = skin > 0 ? new NeighbourList(grid, Agent.NEIGHBOUR_DISTANCE, skin) : null;
+    }
+
+    /**
+     * Sorts the agents along a space-filling curve every few steps, so that agents that are neighbours in space are
+     * also close in memory, see {@link HilbertOrder}. This makes visiting neighbours miss the cache less, which
+     * matters in large simulations. Agents are updated in the new order and keep their IDs, so the recorded files
+     * still follow the IDs, but the results are not bit-identical to a simulation without it. They are still the
+     * same on every run.
+     * This must be called before the simulation is run.
+     * @param reorderInterval Number of steps between two sorts, or 0 to keep agents in the order they were added.
+     */
+    void setReorderInterval(final int reorderInterval) {
+        if (reorderInterval < 0) {
+            throw new IllegalArgumentException("Reorder interval must not be negative");
+        }
+
+        this.reorderInterval = reorderInterval;
+    }
+
+    /**
+     * Gets the number of times the Verlet lists have been built.
+     * @return Number of rebuilds, or 0 if the lists are not used.
+     */
+    int getNeighbourListRebuilds() {
+        return neighbourList != null ? neighbourList.getRebuilds() : 0;
+    }
+
+    /**
+     * Sets the format of the metrics file written to the output directory.
+     * The file is named {@code metrics.csv} or {@code metrics.bin} depending on the format.
+     * This must be called before the simulation is run.
+     * @param metricsFormat Format of the metrics file, or null to not measure the simulation.
+     */
+    void setMetricsFormat(final MetricsWriter.Format metricsFormat) {
+        this.metricsFormat = metricsFormat;
+    }
+
+    /**
+     * Sets how often a checkpoint is written to the output directory, see {@link #resume(Path)}.
+     * Checkpoints are written in the background, so the simulation does not wait for them.
+     * This must be called before the simulation is run.
+     * @param checkpointInterval Number of steps between two checkpoints, or 0 to not write any checkpoints.
+     */
+    void setCheckpointInterval(final int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Switches to the double-buffered update mode.
+     * Every agent and predator is then updated from the state at the start of the step, which makes the
+     * result independent of update order and lets the step be split across several threads.
+     * The result is the same for any number of threads, but differs from the default in-place update.
+     * This must be called before the simulation is run.
+     * @param threads Number of threads to update the simulation with.
+     */
+    void enableDoubleBuffering(final int threads) {
+        this.doubleBuffered = true;
+        this.threads = threads;
+        agents.setDoubleBuffered(true);
+        predators.setDoubleBuffered(true);
+
+        int chunks = threads > 1 ? threads * CHUNKS_PER_THREAD : 1;
+        agentRules = new Agent[chunks];
+        predatorRules = new Predator[chunks];
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            agentRules[chunk] = new Agent(agents, obstacleIndex, obstacleField, predators, grid, config);
+            predatorRules[chunk] = new Predator(agents, predators, grid, config);
+        }
+
+        pool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /**
+     * Gets the number of threads the simulation is updated with, which is restored when resuming.
+     * @return Number of threads, which is 1 unless double buffering was enabled with more threads.
+     */
+    int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Gets if the simulation is updated in the double-buffered mode, which is restored when resuming.
+     * @return Double buffering is enabled.
+     */
+    boolean isDoubleBuffered() {
+        return doubleBuffered;
+    }
+
     /**
      * Gets a specific simulation frame.
+     * Frames are read lazily from the trajectory file, so this is not available until the simulation has finished.
+     * The file is opened by the first call, and stays open until {@link #close()}.
      * @param index Frame index.
-     * @return Requested simulation frame.
+     * @return Requested simulation frame, or null if the simulation has not finished, records no frames or has
+     * been closed.
      */
     SimulationFrame getFrame(final int index) {
-        return frame[index];
+        TrajectoryReader reader = openTrajectoryReader();
+        return reader != null && index < reader.getFrameCount() ? reader.getFrame(index) : null;
+    }
+
+    /**
+     * Closes the trajectory file, if it has been opened by {@link #getFrame(int)}.
+     * Frames can not be read after this.
+     * @throws IOException File could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (trajectoryLock) {
+            closed = true;
+            if (trajectory != null) {
+                trajectory.close();
+                trajectory = null;
+            }
+        }
+    }
+
+    /**
+     * Asks the simulation to stop before its next step.
+     * The steps simulated so far are still recorded, and the simulation counts as finished once it has stopped.
+     * This can be called from any thread, also while the simulation is paused.
+     */
+    void cancel() {
+        cancelled = true;
+        synchronized (pauseLock) {
+            pauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Gets if the simulation has been cancelled or not.
+     * @return Simulation was cancelled.
+     */
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Pauses or resumes the simulation. A paused simulation waits before its next step.
+     * This can be called from any thread.
+     * @param paused Pause the simulation.
+     */
+    void setPaused(final boolean paused) {
+        synchronized (pauseLock) {
+            this.paused = paused;
+            pauseLock.notifyAll();
+        }
+    }
+
+    /**
+     * Gets if the simulation is paused or not.
+     * @return Simulation is paused.
+     */
+    boolean isPaused() {
+        return paused;
     }
 
     /**
@@ -102,46 +651,90 @@ class FlockingSimulation {
             return;
 
         running = true;
-        progressProperty.set(0);
+        progressListener.accept(0);
 
-        Path path = Paths.get("result.txt");
-        try {
-            Files.deleteIfExists(path);
-        } catch (IOException e) {
-            e.printStackTrace();
+        // Obstacles never move, so they are only indexed once
+        obstacleIndex.build(obstacles);
+        List<Position> positions = new ArrayList<>(obstacles.size());
+        for (Obstacle obstacle : obstacles) {
+            positions.add(new Position(obstacle.x, obstacle.y));
+        }
+        obstaclePositions = Collections.unmodifiableList(positions);
+        if (obstacleFieldResolution > 0) {
+            obstacleField.build(obstacleIndex, size, obstacleFieldResolution);
+        }
+        for (Agent rules : agentRules) {
+            rules.setCellOrder(cellOrder);
+            rules.setNeighbourList(neighbourList);
         }
 
-        try (BufferedWriter out = Files.newBufferedWriter(path, Charset.defaultCharset())) {
+        Path metricsPath = null;
+        if (outputDirectory != null && metricsFormat != null) {
+            metricsPath = outputDirectory.resolve(metricsFormat == MetricsWriter.Format.CSV
+                    ? "metrics.csv" : "metrics.bin");
+        }
+        double[] metricsRow = new double[MetricsCollector.COLUMNS.length];
+
+        // Without an output directory only the survival curve is recorded
+        try (MetricsWriter out = metricsPath != null ? openMetrics(metricsPath) : null;
+             TrajectoryWriter frames = trajectoryPath != null ? openTrajectory() : null;
+             EventLog eventLog = eventLogPath != null ? openEventLog() : null;
+             CheckpointWriter checkpoints = outputDirectory != null && checkpointInterval > 0
+                     ? new CheckpointWriter(outputDirectory.resolve("checkpoint.bin")) : null) {
+            events = eventLog;
+
             // Simulate steps as frames
-            for (int i = 0; i < STEPS; i++) {
+            for (int i = firstStep; i < config.steps; i++) {
+                if (paused) {
+                    waitWhilePaused();
+                }
+                if (cancelled) {
+                    break;
+                }
+
                 if (i > 0) {
                     update(i);
                 }
 
-                List<Position> agentList = new LinkedList<>();
-                for (Agent agent : agents) {
-                    agentList.add(new Position(agent.getX(), agent.getY(), agent.getAngle()));
-                }
+                survivors[i] = agents.size();
 
-                List<Position> obstacleList = new LinkedList<>();
-                for (Obstacle obstacle : obstacles) {
-                    obstacleList.add(new Position(obstacle.x, obstacle.y));
+                if (frames != null) {
+                    frames.writeFrame(i, agents, predators);
                 }
 
-                List<Position> predatorList = new LinkedList<>();
-                for (Predator predator : predators) {
-                    predatorList.add(new Position(predator.getX(), predator.getY(), predator.getAngle()));
+                Consumer<SimulationFrame> listener = frameListener;
+                if (listener != null) {
+                    listener.accept(snapshot(i));
                 }
 
-                frame[i] = new SimulationFrame(i, agentList, obstacleList, predatorList);
+                if (out != null) {
+                    metrics.measure(i, stepKills, metricsRow);
+                    gridCurrent = true;
+                    out.write(metricsRow);
+                }
 
-                progressProperty.set((double) i / STEPS);
+                simulatedSteps = i + 1;
+                progressListener.accept((double) i / config.steps);
 
-                out.write(""+agents.size());
-                out.newLine();
+                if (checkpoints != null && (i + 1) % checkpointInterval == 0 && i + 1 < config.steps) {
+                    // Metrics are marked at every checkpoint, also skipped ones, so that their batches do not
+                    // depend on timing
+                    Future<Long> metricsPosition = out != null ? out.mark() : null;
+                    checkpoints.write(writeState(i, frames, eventLog), metricsPosition);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            events = null;
+        }
+
+        if (pool != null) {
+            pool.shutdown();
+        }
+
+        if (outputDirectory != null) {
+            writeSurvivors(outputDirectory.resolve("result.txt"), survivors, simulatedSteps);
         }
 
         running = false;
@@ -150,30 +743,365 @@ class FlockingSimulation {
 
     /**
      * Updates the simulation by stepping forward once.
+     * Predators are released when the configured release step is reached.
+     * @param step Number of the step to simulate.
      */
-    private void update(int step) {
-        if (step == 1000) {
-            releasePredators();
+    void update(int step) {
+        if (step == config.predatorReleaseStep) {
+            releasePredators(predators, size);
+        }
+
+        if (reorderInterval > 0 && step % reorderInterval == 0) {
+            agents.reorder(agentOrder.sort(agents));
+            gridCurrent = false;
+            if (neighbourList != null) {
+                neighbourList.invalidate();
+            }
         }
 
-        for (Agent agent : agents) {
-            agent.update();
+        if (!gridCurrent) {
+            grid.rebuild(agents);
         }
+        gridCurrent = false;
+        stepKills = 0;
 
-        for (Predator predator : predators) {
-            predator.update();
+        if (neighbourList != null) {
+            neighbourList.update(agents);
         }
 
-        agents.removeIf(Agent::isDead); // Remove killed agents
+        agentUpdates += agents.size();
+        updateAgents();
+        updatePredators();
+
+        agents.swap();
+        predators.swap();
+
+        findKills();
+
+        // Kills are resolved in predator order, since an agent can only be killed once. A predator whose agent was
+        // taken by an earlier predator searches again, which gives the same kills as searching one at a time.
+        for (int predator = 0; predator < predators.size(); predator++) {
+            int killed = killTargets[predator];
+            if (killed != -1 && agents.isDead(killed)) {
+                killed = predatorRules[0].findKill(predator);
+            }
+
+            if (killed != -1) {
+                agents.kill(killed);
+                stepKills++;
+                if (events != null) {
+                    logKill(step, predator, killed);
+                }
+            }
+        }
+
+        if (neighbourList != null) {
+            neighbourList.removeDead(agents);
+        }
+        agents.removeDead(); // Remove killed agents
+    }
+
+    /**
+     * Opens the reader of the recorded frames, unless it is already open.
+     * @return Reader of the frames, or null if the simulation has not finished, records no frames or has been
+     * closed.
+     */
+    private TrajectoryReader openTrajectoryReader() {
+        TrajectoryReader reader = trajectory;
+        if (reader != null || !finished || trajectoryPath == null) {
+            return reader;
+        }
+
+        synchronized (trajectoryLock) {
+            if (trajectory == null && !closed) {
+                try {
+                    trajectory = new TrajectoryReader(trajectoryPath);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return trajectory;
+        }
     }
 
     /**
-     * Adds an agent to the simulation.
-     * @param x Horizontal starting position of the agent.
-     * @param y Vertical starting position of the agent.
+     * Opens the metrics file, continuing it if resuming from a checkpoint.
+     * @param path Path of the metrics file.
+     * @return Writer of the metrics.
+     * @throws IOException File could not be opened.
      */
-    private void addAgent(int x, int y) {
-        agents.add(new Agent(x, y, agents, obstacles, predators));
+    private MetricsWriter openMetrics(Path path) throws IOException {
+        if (resumedMetrics >= 0) {
+            return new MetricsWriter(path, metricsFormat, MetricsCollector.COLUMNS.length, resumedMetrics);
+        }
+
+        return new MetricsWriter(path, metricsFormat, MetricsCollector.COLUMNS);
+    }
+
+    /**
+     * Opens the trajectory file, continuing it if resuming from a checkpoint.
+     * @return Writer of the trajectory.
+     * @throws IOException File could not be opened.
+     */
+    private TrajectoryWriter openTrajectory() throws IOException {
+        if (resumedTrajectory != null) {
+            return new TrajectoryWriter(trajectoryPath,
+                    new DataInputStream(new ByteArrayInputStream(resumedTrajectory)));
+        }
+
+        return new TrajectoryWriter(trajectoryPath, size, obstacles);
+    }
+
+    /**
+     * Opens the event log, continuing it if resuming from a checkpoint.
+     * @return Event log.
+     * @throws IOException File could not be opened.
+     */
+    private EventLog openEventLog() throws IOException {
+        if (resumedEventLog >= 0) {
+            return new EventLog(eventLogPath, resumedEventLog);
+        }
+
+        return new EventLog(eventLogPath);
+    }
+
+    /**
+     * Writes the state after a step, so that the simulation can be continued from it.
+     * @param step Last simulated step.
+     * @param frames Writer of the trajectory, or null if no trajectory is written.
+     * @param eventLog Event log, or null if no events are logged.
+     * @return State read by {@link #readState(DataInputStream)}.
+     * @throws IOException Output files could not be flushed.
+     */
+    private byte[] writeState(int step, TrajectoryWriter frames, EventLog eventLog) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(config.numberOfAgents);
+        out.writeInt(config.steps);
+        out.writeLong(config.seed);
+        out.writeInt(config.size);
+        out.writeInt(config.predatorReleaseStep);
+        out.writeBoolean(config.flockingPrey);
+        out.writeBoolean(config.flockingPredators);
+
+        out.writeInt(step);
+        out.writeLong(agentUpdates);
+        out.writeLong(random.getState());
+        out.writeInt(metricsFormat != null ? metricsFormat.ordinal() : -1);
+        out.writeDouble(obstacleFieldResolution);
+        out.writeBoolean(cellOrder);
+        out.writeInt(reorderInterval);
+        out.writeBoolean(doubleBuffered);
+        out.writeInt(threads);
+        for (int i = 0; i <= step; i++) {
+            out.writeInt(survivors[i]);
+        }
+
+        agents.writeState(out);
+        predators.writeState(out);
+        out.writeInt(obstacles.size());
+        for (Obstacle obstacle : obstacles) {
+            out.writeInt(obstacle.x);
+            out.writeInt(obstacle.y);
+        }
+
+        out.writeLong(eventLog != null ? eventLog.flush() : -1);
+        out.writeBoolean(frames != null);
+        if (frames != null) {
+            frames.writeState(out);
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Restores a state written by {@link #writeState(int, TrajectoryWriter, EventLog)}, following the settings.
+     * @param in Input to read from.
+     * @throws IOException State could not be read.
+     */
+    private void readState(DataInputStream in) throws IOException {
+        int step = in.readInt();
+        agentUpdates = in.readLong();
+        random.setState(in.readLong());
+        int format = in.readInt();
+        metricsFormat = format >= 0 ? MetricsWriter.Format.values()[format] : null;
+        obstacleFieldResolution = in.readDouble();
+        cellOrder = in.readBoolean();
+        reorderInterval = in.readInt();
+        boolean resumeDoubleBuffered = in.readBoolean();
+        int resumeThreads = in.readInt();
+        if (resumeDoubleBuffered) {
+            enableDoubleBuffering(resumeThreads);
+        }
+        for (int i = 0; i <= step; i++) {
+            survivors[i] = in.readInt();
+        }
+
+        agents.readState(in);
+        predators.readState(in);
+        obstacles.clear();
+        int obstacleCount = in.readInt();
+        for (int i = 0; i < obstacleCount; i++) {
+            obstacles.add(new Obstacle(in.readInt(), in.readInt()));
+        }
+
+        resumedEventLog = in.readLong();
+        if (in.readBoolean()) {
+            ByteArrayOutputStream trajectoryState = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                trajectoryState.write(buffer, 0, length);
+            }
+            resumedTrajectory = trajectoryState.toByteArray();
+        }
+
+        firstStep = step + 1;
+        simulatedSteps = firstStep;
+    }
+
+    /**
+     * Waits until the simulation is resumed or cancelled.
+     */
+    private void waitWhilePaused() {
+        synchronized (pauseLock) {
+            while (paused && !cancelled) {
+                try {
+                    pauseLock.wait();
+                } catch (InterruptedException e) {
+                    // Interrupting a paused simulation stops it, like cancelling
+                    Thread.currentThread().interrupt();
+                    cancelled = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a survival curve, one number of living agents per line.
+     * @param path Path of the file.
+     * @param survivors Number of living agents after every step.
+     * @param steps Number of simulated steps to write.
+     */
+    static void writeSurvivors(Path path, int[] survivors, int steps) {
+        try (BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < steps; i++) {
+                out.write(Integer.toString(survivors[i]));
+                out.newLine();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Appends a kill to the {@link #events} log.
+     * Logging stops if the log can not be written, without stopping the simulation.
+     * @param step Step number of the kill.
+     * @param predator Index of the predator.
+     * @param agent Index of the killed agent.
+     */
+    private void logKill(int step, int predator, int agent) {
+        try {
+            events.writeKill(step, predators.id[predator], agents.id[agent], agents.x[agent], agents.y[agent]);
+        } catch (IOException e) {
+            e.printStackTrace();
+            events = null;
+        }
+    }
+
+    /**
+     * Updates all agents, in parallel if there is a {@link #pool}.
+     */
+    private void updateAgents() {
+        final int count = agents.size();
+
+        if (pool == null) {
+            for (int agent = 0; agent < count; agent++) {
+                agentRules[0].update(agent);
+            }
+            return;
+        }
+
+        final int chunks = agentRules.length;
+        pool.submit(() -> IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int end = chunkStart(chunk + 1, chunks, count);
+            for (int agent = chunkStart(chunk, chunks, count); agent < end; agent++) {
+                agentRules[chunk].update(agent);
+            }
+        })).join();
+    }
+
+    /**
+     * Updates all predators, in parallel if there is a {@link #pool}.
+     */
+    private void updatePredators() {
+        final int count = predators.size();
+
+        if (pool == null) {
+            for (int predator = 0; predator < count; predator++) {
+                predatorRules[0].update(predator);
+            }
+            return;
+        }
+
+        final int chunks = Math.min(predatorRules.length, count);
+        pool.submit(() -> IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int end = chunkStart(chunk + 1, chunks, count);
+            for (int predator = chunkStart(chunk, chunks, count); predator < end; predator++) {
+                predatorRules[chunk].update(predator);
+            }
+        })).join();
+    }
+
+    /**
+     * Finds the agent that every predator would kill into {@link #killTargets}, in parallel if there is a
+     * {@link #pool}. No agent is killed yet.
+     */
+    private void findKills() {
+        final int count = predators.size();
+        if (killTargets.length < count) {
+            killTargets = new int[count];
+        }
+
+        if (pool == null) {
+            for (int predator = 0; predator < count; predator++) {
+                killTargets[predator] = predatorRules[0].findKill(predator);
+            }
+            return;
+        }
+
+        final int chunks = Math.min(predatorRules.length, count);
+        pool.submit(() -> IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            int end = chunkStart(chunk + 1, chunks, count);
+            for (int predator = chunkStart(chunk, chunks, count); predator < end; predator++) {
+                killTargets[predator] = predatorRules[chunk].findKill(predator);
+            }
+        })).join();
+    }
+
+    /**
+     * Takes a snapshot of the current state as a frame.
+     * Obstacles never move, so every frame shares the same obstacle positions.
+     * @param step Step number of the frame.
+     * @return Frame holding copies of all agent and predator states.
+     */
+    private SimulationFrame snapshot(int step) {
+        return new SimulationFrame(step, size, SwarmSnapshot.of(agents), obstaclePositions,
+                SwarmSnapshot.of(predators));
+    }
+
+    /**
+     * Gets the first index of a chunk when splitting a range of indices into equally sized chunks.
+     * @param chunk Chunk number.
+     * @param chunks Total number of chunks.
+     * @param count Total number of indices.
+     * @return First index of the chunk.
+     */
+    private static int chunkStart(int chunk, int chunks, int count) {
+        return (int) ((long) count * chunk / chunks);
     }
 
     /**
@@ -186,20 +1114,32 @@ class FlockingSimulation {
     }
 
     /**
-     * Adds a predator to the simulation.
-     * @param x Horizontal starting position of the predator.
-     * @param y Vertical starting position of the predator.
+     * Adds an entity facing the middle of a simulation.
+     * @param swarm Swarm to add the entity to.
+     * @param size Horizontal and vertical size of the simulation.
+     * @param x Horizontal starting position.
+     * @param y Vertical starting position.
+     * @param id Stable ID of the entity.
      */
-    private void addPredator(int x, int y) {
-        predators.add(new Predator(x, y, agents, obstacles, predators));
+    private static void addFacingCenter(Swarm swarm, int size, int x, int y, int id) {
+        double toCenterX = size / 2 - x;
+        double toCenterY = size / 2 - y;
+        double length = Math.hypot(toCenterX, toCenterY);
+
+        swarm.add(x, y, toCenterX / length, toCenterY / length, id);
     }
 
-    private void releasePredators() {
+    /**
+     * Adds the predators around the middle of a simulation.
+     * @param predators Swarm to add the predators to, which must be empty.
+     * @param size Horizontal and vertical size of the simulation.
+     */
+    static void releasePredators(Swarm predators, int size) {
         int d = 16;
 
-        addPredator(SIZE / 2 - d, SIZE / 2 - d);
-        addPredator(SIZE / 2 + d, SIZE / 2 - d);
-        addPredator(SIZE / 2 - d, SIZE / 2 + d);
-        addPredator(SIZE / 2 + d, SIZE / 2 + d);
+        addFacingCenter(predators, size, size / 2 - d, size / 2 - d, 0);
+        addFacingCenter(predators, size, size / 2 + d, size / 2 - d, 1);
+        addFacingCenter(predators, size, size / 2 - d, size / 2 + d, 2);
+        addFacingCenter(predators, size, size / 2 + d, size / 2 + d, 3);
     }
 }
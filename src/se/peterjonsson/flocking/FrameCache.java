@@ -0,0 +1,111 @@
+package se.peterjonsson.flocking;
+
+import javafx.scene.image.WritableImage;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of rendered frames, all with the same resolution.
+ * Images that are no longer needed can be recycled, so that rendering new frames does not allocate new images.
+ * This class is not thread-safe.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class FrameCache {
+
+    /**
+     * Width of every image in pixels.
+     */
+    final int width;
+
+    /**
+     * Height of every image in pixels.
+     */
+    final int height;
+
+    /**
+     * Maximum number of cached frames.
+     */
+    private final int capacity;
+
+    /**
+     * Cached images by frame index, from least to most recently used.
+     */
+    private final LinkedHashMap<Integer, WritableImage> images;
+
+    /**
+     * Images that can be reused for rendering new frames.
+     */
+    private final ArrayDeque<WritableImage> free = new ArrayDeque<>();
+
+    /**
+     * Creates a new empty cache.
+     * @param width Width of every image in pixels.
+     * @param height Height of every image in pixels.
+     * @param capacity Maximum number of cached frames.
+     */
+    FrameCache(int width, int height, int capacity) {
+        this.width = width;
+        this.height = height;
+        this.capacity = capacity;
+        images = new LinkedHashMap<>(capacity * 2, 0.75f, true);
+    }
+
+    /**
+     * Gets a cached frame and marks it as recently used.
+     * @param frame Frame index.
+     * @return Rendered frame, or null if the frame is not cached.
+     */
+    WritableImage get(int frame) {
+        return images.get(frame);
+    }
+
+    /**
+     * Gets if a frame is cached, without marking it as recently used.
+     * @param frame Frame index.
+     * @return Frame is cached.
+     */
+    boolean contains(int frame) {
+        return images.containsKey(frame);
+    }
+
+    /**
+     * Adds a rendered frame, evicting the least recently used frame if the cache is full.
+     * @param frame Frame index.
+     * @param image Rendered frame.
+     * @return Evicted image, or null if no image was evicted.
+     */
+    WritableImage put(int frame, WritableImage image) {
+        images.put(frame, image);
+        if (images.size() <= capacity) {
+            return null;
+        }
+
+        Iterator<Map.Entry<Integer, WritableImage>> eldest = images.entrySet().iterator();
+        WritableImage evicted = eldest.next().getValue();
+        eldest.remove();
+
+        return evicted;
+    }
+
+    /**
+     * Gets an image to render a new frame into, reusing a recycled image if possible.
+     * @return Image with the resolution of the cache.
+     */
+    WritableImage obtain() {
+        WritableImage image = free.poll();
+        return image != null ? image : new WritableImage(width, height);
+    }
+
+    /**
+     * Makes an image available for rendering new frames.
+     * The image must not be cached or displayed.
+     * @param image Image to recycle.
+     */
+    void recycle(WritableImage image) {
+        free.push(image);
+    }
+}
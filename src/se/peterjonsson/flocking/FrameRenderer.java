@@ -0,0 +1,304 @@
+package se.peterjonsson.flocking;
+
+import javafx.application.Platform;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.WritableImage;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Renders simulation frames for an {@link ImageView} on a background thread.
+ *
+ * Frames are rendered at the display resolution of the image view instead of the full image resolution.
+ * A downscaled preview is shown first, followed by the frame at display resolution. Rendered frames are kept in
+ * least recently used caches, and frames ahead of the current frame, in the direction of scrubbing, are
+ * prefetched as previews while the renderer is otherwise idle. Images and canvases are reused, so rendering
+ * does not allocate new images once the caches are full.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class FrameRenderer {
+
+    /**
+     * Size of the display resolution relative to the preview resolution.
+     */
+    private static final int PREVIEW_DIVISOR = 4;
+
+    /**
+     * Maximum number of cached previews.
+     */
+    private static final int PREVIEW_CACHE_SIZE = 128;
+
+    /**
+     * Maximum number of cached frames at display resolution.
+     */
+    private static final int FULL_CACHE_SIZE = 8;
+
+    /**
+     * Number of frames to prefetch ahead of the current frame.
+     */
+    private static final int PREFETCH_FRAMES = 16;
+
+    /**
+     * Simulation providing the frames.
+     */
+    private final FlockingSimulation simulation;
+
+    /**
+     * Image view displaying the frames.
+     */
+    private final ImageView imageView;
+
+    /**
+     * Cached previews.
+     */
+    private final FrameCache previews;
+
+    /**
+     * Cached frames at display resolution.
+     */
+    private final FrameCache full;
+
+    /**
+     * Canvas that previews are drawn onto before being copied to an image.
+     */
+    private final BufferedImage previewCanvas;
+
+    /**
+     * Canvas that frames at display resolution are drawn onto before being copied to an image.
+     */
+    private final BufferedImage fullCanvas;
+
+    /**
+     * Number of the latest request, increased every time a frame is requested.
+     */
+    private long request = 0;
+
+    /**
+     * Index of the latest requested frame, or -1 if no frame has been requested.
+     */
+    private int requestedFrame = -1;
+
+    /**
+     * Direction of scrubbing, 1 when moving forward and -1 when moving backward.
+     */
+    private int direction = 1;
+
+    /**
+     * Image currently displayed by the image view.
+     */
+    private WritableImage shown = null;
+
+    /**
+     * Image about to be displayed by the image view.
+     */
+    private WritableImage pending = null;
+
+    /**
+     * Creates a new renderer and starts its background thread.
+     * The display resolution is taken from the fit size of the image view.
+     * @param simulation Simulation providing the frames.
+     * @param imageView Image view displaying the frames.
+     */
+    FrameRenderer(FlockingSimulation simulation, ImageView imageView) {
+        this.simulation = simulation;
+        this.imageView = imageView;
+
+        int imageSize = simulation.getConfig().size * SimulationFrame.IMAGE_SCALE;
+        int width = imageView.getFitWidth() > 0 ? (int) Math.ceil(imageView.getFitWidth()) : imageSize;
+        int height = imageView.getFitHeight() > 0 ? (int) Math.ceil(imageView.getFitHeight()) : imageSize;
+
+        full = new FrameCache(width, height, FULL_CACHE_SIZE);
+        previews = new FrameCache(Math.max(1, width / PREVIEW_DIVISOR), Math.max(1, height / PREVIEW_DIVISOR),
+                PREVIEW_CACHE_SIZE);
+        fullCanvas = new BufferedImage(full.width, full.height, BufferedImage.TYPE_INT_ARGB_PRE);
+        previewCanvas = new BufferedImage(previews.width, previews.height, BufferedImage.TYPE_INT_ARGB_PRE);
+
+        Thread thread = new Thread(this::renderLoop, "Frame renderer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Displays a frame, immediately if it is cached and otherwise as soon as it has been rendered.
+     * This must be called on the JavaFX application thread.
+     * @param frame Frame index.
+     */
+    void show(int frame) {
+        WritableImage image;
+
+        synchronized (this) {
+            if (requestedFrame != -1 && frame != requestedFrame) {
+                direction = frame > requestedFrame ? 1 : -1;
+            }
+            requestedFrame = frame;
+            request++;
+
+            image = full.get(frame);
+            if (image == null) {
+                image = previews.get(frame);
+            }
+
+            if (image != null) {
+                shown = image;
+                pending = null;
+            }
+
+            notifyAll();
+        }
+
+        if (image != null) {
+            imageView.setImage(image);
+        }
+    }
+
+    /**
+     * Renders requested and prefetched frames until the application exits.
+     */
+    private void renderLoop() {
+        long handled = 0;
+
+        while (true) {
+            long current;
+            int frame;
+            int step;
+
+            synchronized (this) {
+                while (request == handled) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                current = request;
+                frame = requestedFrame;
+                step = direction;
+            }
+            handled = current;
+
+            if (!isCached(previews, frame) && !isCached(full, frame)) {
+                post(render(frame, previews, previewCanvas), current);
+            }
+
+            if (!isSuperseded(current) && !isCached(full, frame)) {
+                post(render(frame, full, fullCanvas), current);
+            }
+
+            int frameCount = simulation.getSimulatedSteps();
+            for (int i = 1; i <= PREFETCH_FRAMES && !isSuperseded(current); i++) {
+                int next = frame + i * step;
+                if (next < 0 || next >= frameCount) {
+                    break;
+                }
+
+                if (!isCached(previews, next)) {
+                    render(next, previews, previewCanvas);
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders the full-resolution image of a frame.
+     * @param frame Frame to render.
+     * @return Frame image.
+     */
+    static Image toImage(SimulationFrame frame) {
+        final int imageSize = frame.getImageSize();
+        final BufferedImage image = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        frame.render(graphics, imageSize, imageSize);
+        graphics.dispose();
+
+        return SwingFXUtils.toFXImage(image, null);
+    }
+
+    /**
+     * Renders a frame and adds it to a cache.
+     * @param frame Frame index.
+     * @param cache Cache to add the frame to.
+     * @param canvas Canvas with the resolution of the cache.
+     * @return Rendered frame, or null if the frame is not available.
+     */
+    private WritableImage render(int frame, FrameCache cache, BufferedImage canvas) {
+        SimulationFrame simulationFrame = simulation.getFrame(frame);
+        if (simulationFrame == null) {
+            return null;
+        }
+
+        WritableImage image;
+        synchronized (this) {
+            image = cache.obtain();
+        }
+
+        Graphics2D graphics = canvas.createGraphics();
+        simulationFrame.render(graphics, canvas.getWidth(), canvas.getHeight());
+        graphics.dispose();
+        SwingFXUtils.toFXImage(canvas, image);
+
+        synchronized (this) {
+            WritableImage evicted = cache.put(frame, image);
+
+            // An image on screen must not be drawn over, it is left to the garbage collector instead
+            if (evicted != null && evicted != shown && evicted != pending) {
+                cache.recycle(evicted);
+            }
+        }
+
+        return image;
+    }
+
+    /**
+     * Displays a rendered frame on the JavaFX application thread, unless a newer frame has been requested.
+     * @param image Rendered frame, or null if the frame was not available.
+     * @param request Request that the frame was rendered for.
+     */
+    private void post(WritableImage image, long request) {
+        if (image == null) {
+            return;
+        }
+
+        synchronized (this) {
+            if (request != this.request) {
+                return;
+            }
+            pending = image;
+        }
+
+        Platform.runLater(() -> {
+            synchronized (this) {
+                if (pending != image) {
+                    return;
+                }
+                pending = null;
+                shown = image;
+            }
+
+            imageView.setImage(image);
+        });
+    }
+
+    /**
+     * Gets if a frame is cached, without marking it as recently used.
+     * @param cache Cache to check.
+     * @param frame Frame index.
+     * @return Frame is cached.
+     */
+    private synchronized boolean isCached(FrameCache cache, int frame) {
+        return cache.contains(frame);
+    }
+
+    /**
+     * Gets if a newer frame has been requested.
+     * @param request Request to check.
+     * @return A newer request exists.
+     */
+    private synchronized boolean isSuperseded(long request) {
+        return request != this.request;
+    }
+}
@@ -0,0 +1,194 @@
+package se.peterjonsson.flocking;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Searches a {@link SpatialGrid} for nearby agents.
+ * A search keeps reusable state between queries, so each thread searching the grid needs its own instance.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class GridSearch {
+
+    /**
+     * The grid to search.
+     */
+    private final SpatialGrid grid;
+
+    /**
+     * Reusable result of {@link #query(double, double, double)}.
+     */
+    private final IntList result = new IntList(64);
+
+    /**
+     * Next unmerged item of each cell visited by a query.
+     */
+    private int[] runNext = new int[16];
+
+    /**
+     * End of the items of each cell visited by a query.
+     */
+    private int[] runEnd = new int[16];
+
+    /**
+     * Creates a new search.
+     * @param grid The grid to search.
+     */
+    GridSearch(SpatialGrid grid) {
+        this.grid = grid;
+    }
+
+    /**
+     * Gets the indices of all agents that may be within a distance of a point.
+     * The result can contain agents that are further away, so distances must still be checked by the caller.
+     * Indices are sorted in ascending order, which makes the visiting order the same as for the swarm.
+     * The returned list is reused by the next query.
+     * @param x Horizontal coordinate.
+     * @param y Vertical coordinate.
+     * @param radius Maximum distance from the point.
+     * @return Sorted candidate agent indices.
+     */
+    IntList query(double x, double y, double radius) {
+        result.clear();
+
+        double reach = radius + grid.slack;
+        int minColumn = grid.column(x - reach);
+        int maxColumn = grid.column(x + reach);
+        int minRow = grid.row(y - reach);
+        int maxRow = grid.row(y + reach);
+
+        int runs = 0;
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                int cell = row * grid.columns + column;
+                if (grid.cellStart[cell] == grid.cellStart[cell + 1]) {
+                    continue;
+                }
+
+                if (runs == runNext.length) {
+                    runNext = Arrays.copyOf(runNext, runs * 2);
+                    runEnd = Arrays.copyOf(runEnd, runs * 2);
+                }
+
+                runNext[runs] = grid.cellStart[cell];
+                runEnd[runs] = grid.cellStart[cell + 1];
+                runs++;
+            }
+        }
+
+        // The items of each cell are already sorted, so merging the cells gives a sorted result
+        while (runs > 0) {
+            int smallest = 0;
+            for (int run = 1; run < runs; run++) {
+                if (grid.items[runNext[run]] < grid.items[runNext[smallest]]) {
+                    smallest = run;
+                }
+            }
+
+            result.add(grid.items[runNext[smallest]++]);
+
+            if (runNext[smallest] == runEnd[smallest]) {
+                runs--;
+                runNext[smallest] = runNext[runs];
+                runEnd[smallest] = runEnd[runs];
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Gets the indices of all agents that may be within a distance of a point, like
+     * {@link #query(double, double, double)}, but in the order of the grid cells instead of sorted.
+     * This skips merging the cells, so it is much cheaper when there are many candidates, but summing over the
+     * result rounds differently from summing in swarm order. The order is the same on every run.
+     * The returned list is reused by the next query.
+     * @param x Horizontal coordinate.
+     * @param y Vertical coordinate.
+     * @param radius Maximum distance from the point.
+     * @return Candidate agent indices, cell by cell.
+     */
+    IntList queryUnordered(double x, double y, double radius) {
+        result.clear();
+
+        double reach = radius + grid.slack;
+        int minColumn = grid.column(x - reach);
+        int maxColumn = grid.column(x + reach);
+        int minRow = grid.row(y - reach);
+        int maxRow = grid.row(y + reach);
+
+        for (int row = minRow; row <= maxRow; row++) {
+            // The cells of a row are next to each other, so their items are one run
+            int start = grid.cellStart[row * grid.columns + minColumn];
+            int end = grid.cellStart[row * grid.columns + maxColumn + 1];
+            for (int i = start; i < end; i++) {
+                result.add(grid.items[i]);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds the agent closest to a point by searching the grid ring by ring, starting from the cell of the point.
+     * If several agents are at the same distance, the one with the lowest index is chosen.
+     * @param x Horizontal coordinate.
+     * @param y Vertical coordinate.
+     * @param maxDistance Maximum distance from the point.
+     * @param filter Filter deciding which agent indices to consider.
+     * @return Index of the closest agent, or -1 if there is no such agent within the distance.
+     */
+    int nearest(double x, double y, double maxDistance, IntPredicate filter) {
+        int centerColumn = grid.column(x);
+        int centerRow = grid.row(y);
+
+        double maxDistanceSquared = maxDistance * maxDistance;
+
+        int closest = -1;
+        double shortestDistanceSquared = Double.MAX_VALUE;
+
+        for (int ring = 0; ring <= grid.columns; ring++) {
+            // Agents in this and all remaining rings are at least this far away
+            double minDistance = (ring - 1) * grid.cellSize - grid.slack;
+            if (minDistance > 0) {
+                double minDistanceSquared = minDistance * minDistance;
+                if (minDistanceSquared > maxDistanceSquared
+                        || (closest != -1 && minDistanceSquared > shortestDistanceSquared)) {
+                    break;
+                }
+            }
+
+            for (int row = Math.max(0, centerRow - ring); row <= Math.min(grid.columns - 1, centerRow + ring); row++) {
+                boolean edgeRow = row == centerRow - ring || row == centerRow + ring;
+                int step = edgeRow ? 1 : 2 * ring;
+
+                for (int column = centerColumn - ring; column <= centerColumn + ring; column += Math.max(step, 1)) {
+                    if (column < 0 || column >= grid.columns) {
+                        continue;
+                    }
+
+                    int cell = row * grid.columns + column;
+                    for (int i = grid.cellStart[cell]; i < grid.cellStart[cell + 1]; i++) {
+                        int index = grid.items[i];
+                        double dx = grid.agents.x[index] - x;
+                        double dy = grid.agents.y[index] - y;
+                        double distanceSquared = dx * dx + dy * dy;
+
+                        if (distanceSquared > maxDistanceSquared || distanceSquared > shortestDistanceSquared
+                                || (distanceSquared == shortestDistanceSquared && index > closest)) {
+                            continue;
+                        }
+
+                        if (filter.test(index)) {
+                            closest = index;
+                            shortestDistanceSquared = distanceSquared;
+                        }
+                    }
+                }
+            }
+        }
+
+        return closest;
+    }
+}
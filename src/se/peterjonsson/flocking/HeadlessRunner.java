@@ -0,0 +1,183 @@
+package se.peterjonsson.flocking;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Runs a single simulation from the command line without a user interface.
+ * This does not depend on JavaFX, so it can be used on headless machines.
+ *
+ * Usage: {@code HeadlessRunner [--agents N] [--steps N] [--seed N] [--size N] [--output DIR] [--threads N]
+ * [--metrics csv|binary|none] [--checkpoint-interval N] [--resume]
+ * [--obstacles FILE] [--obstacle-field RESOLUTION]
+ * [--neighbour-order swarm|cells]
+ * [--verlet-skin N] [--reorder-interval N]}
+ *
+ * The results are written to the output directory, which is created if needed.
+ * The metrics of every step are written in the given format, see {@link MetricsCollector}.
+ * Using more than one thread enables the double-buffered update mode,
+ * see {@link FlockingSimulation#enableDoubleBuffering(int)}.
+ * With a checkpoint interval a checkpoint is written to the output directory every N steps, and {@code --resume}
+ * continues the simulation from that checkpoint instead of starting a new one. The simulation settings, including
+ * the number of threads, are then read from the checkpoint, see {@link FlockingSimulation#resume(Path)}.
+ * Obstacles are read from a circle list or a bitmap mask, see {@link ObstacleFile}. With an obstacle field
+ * resolution agents avoid them by sampling a precomputed field, see {@link ObstacleField}.
+ * Visiting neighbours in cell order is faster but not bit-identical,
+ * see {@link FlockingSimulation#setCellOrder(boolean)}. With a Verlet skin agents reuse their neighbour lists over
+ * several steps, see {@link NeighbourList}. With a reorder interval agents are sorted along a space-filling curve
+ * every N steps, see {@link FlockingSimulation#setReorderInterval(int)}.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+public class HeadlessRunner {
+
+    /**
+     * Called on application start.
+     * @param args Launch arguments.
+     */
+    public static void main(String[] args) {
+        int agents = 100;
+        int steps = FlockingSimulation.DEFAULT_STEPS;
+        long seed = FlockingSimulation.DEFAULT_SEED;
+        int size = FlockingSimulation.DEFAULT_SIZE;
+        Path output = Paths.get("");
+        int threads = 0;
+        MetricsWriter.Format metrics = MetricsWriter.Format.CSV;
+        int checkpointInterval = 0;
+        boolean resume = false;
+        Path obstacles = null;
+        double obstacleField = 0;
+        boolean cellOrder = false;
+        double verletSkin = 0;
+        int reorderInterval = 0;
+
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (args[i].equals("--resume")) {
+                    resume = true;
+                    i--;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--agents":
+                        agents = Integer.parseInt(value);
+                        break;
+                    case "--steps":
+                        steps = Integer.parseInt(value);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(value);
+                        break;
+                    case "--size":
+                        size = Integer.parseInt(value);
+                        break;
+                    case "--output":
+                        output = Paths.get(value);
+                        break;
+                    case "--threads":
+                        threads = Integer.parseInt(value);
+                        if (threads < 1) {
+                            throw new IllegalArgumentException("There must be at least one thread");
+                        }
+                        break;
+                    case "--metrics":
+                        metrics = value.equals("none") ? null : MetricsWriter.Format.valueOf(value.toUpperCase());
+                        break;
+                    case "--obstacles":
+                        obstacles = Paths.get(value);
+                        break;
+                    case "--obstacle-field":
+                        obstacleField = Double.parseDouble(value);
+                        break;
+                    case "--neighbour-order":
+                        if (!value.equals("swarm") && !value.equals("cells")) {
+                            throw new IllegalArgumentException("Unknown neighbour order " + value);
+                        }
+                        cellOrder = value.equals("cells");
+                        break;
+                    case "--verlet-skin":
+                        verletSkin = Double.parseDouble(value);
+                        if (verletSkin > 0 && verletSkin <= Agent.SPEED) {
+                            throw new IllegalArgumentException("Verlet skin must be larger than " + Agent.SPEED);
+                        }
+                        break;
+                    case "--reorder-interval":
+                        reorderInterval = Integer.parseInt(value);
+                        if (reorderInterval < 0) {
+                            throw new IllegalArgumentException("Reorder interval must not be negative");
+                        }
+                        break;
+                    case "--checkpoint-interval":
+                        checkpointInterval = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: HeadlessRunner [--agents N] [--steps N] [--seed N] [--size N] [--output DIR] [--threads N] "
+                    + "[--metrics csv|binary|none] [--checkpoint-interval N] [--resume] [--obstacles FILE] "
+                    + "[--obstacle-field RESOLUTION] [--neighbour-order swarm|cells] "
+                    + "[--verlet-skin N] [--reorder-interval N]");
+            System.exit(1);
+            return;
+        }
+
+        FlockingSimulation simulation;
+        try {
+            Files.createDirectories(output);
+            if (resume) {
+                simulation = FlockingSimulation.resume(output);
+                if (threads != 0 && threads != simulation.getThreads()) {
+                    System.err.println("The checkpoint was written with " + simulation.getThreads()
+                            + " threads, resume without --threads or with the same number");
+                    System.exit(1);
+                    return;
+                }
+            } else {
+                SimulationConfig config = new SimulationConfig(agents, steps, seed, size,
+                        FlockingSimulation.DEFAULT_PREDATOR_RELEASE_STEP, FlockingSimulation.FLOCKING_PREY,
+                        FlockingSimulation.FLOCKING_PREDATORS);
+                simulation = new FlockingSimulation(config, output);
+                simulation.setMetricsFormat(metrics);
+                if (obstacles != null) {
+                    simulation.loadObstacles(obstacles);
+                }
+                simulation.setObstacleFieldResolution(obstacleField);
+                simulation.setCellOrder(cellOrder);
+                simulation.setReorderInterval(reorderInterval);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+
+        simulation.setCheckpointInterval(checkpointInterval);
+        simulation.setVerletSkin(verletSkin);
+        if (!resume && threads > 1) {
+            simulation.enableDoubleBuffering(threads);
+        }
+
+        // A resumed simulation only reports the steps simulated by this run
+        int firstStep = simulation.getSimulatedSteps();
+        long firstUpdates = simulation.getAgentUpdates();
+        long startTime = System.nanoTime();
+        simulation.run();
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        steps = simulation.getSimulatedSteps() - firstStep;
+        agents = simulation.getConfig().numberOfAgents;
+
+        System.out.printf("Simulated %d steps of %d agents in %.3f s%n", steps, agents, seconds);
+        System.out.printf("Throughput: %.0f agent-updates/s, %.0f steps/s%n",
+                (simulation.getAgentUpdates() - firstUpdates) / seconds, steps / seconds);
+    }
+}
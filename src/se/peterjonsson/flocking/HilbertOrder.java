@@ -0,0 +1,134 @@
+package se.peterjonsson.flocking;
+
+import java.util.Arrays;
+
+/**
+ * An order of the agents of a {@link Swarm} along a Hilbert curve through the cells of a {@link SpatialGrid}, used
+ * for keeping agents that are close in space close in memory.
+ *
+ * Agents start at random places and keep moving, so without reordering the neighbours of an agent are spread over
+ * the whole swarm and visiting them misses the cache. The Hilbert curve visits every cell of the grid once, always
+ * moving on to an adjacent cell, so sorting the agents by the position of their cell along the curve places the
+ * agents of nearby cells next to each other. Agents in the same cell keep their relative order.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class HilbertOrder {
+
+    /**
+     * Grid whose cells are ordered.
+     */
+    private final SpatialGrid grid;
+
+    /**
+     * Position of every grid cell along the curve.
+     */
+    private final int[] cellRank;
+
+    /**
+     * Insertion cursor for every position along the curve, used while sorting.
+     */
+    private final int[] rankCursor;
+
+    /**
+     * Position along the curve of each agent index, used while sorting.
+     */
+    private int[] agentRank = new int[0];
+
+    /**
+     * Current index of the agent at every index of the sorted order.
+     */
+    private int[] order = new int[0];
+
+    /**
+     * Creates the order of the cells of a grid.
+     * @param grid Grid whose cells are ordered.
+     */
+    HilbertOrder(SpatialGrid grid) {
+        this.grid = grid;
+
+        // The curve covers a square with a power of two cells per side, so cells outside of the grid are skipped
+        int columns = grid.columns;
+        int side = 1;
+        while (side < columns) {
+            side *= 2;
+        }
+
+        long[] keys = new long[columns * columns];
+        for (int row = 0; row < columns; row++) {
+            for (int column = 0; column < columns; column++) {
+                int cell = row * columns + column;
+                keys[cell] = distance(side, column, row) << 32 | cell;
+            }
+        }
+        Arrays.sort(keys);
+
+        cellRank = new int[keys.length];
+        for (int rank = 0; rank < keys.length; rank++) {
+            cellRank[(int) keys[rank]] = rank;
+        }
+        rankCursor = new int[keys.length + 1];
+    }
+
+    /**
+     * Sorts the agents of a swarm along the curve, by the cells containing their current positions.
+     * @param agents Agents to sort.
+     * @return Current index of the agent at every index of the sorted order, see {@link Swarm#reorder(int[])}.
+     *         The array is reused by the next call.
+     */
+    int[] sort(Swarm agents) {
+        int count = agents.size();
+        if (order.length < count) {
+            order = new int[count];
+            agentRank = new int[count];
+        }
+
+        // Counting sort by position along the curve, which keeps agents of the same cell in order
+        Arrays.fill(rankCursor, 0);
+        for (int i = 0; i < count; i++) {
+            int rank = cellRank[grid.row(agents.y[i]) * grid.columns + grid.column(agents.x[i])];
+            agentRank[i] = rank;
+            rankCursor[rank + 1]++;
+        }
+
+        for (int rank = 0; rank < cellRank.length; rank++) {
+            rankCursor[rank + 1] += rankCursor[rank];
+        }
+
+        for (int i = 0; i < count; i++) {
+            order[rankCursor[agentRank[i]]++] = i;
+        }
+
+        return order;
+    }
+
+    /**
+     * Gets the distance along a Hilbert curve to a cell.
+     * @param side Number of cells per side of the square covered by the curve, which is a power of two.
+     * @param x Column of the cell.
+     * @param y Row of the cell.
+     * @return Number of cells visited by the curve before the cell.
+     */
+    private static long distance(int side, int x, int y) {
+        long distance = 0;
+        for (int half = side / 2; half > 0; half /= 2) {
+            int right = (x & half) != 0 ? 1 : 0;
+            int bottom = (y & half) != 0 ? 1 : 0;
+            distance += (long) half * half * ((3 * right) ^ bottom);
+
+            // Rotate the quadrant, so that the curve within it starts and ends next to the neighbouring quadrants
+            if (bottom == 0) {
+                if (right == 1) {
+                    x = side - 1 - x;
+                    y = side - 1 - y;
+                }
+
+                int swap = x;
+                x = y;
+                y = swap;
+            }
+        }
+
+        return distance;
+    }
+}
@@ -0,0 +1,75 @@
+package se.peterjonsson.flocking;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive integers.
+ * Meant to be reused between queries to avoid boxing and repeated allocations.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class IntList {
+
+    /**
+     * Backing array. Only the first {@link #size} elements are in use.
+     */
+    private int[] values;
+
+    /**
+     * Number of elements in the list.
+     */
+    private int size;
+
+    /**
+     * Creates a new empty list.
+     * @param capacity Initial capacity.
+     */
+    IntList(int capacity) {
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Appends a value to the end of the list.
+     * @param value Value to append.
+     */
+    void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+
+        values[size++] = value;
+    }
+
+    /**
+     * Gets a value from the list.
+     * @param index Index of the value.
+     * @return Value at the specified index.
+     */
+    int get(int index) {
+        return values[index];
+    }
+
+    /**
+     * Gets the number of values in the list.
+     * @return List size.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets the backing array, whose first {@link #size()} elements are the values of the list.
+     * The array is replaced when the list grows.
+     * @return Backing array.
+     */
+    int[] array() {
+        return values;
+    }
+
+    /**
+     * Removes all values from the list.
+     */
+    void clear() {
+        size = 0;
+    }
+}
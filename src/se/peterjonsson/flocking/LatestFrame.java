@@ -0,0 +1,54 @@
+package se.peterjonsson.flocking;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free hand-over of the newest simulation frame from a single producer thread to a single consumer thread.
+ *
+ * The latest frame wins: the producer never waits, and every offered frame replaces the frame that has not been
+ * taken yet. The consumer therefore always gets the newest frame, including the last frame of a simulation, however
+ * far behind it is. A replaced frame is counted as dropped, since the consumer never sees it. Neither side takes a
+ * lock or allocates.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class LatestFrame {
+
+    /**
+     * Newest frame not yet taken by the consumer, or null if there is none.
+     */
+    private final AtomicReference<SimulationFrame> latest = new AtomicReference<>();
+
+    /**
+     * Number of frames replaced before the consumer took them. Only written by the producer.
+     */
+    private volatile long dropped = 0;
+
+    /**
+     * Publishes a frame, replacing the frame that has not been taken yet.
+     * This must only be called by the producer thread.
+     * @param frame Frame to publish.
+     */
+    void offer(SimulationFrame frame) {
+        if (latest.getAndSet(frame) != null) {
+            dropped++;
+        }
+    }
+
+    /**
+     * Takes the newest frame.
+     * This must only be called by the consumer thread.
+     * @return Newest frame, or null if no frame has been published since the last call.
+     */
+    SimulationFrame pollLatest() {
+        return latest.getAndSet(null);
+    }
+
+    /**
+     * Gets the number of frames replaced before the consumer took them, which the consumer never saw.
+     * @return Number of dropped frames.
+     */
+    long getDropped() {
+        return dropped;
+    }
+}
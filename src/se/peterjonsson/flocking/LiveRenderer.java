@@ -0,0 +1,130 @@
+package se.peterjonsson.flocking;
+
+import javafx.animation.AnimationTimer;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.WritableImage;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs a simulation on a {@link SimulationExecutor} and shows its frames in an {@link ImageView} while it is
+ * running.
+ *
+ * Every simulated frame is published through a {@link LatestFrame}, replacing the frame not yet displayed. An
+ * {@link AnimationTimer} renders the newest published frame once per display refresh, at the display resolution of
+ * the image view, so frames are skipped whenever the simulation is faster than the display. The simulation itself
+ * never waits for the display, and the last frame is always displayed.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class LiveRenderer {
+
+    /**
+     * Newest frame published by the simulation.
+     */
+    private final LatestFrame frames = new LatestFrame();
+
+    /**
+     * Image view displaying the frames.
+     */
+    private final ImageView imageView;
+
+    /**
+     * Canvas that frames are drawn onto before being copied to the {@link #image}.
+     */
+    private final BufferedImage canvas;
+
+    /**
+     * Image displaying the newest rendered frame.
+     */
+    private final WritableImage image;
+
+    /**
+     * Listener receiving the number of every displayed frame.
+     */
+    private final IntConsumer frameListener;
+
+    /**
+     * Listener called once the simulation has finished and its last frame has been displayed.
+     */
+    private final Runnable finishedListener;
+
+    /**
+     * Timer rendering frames on the JavaFX application thread.
+     */
+    private final AnimationTimer timer;
+
+    /**
+     * Indicates if the simulation has finished or not.
+     */
+    private volatile boolean finished = false;
+
+    /**
+     * Creates a new live renderer and queues the simulation on an executor.
+     * The display resolution is taken from the fit size of the image view.
+     * This must be called on the JavaFX application thread.
+     * @param simulation Simulation to run.
+     * @param executor Executor running the simulation, which must call its listeners on the JavaFX application
+     *                 thread.
+     * @param imageView Image view displaying the frames.
+     * @param frameListener Listener receiving the number of every displayed frame, on the JavaFX application thread.
+     * @param finishedListener Listener called on the JavaFX application thread once the simulation has finished.
+     */
+    LiveRenderer(FlockingSimulation simulation, SimulationExecutor executor, ImageView imageView,
+                 IntConsumer frameListener, Runnable finishedListener) {
+        this.imageView = imageView;
+        this.frameListener = frameListener;
+        this.finishedListener = finishedListener;
+
+        int imageSize = simulation.getConfig().size * SimulationFrame.IMAGE_SCALE;
+        int width = imageView.getFitWidth() > 0 ? (int) Math.ceil(imageView.getFitWidth()) : imageSize;
+        int height = imageView.getFitHeight() > 0 ? (int) Math.ceil(imageView.getFitHeight()) : imageSize;
+        canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        image = new WritableImage(width, height);
+
+        simulation.setFrameListener(frames::offer);
+
+        timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                renderLatest();
+            }
+        };
+        timer.start();
+
+        executor.submit(simulation, progress -> {
+            if (progress.state == SimulationTask.State.FINISHED
+                    || progress.state == SimulationTask.State.CANCELLED) {
+                finished = true;
+            }
+        });
+    }
+
+    /**
+     * Renders and displays the newest published frame, if any.
+     * Once the simulation has finished and the last frame is displayed, the timer is stopped.
+     */
+    private void renderLatest() {
+        // Read before taking a frame, so that the last published frame is never missed
+        boolean done = finished;
+
+        SimulationFrame frame = frames.pollLatest();
+        if (frame != null) {
+            Graphics2D graphics = canvas.createGraphics();
+            frame.render(graphics, canvas.getWidth(), canvas.getHeight());
+            graphics.dispose();
+            SwingFXUtils.toFXImage(canvas, image);
+
+            imageView.setImage(image);
+            frameListener.accept(frame.getNumber());
+        }
+
+        if (done) {
+            timer.stop();
+            finishedListener.run();
+        }
+    }
+}
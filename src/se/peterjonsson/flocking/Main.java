@@ -13,6 +13,12 @@ import javafx.stage.Stage;
  */
 public class Main extends Application {
 
+    /**
+     * Executor running the simulations of the application.
+     */
+    private final SimulationExecutor executor = new SimulationExecutor(
+            Runtime.getRuntime().availableProcessors(), Platform::runLater);
+
     @Override
     public void start(Stage primaryStage) throws Exception{
         Parent root = FXMLLoader.load(getClass().getResource("sample.fxml"));
@@ -23,14 +29,24 @@ public class Main extends Application {
         primaryStage.setOnCloseRequest(e -> Platform.exit());
         primaryStage.requestFocus();
 
-        new MainController(root);
+        new MainController(root, !getParameters().getRaw().contains("--precompute"), executor);
+    }
+
+    /**
+     * Called when the application exits.
+     * Running simulations are cancelled.
+     */
+    @Override
+    public void stop() {
+        executor.shutdown();
     }
 
 
     /**
      * Called on application start.
      * This launches the application and calls {@link #start(Stage)}.
-     * @param args Launch arguments. These are currently not used.
+     * The simulation is shown while it is running, unless {@code --precompute} is given.
+     * @param args Launch arguments.
      */
     public static void main(String[] args) {
         launch(args);
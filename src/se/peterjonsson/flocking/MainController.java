@@ -2,7 +2,6 @@ package se.peterjonsson.flocking;
 
 import javafx.scene.Parent;
 import javafx.scene.control.Slider;
-import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 /**
  * Controller for the main view.
@@ -18,25 +17,52 @@ class MainController {
      */
     private final ImageView imageView;
 
+    /**
+     * Renderer of the frames displayed by the {@link #imageView}.
+     */
+    private final FrameRenderer renderer;
+
     /**
      * Creates a new controller for the main view.
+     * In live mode the simulation is shown while it is running, and frames can be scrubbed through once it has
+     * finished. Otherwise a modal dialog is shown until the whole simulation has finished.
+     * If the simulation is cancelled, only the steps simulated so far can be scrubbed through.
      * @param root Root element of the view.
+     * @param live Show the simulation while it is running.
+     * @param executor Executor running the simulation.
      */
-    MainController(Parent root) {
+    MainController(Parent root, boolean live, SimulationExecutor executor) {
         imageView = (ImageView) root.lookup("#imageView");
 
         simulation = new FlockingSimulation(100);
+        renderer = new FrameRenderer(simulation, imageView);
 
         Slider slider = (Slider) root.lookup("#slider");
         slider.setMin(0);
-        slider.setMax(FlockingSimulation.STEPS - 1);
+        slider.setMax(simulation.getSteps() - 1);
         slider.setValue(0);
         slider.valueProperty().addListener((observable, oldValue, newValue) -> {
-            Image img = simulation.getFrame((int) Math.floor((double) newValue)).getImage();
-            imageView.setImage(img);
+            // The slider follows the live frames until the simulation has finished
+            if (!slider.isDisabled()) {
+                renderer.show((int) Math.floor((double) newValue));
+            }
         });
 
-        new SimulationDialog(simulation);
+        if (live) {
+            slider.setDisable(true);
+            new LiveRenderer(simulation, executor, imageView, slider::setValue, () -> {
+                int lastFrame = Math.max(0, simulation.getSimulatedSteps() - 1);
+                slider.setDisable(false);
+                slider.setMax(lastFrame);
+                slider.setValue(lastFrame);
+                renderer.show(lastFrame);
+            });
+        } else {
+            new SimulationDialog(simulation, executor, () -> {
+                slider.setMax(Math.max(0, simulation.getSimulatedSteps() - 1));
+                renderer.show((int) Math.floor(slider.getValue()));
+            });
+        }
     }
 
 }
@@ -0,0 +1,237 @@
+package se.peterjonsson.flocking;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Measures the state of a simulation after every step, for writing with a {@link MetricsWriter}.
+ *
+ * The {@link SpatialGrid} is rebuilt for the measured state, so the next step can use it without rebuilding.
+ * Every agent then visits the grid cells within {@link #LINK_DISTANCE} once, which gives both the agents it is
+ * linked to and, in a flock, its nearest neighbour. Only agents without any linked agent search further for their
+ * nearest neighbour. Every connected group of at least {@link #MIN_FLOCK_SIZE} linked agents counts as a flock.
+ *
+ * The measured values are, in the order of {@link #COLUMNS}:
+ *  - The step number, the number of living agents and the number of predators.
+ *  - The polarization, which is the length of the mean direction of all agents. This is 1 when all agents move in
+ *    the same direction and close to 0 when they move in random directions.
+ *  - The mean distance from every agent to its nearest neighbour.
+ *  - The number of flocks.
+ *  - The number of agents killed in the step, and the number of kills per predator.
+ * Values that are undefined, for example the polarization without any agents, are NaN.
+ *
+ * Agents always move exactly {@link Agent#SPEED} in a step, so the mean speed is not measured.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class MetricsCollector {
+
+    /**
+     * Names of the measured values.
+     */
+    static final String[] COLUMNS = { "step", "agents", "predators", "polarization", "meanNearestNeighbourDistance",
+            "flocks", "kills", "hitRate" };
+
+    /**
+     * Maximum distance between two agents of the same flock.
+     * This is the separation distance of the agents, which keeps the cells visited per agent few.
+     */
+    static final int LINK_DISTANCE = 16;
+
+    /**
+     * Minimum number of linked agents that counts as a flock.
+     */
+    static final int MIN_FLOCK_SIZE = 2;
+
+    /**
+     * State of all agents in the simulation.
+     */
+    private final Swarm agents;
+
+    /**
+     * State of all predators in the simulation.
+     */
+    private final Swarm predators;
+
+    /**
+     * Spatial index of all agents.
+     */
+    private final SpatialGrid grid;
+
+    /**
+     * Search over the spatial index of all agents.
+     */
+    private final GridSearch search;
+
+    /**
+     * Index of the agent being measured.
+     */
+    private int current;
+
+    /**
+     * Filter accepting every agent except the {@link #current} agent.
+     */
+    private final IntPredicate others = index -> index != current;
+
+    /**
+     * Parent of every agent in the forest of linked agents. A root is its own parent.
+     */
+    private int[] parent = new int[0];
+
+    /**
+     * Number of agents linked to every root.
+     */
+    private int[] groupSize = new int[0];
+
+    /**
+     * Creates a new collector.
+     * @param agents State of all agents.
+     * @param predators State of all predators.
+     * @param grid Spatial index of all agents.
+     */
+    MetricsCollector(Swarm agents, Swarm predators, SpatialGrid grid) {
+        this.agents = agents;
+        this.predators = predators;
+        this.grid = grid;
+        search = new GridSearch(grid);
+    }
+
+    /**
+     * Measures the current state of the simulation and rebuilds the spatial index for it.
+     * Dead agents must have been removed.
+     * @param step Step number of the state.
+     * @param kills Number of agents killed in the step.
+     * @param row Array receiving one value per column.
+     */
+    void measure(int step, int kills, double[] row) {
+        final int count = agents.size();
+        grid.rebuild(agents);
+
+        if (parent.length < count) {
+            parent = new int[Math.max(count, parent.length * 2)];
+            groupSize = new int[parent.length];
+        }
+        for (int i = 0; i < count; i++) {
+            parent[i] = i;
+        }
+
+        final double linkDistanceSquared = (double) LINK_DISTANCE * LINK_DISTANCE;
+        double sumDx = 0;
+        double sumDy = 0;
+        double sumNearest = 0;
+        int nearestCount = 0;
+
+        for (int agent = 0; agent < count; agent++) {
+            final double x = agents.x[agent];
+            final double y = agents.y[agent];
+            sumDx += agents.dx[agent];
+            sumDy += agents.dy[agent];
+
+            // The grid was just rebuilt, so no slack is needed and the cells are visited in any order
+            double nearestSquared = Double.MAX_VALUE;
+            int minColumn = grid.column(x - LINK_DISTANCE);
+            int maxColumn = grid.column(x + LINK_DISTANCE);
+            int minRow = grid.row(y - LINK_DISTANCE);
+            int maxRow = grid.row(y + LINK_DISTANCE);
+            for (int gridRow = minRow; gridRow <= maxRow; gridRow++) {
+                for (int column = minColumn; column <= maxColumn; column++) {
+                    int cell = gridRow * grid.columns + column;
+                    for (int i = grid.cellStart[cell]; i < grid.cellStart[cell + 1]; i++) {
+                        int other = grid.items[i];
+                        if (other == agent) {
+                            continue;
+                        }
+
+                        double dx = agents.x[other] - x;
+                        double dy = agents.y[other] - y;
+                        double distanceSquared = dx * dx + dy * dy;
+                        if (distanceSquared > linkDistanceSquared) {
+                            continue;
+                        }
+
+                        nearestSquared = Math.min(nearestSquared, distanceSquared);
+
+                        // Each link is found from both ends, so only one of them joins the groups
+                        if (other > agent) {
+                            union(agent, other);
+                        }
+                    }
+                }
+            }
+
+            // Isolated agents search further for their nearest neighbour
+            if (nearestSquared == Double.MAX_VALUE && count > 1) {
+                current = agent;
+                int nearest = search.nearest(x, y, Double.MAX_VALUE, others);
+                double dx = agents.x[nearest] - x;
+                double dy = agents.y[nearest] - y;
+                nearestSquared = dx * dx + dy * dy;
+            }
+
+            if (nearestSquared != Double.MAX_VALUE) {
+                sumNearest += Math.sqrt(nearestSquared);
+                nearestCount++;
+            }
+        }
+
+        row[0] = step;
+        row[1] = count;
+        row[2] = predators.size();
+        row[3] = count > 0 ? Math.hypot(sumDx, sumDy) / count : Double.NaN;
+        row[4] = nearestCount > 0 ? sumNearest / nearestCount : Double.NaN;
+        row[5] = countFlocks(count);
+        row[6] = kills;
+        row[7] = predators.size() > 0 ? (double) kills / predators.size() : Double.NaN;
+    }
+
+    /**
+     * Counts the groups of linked agents with at least {@link #MIN_FLOCK_SIZE} agents.
+     * @param count Number of agents.
+     * @return Number of flocks.
+     */
+    private int countFlocks(int count) {
+        Arrays.fill(groupSize, 0, count, 0);
+        for (int i = 0; i < count; i++) {
+            groupSize[find(i)]++;
+        }
+
+        int flocks = 0;
+        for (int i = 0; i < count; i++) {
+            if (parent[i] == i && groupSize[i] >= MIN_FLOCK_SIZE) {
+                flocks++;
+            }
+        }
+
+        return flocks;
+    }
+
+    /**
+     * Links the groups of two agents.
+     * @param a Index of the first agent.
+     * @param b Index of the second agent.
+     */
+    private void union(int a, int b) {
+        int rootA = find(a);
+        int rootB = find(b);
+
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parent[rootA] = rootB;
+        }
+    }
+
+    /**
+     * Finds the root of the group of an agent, halving the path on the way.
+     * @param index Index of the agent.
+     * @return Index of the root.
+     */
+    private int find(int index) {
+        while (parent[index] != index) {
+            parent[index] = parent[parent[index]];
+            index = parent[index];
+        }
+
+        return index;
+    }
+}
@@ -0,0 +1,315 @@
+package se.peterjonsson.flocking;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes one row of metrics per step on a background thread, so that the simulation never waits for the disk.
+ *
+ * Rows are collected in batches of {@link #BATCH_ROWS} rows, and every full batch is handed to the writer thread
+ * through an unbounded queue. Written batches are reused, so writing a row neither blocks nor allocates.
+ *
+ * Two formats are supported:
+ *  - {@link Format#CSV}: a header line with the column names followed by one line per row, in ASCII.
+ *  - {@link Format#BINARY}: a columnar format for analysis tools. All values are big-endian. The file starts with
+ *    a magic number, the format version, the number of columns and the name of every column in modified UTF-8.
+ *    Every batch follows as the number of rows and then all values of each column in turn, as float64.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class MetricsWriter implements Closeable {
+
+    /**
+     * File format of the metrics.
+     */
+    enum Format {
+        /**
+         * Comma-separated text.
+         */
+        CSV,
+
+        /**
+         * Columnar binary.
+         */
+        BINARY
+    }
+
+    /**
+     * Magic number identifying a binary metrics file.
+     */
+    static final int MAGIC = 0x464c4d54;
+
+    /**
+     * Current binary format version.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Number of rows handed to the writer thread at a time.
+     */
+    static final int BATCH_ROWS = 256;
+
+    /**
+     * Number of values in a row.
+     */
+    private final int columns;
+
+    /**
+     * Thread writing the batches in order.
+     */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    /**
+     * Batches that have been written and can be reused.
+     */
+    private final ConcurrentLinkedQueue<double[]> freeBatches = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Format of the file.
+     */
+    private final Format format;
+
+    /**
+     * Output of the file. Only used by the writer thread after the header has been written.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * File position that the {@link #out} stream started writing at.
+     */
+    private final long position;
+
+    /**
+     * Batch being filled, with the values of each row stored together.
+     */
+    private double[] batch;
+
+    /**
+     * Number of rows in the {@link #batch}.
+     */
+    private int rows = 0;
+
+    /**
+     * First failure of the writer thread, or null if all batches have been written.
+     */
+    private volatile IOException failure = null;
+
+    /**
+     * Creates a new metrics file, replacing any existing file.
+     * @param path Path of the file.
+     * @param format Format of the file.
+     * @param columnNames Name of every column.
+     * @throws IOException File could not be created.
+     */
+    MetricsWriter(Path path, Format format, String[] columnNames) throws IOException {
+        this.format = format;
+        columns = columnNames.length;
+        batch = new double[BATCH_ROWS * columns];
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024));
+        position = 0;
+
+        if (format == Format.CSV) {
+            out.writeBytes(String.join(",", columnNames));
+            out.writeBytes(System.lineSeparator());
+        } else {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(columns);
+            for (String name : columnNames) {
+                out.writeUTF(name);
+            }
+        }
+    }
+
+    /**
+     * Continues a metrics file from a position returned by {@link #mark()}.
+     * Rows written after that position are discarded.
+     * @param path Path of the file.
+     * @param format Format of the file.
+     * @param columns Number of columns.
+     * @param position Length of the file to keep.
+     * @throws IOException File could not be opened, or is shorter than the position.
+     */
+    MetricsWriter(Path path, Format format, int columns, long position) throws IOException {
+        this.format = format;
+        this.columns = columns;
+        batch = new double[BATCH_ROWS * columns];
+
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        if (channel.size() < position) {
+            channel.close();
+            throw new IOException("Metrics file is shorter than the checkpoint: " + path);
+        }
+        channel.truncate(position);
+        channel.position(position);
+
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+        this.position = position;
+    }
+
+    /**
+     * Adds a row. The values are copied, so the array can be reused.
+     * @param row One value per column.
+     */
+    void write(double[] row) {
+        System.arraycopy(row, 0, batch, rows * columns, columns);
+        rows++;
+
+        if (rows == BATCH_ROWS) {
+            submitBatch();
+        }
+    }
+
+    /**
+     * Hands all rows added so far to the writer thread, without waiting for them to be written.
+     * @return Length of the file once these rows have been written, which can be used for continuing the file
+     *         after a restart.
+     */
+    Future<Long> mark() {
+        if (rows > 0) {
+            submitBatch();
+        }
+
+        return writer.submit(() -> {
+            out.flush();
+            IOException e = failure;
+            if (e != null) {
+                throw e;
+            }
+
+            return position + out.size();
+        });
+    }
+
+    /**
+     * Writes all remaining rows, waits for the writer thread and closes the file.
+     * @throws IOException Any row could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (rows > 0) {
+            submit(batch, rows);
+        }
+
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for metrics to be written", e);
+        }
+
+        try {
+            out.close();
+        } catch (IOException e) {
+            fail(e);
+        }
+
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("Metrics could not be written: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Hands the {@link #batch} to the writer thread and starts a new batch.
+     */
+    private void submitBatch() {
+        submit(batch, rows);
+
+        double[] free = freeBatches.poll();
+        batch = free != null ? free : new double[BATCH_ROWS * columns];
+        rows = 0;
+    }
+
+    /**
+     * Hands a batch to the writer thread.
+     * @param values Batch to write.
+     * @param count Number of rows in the batch.
+     */
+    private void submit(final double[] values, final int count) {
+        writer.submit(() -> {
+            // After a failure the remaining batches are dropped, so that the simulation can still finish
+            if (failure == null) {
+                try {
+                    if (format == Format.CSV) {
+                        writeText(values, count);
+                    } else {
+                        writeBinary(values, count);
+                    }
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+
+            freeBatches.add(values);
+        });
+    }
+
+    /**
+     * Writes a batch as comma-separated lines.
+     * Whole numbers are written without decimals.
+     * @param values Batch to write.
+     * @param count Number of rows in the batch.
+     * @throws IOException Batch could not be written.
+     */
+    private void writeText(double[] values, int count) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int row = 0; row < count; row++) {
+            line.setLength(0);
+            for (int column = 0; column < columns; column++) {
+                double value = values[row * columns + column];
+                if (column > 0) {
+                    line.append(',');
+                }
+                if (value == (long) value) {
+                    line.append((long) value);
+                } else {
+                    line.append(value);
+                }
+            }
+
+            line.append(System.lineSeparator());
+            out.writeBytes(line.toString());
+        }
+    }
+
+    /**
+     * Writes a batch as columns.
+     * @param values Batch to write.
+     * @param count Number of rows in the batch.
+     * @throws IOException Batch could not be written.
+     */
+    private void writeBinary(double[] values, int count) throws IOException {
+        out.writeInt(count);
+        for (int column = 0; column < columns; column++) {
+            for (int row = 0; row < count; row++) {
+                out.writeDouble(values[row * columns + column]);
+            }
+        }
+    }
+
+    /**
+     * Records a failure, unless an earlier failure has already been recorded.
+     * @param e Failure to record.
+     */
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        } else if (failure != e) {
+            failure.addSuppressed(e);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package se.peterjonsson.flocking;
+
+import java.util.Arrays;
+
+/**
+ * Verlet neighbour lists of a {@link Swarm}, reused over several steps instead of searching the grid for the
+ * neighbours of every agent in every step.
+ *
+ * Each agent lists every other agent within the neighbour radius plus a skin, in ascending index order. Agents
+ * move a limited distance per step, so the lists stay complete until two agents could have closed the skin: the
+ * lists are rebuilt once twice the largest displacement since the last rebuild, plus the distance an agent may
+ * move within the step being simulated, exceeds the skin. Visiting a list and checking the distances therefore
+ * gives exactly the same result as visiting the sorted candidates of {@link GridSearch#query(double, double,
+ * double)}.
+ *
+ * The lists are stored in compressed sparse row form: the neighbours of agent {@code i} are found in
+ * {@link #items} between {@code start[i]} and {@code start[i + 1]}.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class NeighbourList {
+
+    /**
+     * Radius within which agents are listed, which is the neighbour radius plus the skin.
+     */
+    private final double listRadius;
+
+    /**
+     * Extra distance listed beyond the neighbour radius.
+     */
+    private final double skin;
+
+    /**
+     * Grid used for building the lists.
+     */
+    private final SpatialGrid grid;
+
+    /**
+     * Search over the {@link #grid}.
+     */
+    private final GridSearch search;
+
+    /**
+     * Index of the first neighbour of each agent in {@link #items}.
+     */
+    int[] start = new int[1];
+
+    /**
+     * Neighbour indices, agent by agent.
+     */
+    int[] items = new int[0];
+
+    /**
+     * Horizontal position of each agent when the lists were built.
+     */
+    private double[] builtX = new double[0];
+
+    /**
+     * Vertical position of each agent when the lists were built.
+     */
+    private double[] builtY = new double[0];
+
+    /**
+     * Number of agents when the lists were built, minus the ones removed since, or -1 if not yet built.
+     */
+    private int count = -1;
+
+    /**
+     * Pairs of a listing agent and a listed agent, collected while building.
+     */
+    private int[] pairs = new int[0];
+
+    /**
+     * New index of every agent while removing dead agents, or -1 for removed agents.
+     */
+    private int[] newIndex = new int[0];
+
+    /**
+     * Next free slot in every agent's list while distributing the pairs.
+     */
+    private int[] cursor = new int[0];
+
+    /**
+     * Number of times the lists have been built.
+     */
+    private int rebuilds = 0;
+
+    /**
+     * Creates new empty lists.
+     * @param grid Spatial index of the agents, which must be current whenever the lists are rebuilt.
+     * @param radius Largest distance at which agents are neighbours.
+     * @param skin Extra distance listed, which must be larger than the slack of the grid.
+     */
+    NeighbourList(SpatialGrid grid, double radius, double skin) {
+        this.grid = grid;
+        this.skin = skin;
+        listRadius = radius + skin;
+        search = new GridSearch(grid);
+    }
+
+    /**
+     * Rebuilds the lists if agents may have moved too far since they were built.
+     * This must be called at the start of every step, before any agent has moved, with a current grid.
+     * @param agents Agents to list.
+     */
+    void update(Swarm agents) {
+        if (count != agents.size() || 2 * maxDisplacement(agents) + grid.slack > skin) {
+            rebuild(agents);
+        }
+    }
+
+    /**
+     * Removes the dead agents from the lists, following {@link Swarm#removeDead()}, which must be called right
+     * after. Agents keep their order, so the lists stay sorted.
+     * @param agents Agents with the dead ones not yet removed.
+     */
+    void removeDead(Swarm agents) {
+        if (agents.dead.isEmpty() || count != agents.size()) {
+            return;
+        }
+
+        if (newIndex.length < count) {
+            newIndex = new int[count];
+        }
+        int alive = 0;
+        for (int i = 0; i < count; i++) {
+            newIndex[i] = agents.isDead(i) ? -1 : alive++;
+        }
+
+        int end = 0;
+        for (int i = 0; i < count; i++) {
+            int listStart = start[i];
+            int listEnd = start[i + 1];
+            if (newIndex[i] == -1) {
+                continue;
+            }
+
+            start[newIndex[i]] = end;
+            builtX[newIndex[i]] = builtX[i];
+            builtY[newIndex[i]] = builtY[i];
+            for (int k = listStart; k < listEnd; k++) {
+                int neighbour = newIndex[items[k]];
+                if (neighbour != -1) {
+                    items[end++] = neighbour;
+                }
+            }
+        }
+
+        count = alive;
+        start[count] = end;
+    }
+
+    /**
+     * Makes the next {@link #update(Swarm)} rebuild the lists, which is needed when agents change indices other
+     * than by {@link #removeDead(Swarm)}.
+     */
+    void invalidate() {
+        count = -1;
+    }
+
+    /**
+     * Gets the number of times the lists have been built.
+     * @return Number of rebuilds.
+     */
+    int getRebuilds() {
+        return rebuilds;
+    }
+
+    /**
+     * Gets the largest distance an agent has moved since the lists were built.
+     * @param agents Agents that were listed.
+     * @return Largest displacement.
+     */
+    private double maxDisplacement(Swarm agents) {
+        double max = 0;
+        for (int i = 0; i < count; i++) {
+            double dx = agents.x[i] - builtX[i];
+            double dy = agents.y[i] - builtY[i];
+            max = Math.max(max, dx * dx + dy * dy);
+        }
+
+        return Math.sqrt(max);
+    }
+
+    /**
+     * Builds the lists from the current positions.
+     * Every agent scatters itself into the lists of the agents near it in ascending order, so that every list
+     * ends up sorted without merging the grid cells.
+     * @param agents Agents to list.
+     */
+    private void rebuild(Swarm agents) {
+        count = agents.size();
+        rebuilds++;
+
+        if (builtX.length < count) {
+            builtX = new double[count];
+            builtY = new double[count];
+            start = new int[count + 1];
+        }
+        System.arraycopy(agents.x, 0, builtX, 0, count);
+        System.arraycopy(agents.y, 0, builtY, 0, count);
+
+        double radiusSquared = listRadius * listRadius;
+        int pairCount = 0;
+        Arrays.fill(start, 0, count + 1, 0);
+        for (int neighbour = 0; neighbour < count; neighbour++) {
+            double x = agents.x[neighbour];
+            double y = agents.y[neighbour];
+
+            IntList candidates = search.queryUnordered(x, y, listRadius);
+            for (int k = 0; k < candidates.size(); k++) {
+                int agent = candidates.get(k);
+                double dx = agents.x[agent] - x;
+                double dy = agents.y[agent] - y;
+                if (agent != neighbour && dx * dx + dy * dy <= radiusSquared) {
+                    if (pairCount + 2 > pairs.length) {
+                        pairs = Arrays.copyOf(pairs, Math.max(1024, pairs.length * 2));
+                    }
+                    pairs[pairCount++] = agent;
+                    pairs[pairCount++] = neighbour;
+                    start[agent + 1]++;
+                }
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            start[i + 1] += start[i];
+        }
+
+        // Distributing the pairs in the order they were found keeps every list sorted
+        if (items.length < pairCount / 2) {
+            items = new int[Math.max(pairCount / 2, items.length * 2)];
+        }
+        if (cursor.length < count) {
+            cursor = new int[count];
+        }
+        System.arraycopy(start, 0, cursor, 0, count);
+        for (int k = 0; k < pairCount; k += 2) {
+            items[cursor[pairs[k]]++] = pairs[k + 1];
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package se.peterjonsson.flocking;
 
-import javafx.geometry.Pos;
-
 import java.awt.*;
 import java.awt.geom.Ellipse2D;
 
@@ -0,0 +1,148 @@
+package se.peterjonsson.flocking;
+
+/**
+ * A precomputed field over the simulation area that agents sample instead of visiting the obstacles near them,
+ * so avoiding obstacles takes constant time however cluttered the surroundings are.
+ *
+ * The field is a grid of nodes placed {@link #resolution} apart. Each node holds the signed distance from the node
+ * to the surface of the closest obstacle, clamped to the avoidance distance, and the avoidance vector computed by
+ * {@link Agent#obstacleVector(ObstacleIndex, double, double, double[])} at the node. Both are sampled bilinearly
+ * between the four nodes around an agent, and the vector is only used where the distance shows an obstacle within
+ * the avoidance distance. The result is an approximation of the exact avoidance, which gets closer with a finer
+ * resolution. Agents outside of the simulation area sample the closest point on its edge.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class ObstacleField {
+
+    /**
+     * Number of values stored per node: the distance and the two components of the vector.
+     */
+    private static final int VALUES_PER_NODE = 3;
+
+    /**
+     * Signed distance from the surface of an obstacle below which the avoidance vector is used.
+     */
+    private static final double AVOIDANCE_DISTANCE = Agent.OBSTACLE_AVOIDANCE_DISTANCE - Obstacle.RADIUS;
+
+    /**
+     * Distance between two neighbouring nodes, or 0 if the field has not been built.
+     */
+    private double resolution = 0;
+
+    /**
+     * Number of cells between the nodes in each direction. There is one more node than cells.
+     */
+    private int cells = 0;
+
+    /**
+     * Distance, horizontal and vertical vector component of every node, row by row.
+     */
+    private float[] values = null;
+
+    /**
+     * Checks if the field has been built.
+     * @return The field can be sampled.
+     */
+    boolean isBuilt() {
+        return values != null;
+    }
+
+    /**
+     * Gets the distance between two neighbouring nodes.
+     * @return Resolution of the field, or 0 if the field has not been built.
+     */
+    double getResolution() {
+        return resolution;
+    }
+
+    /**
+     * Computes the field from the obstacles of a simulation.
+     * @param obstacles Spatial index of all obstacles, which must have been built.
+     * @param size Horizontal and vertical size of the simulation area.
+     * @param resolution Distance between two neighbouring nodes.
+     */
+    void build(ObstacleIndex obstacles, int size, double resolution) {
+        int cells = Math.max(1, (int) Math.ceil(size / resolution));
+        int nodes = cells + 1;
+        float[] values = new float[nodes * nodes * VALUES_PER_NODE];
+
+        double[] vector = new double[2];
+        for (int row = 0; row < nodes; row++) {
+            double y = row * resolution;
+            for (int column = 0; column < nodes; column++) {
+                double x = column * resolution;
+                int node = (row * nodes + column) * VALUES_PER_NODE;
+
+                Agent.obstacleVector(obstacles, x, y, vector);
+                values[node] = (float) (nearestDistance(obstacles, x, y) - Obstacle.RADIUS);
+                values[node + 1] = (float) vector[0];
+                values[node + 2] = (float) vector[1];
+            }
+        }
+
+        this.resolution = resolution;
+        this.cells = cells;
+        this.values = values;
+    }
+
+    /**
+     * Samples the avoidance vector at a point.
+     * @param x Horizontal coordinate.
+     * @param y Vertical coordinate.
+     * @param vector Array receiving the horizontal and vertical component, which are 0 if no obstacle is near.
+     */
+    void sample(double x, double y, double[] vector) {
+        double gridX = Math.min(cells, Math.max(0, x / resolution));
+        double gridY = Math.min(cells, Math.max(0, y / resolution));
+        int column = Math.min(cells - 1, (int) gridX);
+        int row = Math.min(cells - 1, (int) gridY);
+        double tx = gridX - column;
+        double ty = gridY - row;
+
+        int topLeft = (row * (cells + 1) + column) * VALUES_PER_NODE;
+        int bottomLeft = topLeft + (cells + 1) * VALUES_PER_NODE;
+
+        if (interpolate(topLeft, bottomLeft, tx, ty) >= AVOIDANCE_DISTANCE) {
+            vector[0] = 0;
+            vector[1] = 0;
+            return;
+        }
+
+        vector[0] = interpolate(topLeft + 1, bottomLeft + 1, tx, ty);
+        vector[1] = interpolate(topLeft + 2, bottomLeft + 2, tx, ty);
+    }
+
+    /**
+     * Interpolates a value bilinearly between four nodes.
+     * @param topLeft Index of the value in the top left node. The top right node follows it.
+     * @param bottomLeft Index of the value in the bottom left node. The bottom right node follows it.
+     * @param tx Horizontal position between the left and right nodes, from 0 to 1.
+     * @param ty Vertical position between the top and bottom nodes, from 0 to 1.
+     * @return Interpolated value.
+     */
+    private double interpolate(int topLeft, int bottomLeft, double tx, double ty) {
+        double top = values[topLeft] + (values[topLeft + VALUES_PER_NODE] - values[topLeft]) * tx;
+        double bottom = values[bottomLeft] + (values[bottomLeft + VALUES_PER_NODE] - values[bottomLeft]) * tx;
+        return top + (bottom - top) * ty;
+    }
+
+    /**
+     * Gets the distance from a point to the center of the closest obstacle.
+     * @param obstacles Spatial index of all obstacles.
+     * @param x Horizontal coordinate.
+     * @param y Vertical coordinate.
+     * @return Distance, clamped to the avoidance distance.
+     */
+    private static double nearestDistance(ObstacleIndex obstacles, double x, double y) {
+        double nearest = Agent.OBSTACLE_AVOIDANCE_DISTANCE;
+
+        int cell = obstacles.cell(x, y);
+        for (int i = obstacles.cellStart[cell]; i < obstacles.cellStart[cell + 1]; i++) {
+            int obstacle = obstacles.items[i];
+            nearest = Math.min(nearest, Math.hypot(x - obstacles.x[obstacle], y - obstacles.y[obstacle]));
+        }
+
+        return nearest;
+    }
+}
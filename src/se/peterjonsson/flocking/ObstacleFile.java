@@ -0,0 +1,137 @@
+package se.peterjonsson.flocking;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the obstacles of a simulation from a file, either a list of circles or a bitmap mask.
+ *
+ * A circle list is a text file with the center of one obstacle per line, as a horizontal and a vertical coordinate
+ * separated by whitespace or a comma. Empty lines and lines starting with {@code #} are ignored.
+ * All obstacles have the radius {@link Obstacle#RADIUS}.
+ *
+ * A bitmap mask is an image that is stretched over the simulation area, where dark opaque pixels are blocked.
+ * The mask is rasterized into obstacles placed {@link #MASK_SPACING} apart, at every grid point over a blocked
+ * pixel. The spacing is small enough for the obstacles to overlap, so blocked regions have no gaps.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class ObstacleFile {
+
+    /**
+     * Distance between two neighbouring obstacles rasterized from a bitmap mask.
+     */
+    static final int MASK_SPACING = Obstacle.RADIUS;
+
+    /**
+     * Luminance below which an opaque mask pixel is blocked, from 0 to 255.
+     */
+    private static final int MASK_THRESHOLD = 128;
+
+    /**
+     * Hidden constructor, since this class only has static methods.
+     */
+    private ObstacleFile() {
+    }
+
+    /**
+     * Reads the obstacles from a file. Files ending with {@code .txt} or {@code .csv} are read as circle lists, and
+     * all other files as bitmap masks.
+     * @param path Path of the file.
+     * @param size Horizontal and vertical size of the simulation area.
+     * @return Obstacles in the file.
+     * @throws IOException File could not be read or is not a valid obstacle file.
+     */
+    static List<Obstacle> read(Path path, int size) throws IOException {
+        String name = path.getFileName().toString().toLowerCase();
+        if (name.endsWith(".txt") || name.endsWith(".csv")) {
+            return readCircles(path);
+        }
+
+        return readMask(path, size);
+    }
+
+    /**
+     * Reads the obstacles from a circle list.
+     * @param path Path of the file.
+     * @return Obstacles in the file.
+     * @throws IOException File could not be read or has an invalid line.
+     */
+    static List<Obstacle> readCircles(Path path) throws IOException {
+        List<Obstacle> obstacles = new ArrayList<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String[] values = line.split("[\\s,]+");
+                if (values.length != 2) {
+                    throw new IOException(path + ":" + lineNumber + ": Expected x and y, got \"" + line + "\"");
+                }
+
+                try {
+                    obstacles.add(new Obstacle((int) Math.round(Double.parseDouble(values[0])),
+                            (int) Math.round(Double.parseDouble(values[1]))));
+                } catch (NumberFormatException e) {
+                    throw new IOException(path + ":" + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        }
+
+        return obstacles;
+    }
+
+    /**
+     * Reads the obstacles from a bitmap mask.
+     * @param path Path of the image.
+     * @param size Horizontal and vertical size of the simulation area.
+     * @return Obstacles rasterized from the mask.
+     * @throws IOException Image could not be read.
+     */
+    static List<Obstacle> readMask(Path path, int size) throws IOException {
+        BufferedImage mask = ImageIO.read(path.toFile());
+        if (mask == null) {
+            throw new IOException("Unsupported image format: " + path);
+        }
+
+        List<Obstacle> obstacles = new ArrayList<>();
+        for (int y = MASK_SPACING / 2; y < size; y += MASK_SPACING) {
+            int pixelY = (int) ((long) y * mask.getHeight() / size);
+            for (int x = MASK_SPACING / 2; x < size; x += MASK_SPACING) {
+                int pixelX = (int) ((long) x * mask.getWidth() / size);
+                if (isBlocked(mask.getRGB(pixelX, pixelY))) {
+                    obstacles.add(new Obstacle(x, y));
+                }
+            }
+        }
+
+        return obstacles;
+    }
+
+    /**
+     * Checks if a mask pixel is blocked.
+     * @param argb Color of the pixel.
+     * @return The pixel is dark and opaque.
+     */
+    private static boolean isBlocked(int argb) {
+        int alpha = argb >>> 24;
+        int red = (argb >> 16) & 0xff;
+        int green = (argb >> 8) & 0xff;
+        int blue = argb & 0xff;
+
+        return alpha >= 128 && (red * 299 + green * 587 + blue * 114) / 1000 < MASK_THRESHOLD;
+    }
+}
@@ -0,0 +1,165 @@
+package se.peterjonsson.flocking;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A static grid over the obstacles of a simulation, used for finding the obstacles near an agent without scanning
+ * every obstacle in the simulation.
+ *
+ * Obstacles never move, so the index is built once and every cell lists all obstacles within the query radius of
+ * any point in the cell. A query is then a single cell lookup, and its cost only depends on how cluttered the
+ * surroundings are, not on the total number of obstacles. The obstacles of each cell are in the order of the
+ * obstacle list, so visiting them gives exactly the same result as scanning the whole list.
+ * Points outside of the simulation area are clamped into the outermost cells, which extend to infinity.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class ObstacleIndex {
+
+    /**
+     * Horizontal and vertical size of a single cell, which is also the query radius.
+     */
+    final double cellSize;
+
+    /**
+     * Number of cells in each direction.
+     */
+    final int columns;
+
+    /**
+     * Index of the first obstacle of each cell in {@link #items}.
+     * The obstacles of cell {@code c} are found between {@code cellStart[c]} and {@code cellStart[c + 1]}.
+     */
+    final int[] cellStart;
+
+    /**
+     * Obstacle indices ordered by cell. An obstacle is listed in every cell it can be near.
+     */
+    int[] items = new int[0];
+
+    /**
+     * Horizontal coordinate of each obstacle.
+     */
+    double[] x = new double[0];
+
+    /**
+     * Vertical coordinate of each obstacle.
+     */
+    double[] y = new double[0];
+
+    /**
+     * Creates a new empty index.
+     * @param size Horizontal and vertical size of the covered area.
+     * @param radius Largest distance at which an obstacle is considered near a point.
+     */
+    ObstacleIndex(int size, double radius) {
+        cellSize = radius;
+        columns = Math.max(1, (int) Math.ceil(size / radius));
+        cellStart = new int[columns * columns + 1];
+    }
+
+    /**
+     * Builds the index from a list of obstacles.
+     * This must be done before the index is queried, and again if the list changes.
+     * @param obstacles Obstacles to index.
+     */
+    void build(List<Obstacle> obstacles) {
+        int count = obstacles.size();
+        x = new double[count];
+        y = new double[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = obstacles.get(i).x;
+            y[i] = obstacles.get(i).y;
+        }
+
+        // Count the obstacles of each cell, then fill the cells in obstacle order so that each cell is sorted
+        Arrays.fill(cellStart, 0);
+        for (int i = 0; i < count; i++) {
+            addToCells(i, null);
+        }
+
+        for (int cell = 0; cell < columns * columns; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+
+        items = new int[cellStart[columns * columns]];
+        int[] cellCursor = Arrays.copyOf(cellStart, columns * columns);
+        for (int i = 0; i < count; i++) {
+            addToCells(i, cellCursor);
+        }
+    }
+
+    /**
+     * Gets the cell containing a point. All obstacles within {@link #cellSize} of the point are listed in it.
+     * @param x Horizontal coordinate.
+     * @param y Vertical coordinate.
+     * @return Cell, clamped to the grid.
+     */
+    int cell(double x, double y) {
+        return row(y) * columns + column(x);
+    }
+
+    /**
+     * Adds an obstacle to every cell it is near.
+     * @param obstacle Index of the obstacle.
+     * @param cellCursor Insertion cursor of each cell, or null to only count the obstacle in the cells.
+     */
+    private void addToCells(int obstacle, int[] cellCursor) {
+        double obstacleX = x[obstacle];
+        double obstacleY = y[obstacle];
+        double radiusSquared = cellSize * cellSize;
+
+        for (int row = row(obstacleY - cellSize); row <= row(obstacleY + cellSize); row++) {
+            double dy = distanceToRange(obstacleY, row);
+            for (int column = column(obstacleX - cellSize); column <= column(obstacleX + cellSize); column++) {
+                double dx = distanceToRange(obstacleX, column);
+                if (dx * dx + dy * dy > radiusSquared) {
+                    continue;
+                }
+
+                int cell = row * columns + column;
+                if (cellCursor == null) {
+                    cellStart[cell + 1]++;
+                } else {
+                    items[cellCursor[cell]++] = obstacle;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the distance from a coordinate to the range covered by a row or column of cells.
+     * @param coordinate Horizontal or vertical coordinate.
+     * @param cell Column or row.
+     * @return Distance, which is 0 inside the range.
+     */
+    private double distanceToRange(double coordinate, int cell) {
+        if (cell > 0 && coordinate < cell * cellSize) {
+            return cell * cellSize - coordinate;
+        }
+        if (cell < columns - 1 && coordinate > (cell + 1) * cellSize) {
+            return coordinate - (cell + 1) * cellSize;
+        }
+
+        return 0;
+    }
+
+    /**
+     * Gets the grid column containing a horizontal coordinate.
+     * @param x Horizontal coordinate.
+     * @return Column, clamped to the grid.
+     */
+    private int column(double x) {
+        return Math.min(columns - 1, Math.max(0, (int) Math.floor(x / cellSize)));
+    }
+
+    /**
+     * Gets the grid row containing a vertical coordinate.
+     * @param y Vertical coordinate.
+     * @return Row, clamped to the grid.
+     */
+    private int row(double y) {
+        return Math.min(columns - 1, Math.max(0, (int) Math.floor(y / cellSize)));
+    }
+}
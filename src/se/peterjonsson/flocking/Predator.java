@@ -1,65 +1,91 @@
 package se.peterjonsson.flocking;
 
-import math.geom2d.Vector2D;
-
 import java.awt.*;
 import java.awt.geom.AffineTransform;
-import java.util.Iterator;
-import java.util.List;
-
+import java.util.function.IntPredicate;
+
+/**
+ * Represents the predators of a flocking simulation, hunting {@link Agent} objects.
+ * The state of every predator is stored in a shared {@link Swarm}, and this class applies the predator rules to a
+ * predator by its index. The update allocates no objects.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
 class Predator {
-    private static final boolean FLOCKING = FlockingSimulation.FLOCKING_PREDATORS;
-
     /**
      * Distance the agent moves in one step/update.
      */
-    private static final int SPEED = 6;
+    static final int SPEED = 6;
 
     /**
      * Distance to kill agents from.
      */
-    private static final int KILL_DISTANCE = SPEED;
+    static final int KILL_DISTANCE = SPEED;
+
+    /**
+     * State of all agents in the simulation.
+     */
+    private final Swarm agents;
+
+    /**
+     * State of all predators in the simulation.
+     */
+    private final Swarm predators;
+
+    /**
+     * Search over the spatial index of all agents, used for finding prey.
+     */
+    private final GridSearch search;
+
+    /**
+     * Index of the predator being updated.
+     */
+    private int current;
+
+    /**
+     * Filter accepting agents within the field of view of the {@link #current} predator.
+     */
+    private final IntPredicate visible = this::isInFieldOfView;
 
     /**
-     * List of all agents in the simulation.
+     * Filter accepting agents that are still alive.
      */
-    private final List<Agent> agents;
+    private final IntPredicate alive;
 
     /**
-     * List of all obstacles that should be avoided.
+     * Distance from the edge to the middle of the simulation.
      */
-    private final List<Obstacle> obstacles;
+    private final double center;
 
     /**
-     * List of all predators in the simulation.
+     * Indicates if predators flock together or not.
      */
-    private final List<Predator> predators;
+    private final boolean flocking;
 
     /**
-     * Current agent position.
+     * Horizontal component of the force applied to the predator being updated.
      */
-    private Vector2D position;
+    private double forceX;
 
     /**
-     * Normalized vector of the last force applied to the agent.
-     * Use {@link Vector2D#angle()} to find the actual angle of this force.
+     * Vertical component of the force applied to the predator being updated.
      */
-    private Vector2D direction;
+    private double forceY;
 
     /**
      * The color to use when drawing the predator.
      */
-    private static Color color = Color.RED;
+    static Color color = Color.RED;
 
     /**
      * The x points used for rendering the predator.
      */
-    private static final int[] xPoints = new int[] { 0, 5, 10};
+    static final int[] xPoints = new int[] { 0, 5, 10};
 
     /**
      * The y points used for rendering the predator.
      */
-    private static final int[] yPoints = new int[] { 15, 0, 15 };
+    static final int[] yPoints = new int[] { 15, 0, 15 };
 
     /**
      * Maximum distance to apply alignment force to.
@@ -81,236 +107,260 @@ class Predator {
      */
     private static final int MAX_SEPARATION_DISTANCE = 16;
 
+    /**
+     * Angle in degrees of the cone ahead of the predator in which it sees agents.
+     */
     private static final int FIELD_OF_VIEW_DEGREES = 140;
 
     /**
-     * Creates a new predator.
-     * @param x Horizontal position.
-     * @param y Vertical position.
-     * @param agents List of all agents.
-     * @param obstacles List of all obstacles.
-     * @param predators List of all predators.
+     * Cosine of half the field of view, which the cosine of the angle between the heading and an agent must reach.
+     */
+    private static final double FIELD_OF_VIEW_COS = Math.cos(Math.toRadians(FIELD_OF_VIEW_DEGREES / 2.0));
+
+    /**
+     * Creates the rules for a group of predators.
+     * Each thread updating predators needs its own instance.
+     * @param agents State of all agents.
+     * @param predators State of all predators.
+     * @param grid Spatial index of all agents.
+     * @param config Settings of the simulation.
      */
-    Predator(int x, int y, List<Agent> agents, List<Obstacle> obstacles, List<Predator> predators) {
+    Predator(Swarm agents, Swarm predators, SpatialGrid grid, SimulationConfig config) {
         this.agents = agents;
-        this.obstacles = obstacles;
         this.predators = predators;
+        search = new GridSearch(grid);
+        center = config.size / 2;
+        flocking = config.flockingPredators;
 
-        position = new Vector2D(x, y);
-        direction = new Vector2D(FlockingSimulation.SIZE / 2 - x, FlockingSimulation.SIZE / 2 - y).normalize();
+        alive = index -> !agents.isDead(index);
     }
 
     /**
-     * Updates the predator by stepping forward one step of the simulation.
+     * Updates a predator by stepping forward one step of the simulation.
+     * The new state is written to the {@code next} arrays of the predator swarm.
+     * Agents are not killed until the kill phase, see {@link #findKill(int)}.
+     * @param index Index of the predator.
      */
-    void update() {
-        Vector2D resultant = boidsVector().normalize(); // General boids vector
-
-        if (agents.size() != 0) {
-            double shortestDistance = Double.MAX_VALUE;
-            Iterator<Agent> iterator = agents.iterator();
-            Agent closestAgent = null;
-            while (iterator.hasNext()) {
-                Agent agent = iterator.next();
-                double distance = distanceToAgent(agent);
-
-                Vector2D vToAgent = new Vector2D(agent.getX() - getX(), agent.getY() - getY());
-                double diffAngle = (Math.atan2(vToAgent.y(),vToAgent.x()) - Math.atan2(direction.y(),direction.x()));
-
-                if (diffAngle > Math.PI) {
-                    diffAngle -= Math.PI;
-                }
-
-                boolean validAngle = diffAngle <= Math.toRadians(FIELD_OF_VIEW_DEGREES / 2);
-
-                if (distance < shortestDistance && validAngle) {
-                    shortestDistance = distance;
-                    closestAgent = agent;
-                }
-            }
+    void update(int index) {
+        int closest = findPrey(index);
 
-            if (closestAgent != null) {
-                Vector2D vector = new Vector2D(closestAgent.getX() - getX(), closestAgent.getY() - getY());
-                resultant = resultant.plus(vector.normalize().times(2));
-            }
+        if (closest != -1) {
+            update(index, agents.x[closest], agents.y[closest]);
+        } else {
+            update(index, Double.NaN, Double.NaN);
         }
-
-        resultant = resultant.normalize().times(SPEED); // Normalize
-        position = position.plus(resultant);
-        direction = resultant.normalize();
-
-        killNearbyAgents();
     }
 
     /**
-     * Gets the boids vector created by the three rules:
-     *  1. Separation
-     *  2. Alignment
-     *  3. Cohesion
-     * The vector is not normalized.
-     * @return Boids vector.
+     * Finds the closest agent within the field of view of a predator, which the predator chases.
+     * If several agents are at the same distance, the one with the lowest index is chosen.
+     * @param index Index of the predator.
+     * @return Index of the agent, or -1 if no agent is visible.
      */
-    private Vector2D boidsVector() {
-        Vector2D resultant = direction;
+    int findPrey(int index) {
+        if (agents.size() == 0) {
+            return -1;
+        }
 
-        resultant = resultant.plus(separationVector().times(3));
+        current = index;
+        return search.nearest(predators.x[index], predators.y[index], Double.MAX_VALUE, visible);
+    }
 
-        if (FLOCKING) {
-            resultant = resultant.plus(alignmentVector());
-            resultant = resultant.plus(cohesionVector());
+    /**
+     * Updates a predator chasing an agent that has already been found, for example by {@link #findPrey(int)} in
+     * another process. The new state is written to the {@code next} arrays of the predator swarm.
+     * @param index Index of the predator.
+     * @param preyX Horizontal position of the agent being chased, or NaN if no agent is visible.
+     * @param preyY Vertical position of the agent being chased, or NaN if no agent is visible.
+     */
+    void update(int index, double preyX, double preyY) {
+        final double x = predators.x[index];
+        final double y = predators.y[index];
+
+        applyBoidsForce(index); // General boids vector
+
+        double length = Math.hypot(forceX, forceY);
+        forceX /= length;
+        forceY /= length;
+
+        if (!Double.isNaN(preyX)) {
+            double toAgentX = preyX - x;
+            double toAgentY = preyY - y;
+            double toAgentLength = Math.hypot(toAgentX, toAgentY);
+            forceX += toAgentX / toAgentLength * 2;
+            forceY += toAgentY / toAgentLength * 2;
         }
 
-        double distance = distanceToPoint(FlockingSimulation.SIZE / 2, FlockingSimulation.SIZE / 2);
-        if (distance >= FlockingSimulation.SIZE / 2) {
-            double restraintForce = (distance / (FlockingSimulation.SIZE / 2)) - 1;
-            Vector2D restraintVector = new Vector2D(
-                    FlockingSimulation.SIZE / 2 - getX(),
-                    FlockingSimulation.SIZE / 2 - getY()
-            ).normalize().times(restraintForce);
-            resultant = resultant.plus(restraintVector);
-        }
+        length = Math.hypot(forceX, forceY);
+        double stepX = forceX / length * SPEED;
+        double stepY = forceY / length * SPEED;
 
-        return resultant;
+        predators.nextX[index] = x + stepX;
+        predators.nextY[index] = y + stepY;
+
+        double stepLength = Math.hypot(stepX, stepY);
+        predators.nextDx[index] = stepX / stepLength;
+        predators.nextDy[index] = stepY / stepLength;
     }
 
     /**
-     * Gets a normalized vector pointing toward the middle of the flock.
-     * @return Normalized vector toward flock center.
+     * Sets the force to the boids vector created by the three rules:
+     *  1. Separation - a normalized vector pointing away from predators in close proximity.
+     *  2. Alignment - a normalized vector representing the general direction of nearby predators.
+     *  3. Cohesion - a normalized vector pointing toward the middle of the pack.
+     * All three rules are accumulated in a single pass over the predators, comparing squared distances.
+     * The force is not normalized.
+     * @param index Index of the predator.
      */
-    private Vector2D cohesionVector() {
-        Vector2D cohesion = new Vector2D();
+    private void applyBoidsForce(int index) {
+        final double x = predators.x[index];
+        final double y = predators.y[index];
+
+        double separationX = 0;
+        double separationY = 0;
+
+        // Alignment and cohesion start from new Vector2D(), which is (1, 0)
+        double alignmentX = 1;
+        double alignmentY = 0;
+        double cohesionX = 1;
+        double cohesionY = 0;
+
+        for (int other = 0; other < predators.size(); other++) {
+            if (other == index) {
+                continue;
+            }
+
+            double dx = predators.x[other] - x;
+            double dy = predators.y[other] - y;
+            double distanceSquared = dx * dx + dy * dy;
+
+            if (distanceSquared <= MAX_SEPARATION_DISTANCE * MAX_SEPARATION_DISTANCE) {
+                separationX -= dx;
+                separationY -= dy;
+            }
+
+            if (distanceSquared <= MAX_ALIGNMENT_DISTANCE * MAX_ALIGNMENT_DISTANCE) {
+                alignmentX += predators.dx[other];
+                alignmentY += predators.dy[other];
+            }
 
-        for (Predator predator : predators) {
-            double distance = distanceToPredator(predator);
-            if (predator != this && distance >= MIN_COHESION_DISTANCE && distance <= MAX_COHESION_DISTANCE) {
-                cohesion = cohesion.plus(new Vector2D(predator.getX() - getX(), predator.getY() - getY()));
+            if (distanceSquared >= MIN_COHESION_DISTANCE * MIN_COHESION_DISTANCE
+                    && distanceSquared <= MAX_COHESION_DISTANCE * MAX_COHESION_DISTANCE) {
+                cohesionX += dx;
+                cohesionY += dy;
             }
         }
 
-        if (cohesion.x() != 0 && cohesion.y() != 0) {
-            cohesion = cohesion.normalize();
+        if (separationX != 0 && separationY != 0) {
+            double length = Math.hypot(separationX, separationY);
+            separationX /= length;
+            separationY /= length;
         }
 
-        return cohesion;
-    }
+        forceX = predators.dx[index] + separationX * 3;
+        forceY = predators.dy[index] + separationY * 3;
 
-    /**
-     * Gets a normalized vector representing the general direction of all nearby agents.
-     * @return Normalized vector representing general agent direction.
-     */
-    private Vector2D alignmentVector() {
-        Vector2D generalDirection = new Vector2D();
+        if (flocking) {
+            double alignmentLength = Math.hypot(alignmentX, alignmentY);
+            forceX += alignmentX / alignmentLength;
+            forceY += alignmentY / alignmentLength;
 
-        for (Predator predator : predators) {
-            if (predator != this && distanceToPredator(predator) <= MAX_ALIGNMENT_DISTANCE) {
-                generalDirection = generalDirection.plus(predator.direction);
+            if (cohesionX != 0 && cohesionY != 0) {
+                double cohesionLength = Math.hypot(cohesionX, cohesionY);
+                cohesionX /= cohesionLength;
+                cohesionY /= cohesionLength;
             }
+
+            forceX += cohesionX;
+            forceY += cohesionY;
         }
 
-        return generalDirection.normalize();
+        double distance = Math.sqrt((x - center) * (x - center) + (y - center) * (y - center));
+        if (distance >= center) {
+            double restraintForce = (distance / center) - 1;
+            double toCenterX = center - x;
+            double toCenterY = center - y;
+            double length = Math.hypot(toCenterX, toCenterY);
+            forceX += toCenterX / length * restraintForce;
+            forceY += toCenterY / length * restraintForce;
+        }
     }
 
     /**
-     * Gets a normalized vector pointing away from the the closest agent.
-     * If there is no agent in close proximity, a zero-vector will be returned instead.
-     * @return Normalized vector pointing away from the closest agent.
+     * Gets if an agent is within the field of view of the {@link #current} predator.
+     * The heading of the predator has unit length, so its dot product with the direction to the agent is the
+     * cosine of the angle between them times the distance.
+     * @param agent Index of the agent.
+     * @return Agent is visible.
      */
-    private Vector2D separationVector() {
-        Vector2D separation = new Vector2D(0, 0);
-
-        for (Predator predator : predators) {
-            if (predator != this && distanceToPredator(predator) <= MAX_SEPARATION_DISTANCE) {
-                separation = separation.plus(new Vector2D(getX() - predator.getX(), getY() - predator.getY()));
-            }
-        }
+    private boolean isInFieldOfView(int agent) {
+        double toAgentX = agents.x[agent] - predators.x[current];
+        double toAgentY = agents.y[agent] - predators.y[current];
+        double dot = toAgentX * predators.dx[current] + toAgentY * predators.dy[current];
 
-        if (separation.x() != 0 && separation.y() != 0) {
-            separation = separation.normalize();
-        }
-
-        return separation;
+        return dot >= FIELD_OF_VIEW_COS * Math.sqrt(toAgentX * toAgentX + toAgentY * toAgentY);
     }
 
     /**
-     * Gets the distance to another {@link Agent}.
-     * @param predator Other agent.
-     * @return Distance to the specified agent.
+     * Finds the closest living agent within {@link #KILL_DISTANCE}, without killing it.
+     * This only reads the swarms, so all predators can search at the same time. The kills must then be resolved
+     * in predator index order, since an agent can only be killed once: a predator whose agent was already killed by
+     * a predator with a lower index searches again.
+     * @param index Index of the predator.
+     * @return Index of the agent to kill, or -1 if no agent is within reach.
      */
-    private double distanceToPredator(Predator predator) {
-        return distanceToPoint(predator.getX(), predator.getY());
+    int findKill(int index) {
+        return search.nearest(predators.x[index], predators.y[index], KILL_DISTANCE, alive);
     }
 
     /**
-     * Kills all nearby agents.
+     * Kills the closest agent if it is within {@link #KILL_DISTANCE}.
+     * Predators must kill in index order, one at a time, since an agent can only be killed once.
+     * @param index Index of the predator.
+     * @return Index of the killed agent, or -1 if no agent was killed.
      */
-    private void killNearbyAgents() {
-        Agent closestAgent = null;
-        double distance = Double.MAX_VALUE;
-
-        for (Agent agent : agents) {
-            if (distanceToAgent(agent) < distance && !agent.isDead()) {
-                closestAgent = agent;
-                distance = distanceToAgent(agent);
-            }
-        }
+    int killNearbyAgents(int index) {
+        int closest = findKill(index);
 
-        if (closestAgent != null && distance <= KILL_DISTANCE) {
-            closestAgent.kill();
+        if (closest != -1) {
+            agents.kill(closest);
         }
+
+        return closest;
     }
 
     /**
      * Renders a predator onto a graphics object.
-     * @param position Position of the agent.
+     * @param x Horizontal position of the predator.
+     * @param y Vertical position of the predator.
+     * @param angle Angle of the predator in radians.
      * @param graphics Canvas to render onto.
      */
-    static void render(Position position, Graphics2D graphics) {
+    static void render(double x, double y, double angle, Graphics2D graphics) {
         AffineTransform at = new AffineTransform();
         Dimension size = getTriangleSize();
 
-        int x = (int) Math.round(position.x);
-        int y = (int) Math.round(position.y);
-        double angle = position.angle + Math.PI / 2;
+        int pixelX = (int) Math.round(x);
+        int pixelY = (int) Math.round(y);
+        double rotation = angle + Math.PI / 2;
 
-        at.translate(x - size.width / 2, y - size.height / 2);
-        at.rotate(angle, size.width / 2, size.height / 2);
+        at.translate(pixelX - size.width / 2, pixelY - size.height / 2);
+        at.rotate(rotation, size.width / 2, size.height / 2);
 
-        graphics.setTransform(at);
+        // Applied on top of any existing transform, so that the canvas can be scaled
+        AffineTransform transform = graphics.getTransform();
+        graphics.transform(at);
         graphics.setColor(color);
         graphics.fillPolygon(xPoints, yPoints, 3);
 
-        graphics.setTransform(new AffineTransform());
-    }
-
-    /**
-     * Gets the horizontal position of the predator.
-     * @return Horizontal coordinate.
-     */
-    double getX() {
-        return position.x();
-    }
-
-    /**
-     * Gets the vertical position of the predator.
-     * @return Vertical coordinate.
-     */
-    double getY() {
-        return position.y();
-    }
-
-    /**
-     * Gets the agent's angle in radians.
-     * @return Angle in radians.
-     */
-    double getAngle() {
-        return direction.angle();
+        graphics.setTransform(transform);
     }
 
     /**
      * Gets the size of the triangle used to render the predator.
      * @return Dimensions for rendering a triangle.
      */
-    private static Dimension getTriangleSize() {
+    static Dimension getTriangleSize() {
         int maxX = 0;
         int maxY = 0;
 
@@ -324,23 +374,4 @@ class Predator {
 
         return new Dimension(maxX, maxY);
     }
-
-    /**
-     * Gets the distance to another {@link Agent}.
-     * @param agent Other agent.
-     * @return Distance to the specified agent.
-     */
-    private double distanceToAgent(Agent agent) {
-        return distanceToPoint(agent.getX(), agent.getY());
-    }
-
-    /**
-     * Gets the distance to a point.
-     * @param x Horizontal coordinate.
-     * @param y Vertical coordinate.
-     * @return Distance to the specified point.
-     */
-    private double distanceToPoint(final double x, final double y) {
-        return Math.sqrt(Math.pow(getX() - x, 2) + Math.pow(getY() - y, 2));
-    }
 }
@@ -0,0 +1,430 @@
+package se.peterjonsson.flocking;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Quantized state of a {@link Swarm} as stored in a trajectory file, used for encoding and decoding frames.
+ *
+ * Positions are stored in fixed point with {@link #POSITION_SCALE} steps per unit and angles with
+ * {@link #ANGLE_STEPS} steps per turn. Every entity moves exactly its speed along its new direction in each step,
+ * so a delta only holds the change of angle. The position is predicted from the previous position and the new
+ * angle, and a residual is only stored when the prediction misses the quantized position. This keeps the
+ * decoded position within half a fixed-point step of the real position, however many deltas are applied.
+ *
+ * All values are written as variable-length integers of 7 bits per byte, with signed values zigzag encoded:
+ *  - A keyframe holds, for every entity, the ID minus the previous ID minus one, the position and the angle.
+ *  - A delta holds the number of removed entities and their IDs, as gaps like in a keyframe, followed by the
+ *    angle change of every remaining entity shifted left by one. The lowest bit indicates that a position
+ *    residual follows.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class QuantizedSwarm {
+
+    /**
+     * Number of fixed-point position steps per unit.
+     */
+    static final int POSITION_SCALE = 256;
+
+    /**
+     * Number of angle steps per turn. This must be a power of two.
+     */
+    static final int ANGLE_STEPS = 1 << 14;
+
+    /**
+     * Maximum size in bytes of an encoded entity in a keyframe or delta, including a removal.
+     */
+    static final int MAX_ENTITY_SIZE = 5 * 5;
+
+    /**
+     * Horizontal distance in fixed point moved in a step, for every angle.
+     */
+    private final int[] stepX = new int[ANGLE_STEPS];
+
+    /**
+     * Vertical distance in fixed point moved in a step, for every angle.
+     */
+    private final int[] stepY = new int[ANGLE_STEPS];
+
+    /**
+     * Stable IDs, in ascending order.
+     */
+    private int[] id = new int[0];
+
+    /**
+     * Horizontal fixed-point positions.
+     */
+    private int[] x = new int[0];
+
+    /**
+     * Vertical fixed-point positions.
+     */
+    private int[] y = new int[0];
+
+    /**
+     * Angles in angle steps.
+     */
+    private int[] angle = new int[0];
+
+    /**
+     * Number of entities.
+     */
+    private int size = 0;
+
+    /**
+     * IDs of the entities removed by the delta being decoded.
+     */
+    private int[] removedIds = new int[0];
+
+    /**
+     * Creates a new empty state.
+     * @param speed Distance moved by every entity in a step.
+     */
+    QuantizedSwarm(int speed) {
+        // Strict math gives the same prediction on every machine, which the decoder depends on
+        for (int i = 0; i < ANGLE_STEPS; i++) {
+            double radians = toRadians(i);
+            stepX[i] = (int) Math.round(speed * POSITION_SCALE * StrictMath.cos(radians));
+            stepY[i] = (int) Math.round(speed * POSITION_SCALE * StrictMath.sin(radians));
+        }
+    }
+
+    /**
+     * Gets the number of entities.
+     * @return Number of entities.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets if a swarm can be encoded as a delta from this state, which is when no entities have been added.
+     * @param swarm Swarm to encode.
+     * @return The swarm only differs by moved and removed entities.
+     */
+    boolean canEncodeDelta(Swarm swarm) {
+        int[] order = swarm.idOrder();
+        int previous = 0;
+        for (int i = 0; i < swarm.size(); i++) {
+            int entityId = swarm.id[order[i]];
+            while (previous < size && id[previous] < entityId) {
+                previous++;
+            }
+            if (previous == size || id[previous] != entityId) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Encodes a swarm as a keyframe and makes it the current state.
+     * @param swarm Swarm to encode.
+     * @param out Buffer with room for {@link #MAX_ENTITY_SIZE} bytes per entity.
+     */
+    void encodeKeyframe(Swarm swarm, ByteBuffer out) {
+        ensureCapacity(swarm.size());
+        size = swarm.size();
+
+        int[] order = swarm.idOrder();
+        int previousId = -1;
+        for (int i = 0; i < size; i++) {
+            int entity = order[i];
+            id[i] = swarm.id[entity];
+            x[i] = quantizePosition(swarm.x[entity]);
+            y[i] = quantizePosition(swarm.y[entity]);
+            angle[i] = quantizeAngle(swarm.getAngle(entity));
+
+            putVarint(out, id[i] - previousId - 1);
+            putSignedVarint(out, x[i]);
+            putSignedVarint(out, y[i]);
+            putVarint(out, angle[i]);
+            previousId = id[i];
+        }
+    }
+
+    /**
+     * Encodes a swarm as a delta from this state and makes it the current state.
+     * This requires {@link #canEncodeDelta(Swarm)}.
+     * @param swarm Swarm to encode.
+     * @param out Buffer with room for {@link #MAX_ENTITY_SIZE} bytes per entity of this state.
+     */
+    void encodeDelta(Swarm swarm, ByteBuffer out) {
+        // Removed entities are the IDs missing from the swarm
+        int[] order = swarm.idOrder();
+        putVarint(out, size - swarm.size());
+        int previousId = -1;
+        int next = 0;
+        for (int i = 0; i < size; i++) {
+            if (next < swarm.size() && swarm.id[order[next]] == id[i]) {
+                next++;
+            } else {
+                putVarint(out, id[i] - previousId - 1);
+                previousId = id[i];
+            }
+        }
+
+        size = swarm.size();
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            int entity = order[i];
+            while (id[previous] != swarm.id[entity]) {
+                previous++;
+            }
+
+            int newAngle = quantizeAngle(swarm.getAngle(entity));
+            int angleChange = ((newAngle - angle[previous] + ANGLE_STEPS / 2) & (ANGLE_STEPS - 1))
+                    - ANGLE_STEPS / 2;
+            int residualX = quantizePosition(swarm.x[entity]) - (x[previous] + stepX[newAngle]);
+            int residualY = quantizePosition(swarm.y[entity]) - (y[previous] + stepY[newAngle]);
+            boolean hasResidual = residualX != 0 || residualY != 0;
+
+            putVarint(out, zigzag(angleChange) << 1 | (hasResidual ? 1 : 0));
+            if (hasResidual) {
+                putSignedVarint(out, residualX);
+                putSignedVarint(out, residualY);
+            }
+
+            // Entities only move to lower indices, so overwritten state is never needed again
+            id[i] = swarm.id[entity];
+            x[i] = x[previous] + stepX[newAngle] + residualX;
+            y[i] = y[previous] + stepY[newAngle] + residualY;
+            angle[i] = newAngle;
+        }
+    }
+
+    /**
+     * Decodes a keyframe into the current state.
+     * @param in Buffer positioned at the keyframe.
+     * @param count Number of entities.
+     */
+    void decodeKeyframe(ByteBuffer in, int count) {
+        ensureCapacity(count);
+        size = count;
+
+        int previousId = -1;
+        for (int i = 0; i < size; i++) {
+            id[i] = previousId + 1 + getVarint(in);
+            x[i] = getSignedVarint(in);
+            y[i] = getSignedVarint(in);
+            angle[i] = getVarint(in) & (ANGLE_STEPS - 1);
+            previousId = id[i];
+        }
+    }
+
+    /**
+     * Decodes a delta and applies it to the current state.
+     * @param in Buffer positioned at the delta.
+     * @param count Number of entities after the delta.
+     * @throws IOException The delta does not match the current state.
+     */
+    void decodeDelta(ByteBuffer in, int count) throws IOException {
+        int removed = getVarint(in);
+        if (size - removed != count) {
+            throw new IOException("Corrupt trajectory delta: " + size + " entities minus " + removed
+                    + " removed is not " + count);
+        }
+
+        if (removedIds.length < removed) {
+            removedIds = new int[Math.max(removed, removedIds.length * 2)];
+        }
+        int previousId = -1;
+        for (int i = 0; i < removed; i++) {
+            removedIds[i] = previousId + 1 + getVarint(in);
+            previousId = removedIds[i];
+        }
+
+        // Removed entities are skipped while compacting
+        int nextRemoved = 0;
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (nextRemoved < removed && id[i] == removedIds[nextRemoved]) {
+                nextRemoved++;
+                continue;
+            }
+
+            int value = getVarint(in);
+            int newAngle = (angle[i] + unzigzag(value >>> 1)) & (ANGLE_STEPS - 1);
+            int residualX = 0;
+            int residualY = 0;
+            if ((value & 1) != 0) {
+                residualX = getSignedVarint(in);
+                residualY = getSignedVarint(in);
+            }
+
+            id[kept] = id[i];
+            x[kept] = x[i] + stepX[newAngle] + residualX;
+            y[kept] = y[i] + stepY[newAngle] + residualY;
+            angle[kept] = newAngle;
+            kept++;
+        }
+
+        if (nextRemoved < removed) {
+            throw new IOException("Corrupt trajectory delta: removed entity " + removedIds[nextRemoved]
+                    + " does not exist");
+        }
+        size = kept;
+    }
+
+    /**
+     * Writes the current state, so that encoding can continue from it after a restart.
+     * @param out Output to write to.
+     * @throws IOException State could not be written.
+     */
+    void writeState(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeInt(id[i]);
+            out.writeInt(x[i]);
+            out.writeInt(y[i]);
+            out.writeInt(angle[i]);
+        }
+    }
+
+    /**
+     * Replaces the current state with one written by {@link #writeState(DataOutput)}.
+     * @param in Input to read from.
+     * @throws IOException State could not be read.
+     */
+    void readState(DataInput in) throws IOException {
+        int count = in.readInt();
+        ensureCapacity(count);
+        size = count;
+        for (int i = 0; i < size; i++) {
+            id[i] = in.readInt();
+            x[i] = in.readInt();
+            y[i] = in.readInt();
+            angle[i] = in.readInt();
+        }
+    }
+
+    /**
+     * Takes a snapshot of the positions and angles of all entities.
+     * Fixed-point positions within the size of any simulation are exact in single precision.
+     * @return Snapshot in ID order, holding copies of the state.
+     */
+    SwarmSnapshot toSnapshot() {
+        float[] positionX = new float[size];
+        float[] positionY = new float[size];
+        for (int i = 0; i < size; i++) {
+            positionX[i] = (float) ((double) x[i] / POSITION_SCALE);
+            positionY[i] = (float) ((double) y[i] / POSITION_SCALE);
+        }
+
+        return new SwarmSnapshot(size, positionX, positionY, Arrays.copyOf(angle, size), Arrays.copyOf(id, size));
+    }
+
+    /**
+     * Quantizes a position.
+     * @param position Position in units.
+     * @return Fixed-point position.
+     */
+    static int quantizePosition(double position) {
+        return (int) Math.round(position * POSITION_SCALE);
+    }
+
+    /**
+     * Quantizes an angle.
+     * @param radians Angle in radians.
+     * @return Angle in angle steps, between 0 and {@link #ANGLE_STEPS} exclusive.
+     */
+    static int quantizeAngle(double radians) {
+        return (int) Math.round(radians / (2 * Math.PI) * ANGLE_STEPS) & (ANGLE_STEPS - 1);
+    }
+
+    /**
+     * Converts a quantized angle to radians.
+     * @param steps Angle in angle steps.
+     * @return Angle in radians.
+     */
+    static double toRadians(int steps) {
+        return steps * (2 * Math.PI / ANGLE_STEPS);
+    }
+
+    /**
+     * Writes an unsigned variable-length integer.
+     * @param out Buffer to write to.
+     * @param value Value to write.
+     */
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put((byte) (value & 0x7f | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Writes a signed variable-length integer.
+     * @param out Buffer to write to.
+     * @param value Value to write.
+     */
+    private static void putSignedVarint(ByteBuffer out, int value) {
+        putVarint(out, zigzag(value));
+    }
+
+    /**
+     * Reads an unsigned variable-length integer.
+     * @param in Buffer to read from.
+     * @return Read value.
+     */
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+
+        return value;
+    }
+
+    /**
+     * Reads a signed variable-length integer.
+     * @param in Buffer to read from.
+     * @return Read value.
+     */
+    private static int getSignedVarint(ByteBuffer in) {
+        return unzigzag(getVarint(in));
+    }
+
+    /**
+     * Maps a signed value to an unsigned value, so that values close to zero stay small.
+     * @param value Signed value.
+     * @return Unsigned value.
+     */
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    /**
+     * Reverses {@link #zigzag(int)}.
+     * @param value Unsigned value.
+     * @return Signed value.
+     */
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Makes room for a number of entities.
+     * @param capacity Number of entities.
+     */
+    private void ensureCapacity(int capacity) {
+        if (id.length >= capacity) {
+            return;
+        }
+
+        id = Arrays.copyOf(id, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        angle = Arrays.copyOf(angle, capacity);
+    }
+}
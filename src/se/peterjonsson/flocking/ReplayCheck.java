@@ -0,0 +1,203 @@
+package se.peterjonsson.flocking;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Regression check replaying the default seed and comparing sampled frames against reference values.
+ * This does not depend on JavaFX, so it can be used on headless machines.
+ *
+ * Usage: {@code ReplayCheck [--record FILE]}
+ *
+ * The reference values are read from {@code replay-reference.txt}. Up to the release of the predators they are the
+ * values of the boids rules from before the separation, alignment and cohesion sweeps were fused into a single
+ * pass. After the release they follow the symmetric field of view of the predators, which replaced a test that
+ * accepted agents behind the predator. Every {@link #SAMPLE_INTERVAL} steps, the survivor count and every
+ * {@link #SAMPLE_STRIDE}th agent in ID order are compared, with the positions and angles rounded to single precision
+ * like in the trajectory file. The simulation is chaotic, so any change in the order or the result of the
+ * computations soon moves the agents far beyond the {@link #TOLERANCE}. The check exits with status 1 if any value
+ * differs. With {@code --record} the values of the current rules are written to a file instead, for replacing the
+ * reference after an intended change of behaviour.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+public class ReplayCheck {
+
+    /**
+     * Number of agents to simulate.
+     */
+    private static final int AGENTS = 100;
+
+    /**
+     * Number of steps to simulate, which includes the release of the predators.
+     */
+    private static final int STEPS = FlockingSimulation.DEFAULT_STEPS;
+
+    /**
+     * Number of steps between two sampled frames. The last step is always sampled.
+     */
+    private static final int SAMPLE_INTERVAL = 250;
+
+    /**
+     * Number of agents between two sampled agents, in ID order.
+     */
+    private static final int SAMPLE_STRIDE = 10;
+
+    /**
+     * Largest difference allowed between a sampled value and its reference value.
+     */
+    private static final double TOLERANCE = 1e-3;
+
+    /**
+     * Name of the resource holding the reference values.
+     */
+    private static final String REFERENCE = "replay-reference.txt";
+
+    /**
+     * Called on application start.
+     * @param args Launch arguments.
+     */
+    public static void main(String[] args) {
+        if (args.length != 0 && (args.length != 2 || !args[0].equals("--record"))) {
+            System.err.println("Usage: ReplayCheck [--record FILE]");
+            System.exit(1);
+            return;
+        }
+
+        List<String> samples = replay();
+
+        if (args.length == 2) {
+            try (BufferedWriter out = Files.newBufferedWriter(Paths.get(args[1]), StandardCharsets.UTF_8)) {
+                out.write("# step survivors id x y angle");
+                out.newLine();
+                for (String sample : samples) {
+                    out.write(sample);
+                    out.newLine();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            System.out.printf("Recorded %d samples to %s%n", samples.size(), args[1]);
+            return;
+        }
+
+        List<String> reference;
+        try {
+            reference = readReference();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+            return;
+        }
+
+        int mismatches = 0;
+        for (int i = 0; i < Math.max(samples.size(), reference.size()); i++) {
+            String actual = i < samples.size() ? samples.get(i) : "(missing)";
+            String expected = i < reference.size() ? reference.get(i) : "(missing)";
+            if (!matches(actual, expected)) {
+                if (mismatches < 10) {
+                    System.err.println("Expected " + expected + ", got " + actual);
+                }
+                mismatches++;
+            }
+        }
+
+        if (mismatches > 0) {
+            System.err.printf("%d of %d samples differ from the reference%n", mismatches, reference.size());
+            System.exit(1);
+            return;
+        }
+
+        System.out.printf("All %d samples match the reference%n", reference.size());
+    }
+
+    /**
+     * Simulates the default seed and samples the frames.
+     * @return One line per sampled agent: step, survivor count, ID, horizontal and vertical position and angle.
+     */
+    private static List<String> replay() {
+        SimulationConfig config = new SimulationConfig(AGENTS, STEPS, FlockingSimulation.DEFAULT_SEED,
+                FlockingSimulation.DEFAULT_SIZE, FlockingSimulation.DEFAULT_PREDATOR_RELEASE_STEP,
+                FlockingSimulation.FLOCKING_PREY, FlockingSimulation.FLOCKING_PREDATORS);
+        FlockingSimulation simulation = new FlockingSimulation(config, null);
+
+        List<String> samples = new ArrayList<>();
+        simulation.setFrameListener(frame -> {
+            int step = frame.getNumber();
+            if (step % SAMPLE_INTERVAL != 0 && step != STEPS - 1) {
+                return;
+            }
+
+            SwarmSnapshot agents = frame.getAgents();
+            for (int i = 0; i < agents.size(); i += SAMPLE_STRIDE) {
+                samples.add(String.format(Locale.ROOT, "%d %d %d %.9g %.9g %.9g", step, agents.size(),
+                        agents.id(i), agents.x(i), agents.y(i), agents.angle(i)));
+            }
+        });
+        simulation.run();
+
+        return samples;
+    }
+
+    /**
+     * Reads the reference values, skipping comments.
+     * @return One line per sampled agent, like {@link #replay()}.
+     * @throws IOException Reference could not be read.
+     */
+    private static List<String> readReference() throws IOException {
+        InputStream stream = ReplayCheck.class.getResourceAsStream(REFERENCE);
+        if (stream == null) {
+            throw new IOException("Missing resource " + REFERENCE);
+        }
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+        }
+
+        return lines;
+    }
+
+    /**
+     * Checks if a sample matches its reference value: the step, survivor count and ID exactly, and the position and
+     * angle within the {@link #TOLERANCE}.
+     * @param actual Sampled line.
+     * @param expected Reference line.
+     * @return The sample matches.
+     */
+    private static boolean matches(String actual, String expected) {
+        String[] a = actual.split(" ");
+        String[] e = expected.split(" ");
+        if (a.length != 6 || e.length != 6) {
+            return false;
+        }
+
+        for (int i = 0; i < 3; i++) {
+            if (!a[i].equals(e[i])) {
+                return false;
+            }
+        }
+        for (int i = 3; i < 6; i++) {
+            if (Math.abs(Double.parseDouble(a[i]) - Double.parseDouble(e[i])) > TOLERANCE) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,93 @@
+package se.peterjonsson.flocking;
+
+/**
+ * Settings of a single {@link FlockingSimulation}.
+ * Every simulation has its own settings, so several simulations with different settings can run in one process.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class SimulationConfig {
+
+    /**
+     * Number of agents to simulate.
+     */
+    final int numberOfAgents;
+
+    /**
+     * Number of steps to simulate.
+     */
+    final int steps;
+
+    /**
+     * Seed used for placing agents.
+     */
+    final long seed;
+
+    /**
+     * Horizontal and vertical size of the simulation.
+     */
+    final int size;
+
+    /**
+     * Step at which the predators are released.
+     */
+    final int predatorReleaseStep;
+
+    /**
+     * Indicates if agents flock together or not.
+     */
+    final boolean flockingPrey;
+
+    /**
+     * Indicates if predators flock together or not.
+     */
+    final boolean flockingPredators;
+
+    /**
+     * Creates settings with the default values.
+     * @param numberOfAgents Number of agents to simulate.
+     */
+    SimulationConfig(final int numberOfAgents) {
+        this(numberOfAgents, FlockingSimulation.DEFAULT_STEPS, FlockingSimulation.DEFAULT_SEED,
+                FlockingSimulation.DEFAULT_SIZE, FlockingSimulation.DEFAULT_PREDATOR_RELEASE_STEP,
+                FlockingSimulation.FLOCKING_PREY, FlockingSimulation.FLOCKING_PREDATORS);
+    }
+
+    /**
+     * Creates settings.
+     * @param numberOfAgents Number of agents to simulate.
+     * @param steps Number of steps to simulate.
+     * @param seed Seed used for placing agents.
+     * @param size Horizontal and vertical size of the simulation.
+     * @param predatorReleaseStep Step at which the predators are released.
+     * @param flockingPrey Agents flock together.
+     * @param flockingPredators Predators flock together.
+     */
+    SimulationConfig(final int numberOfAgents, final int steps, final long seed, final int size,
+                     final int predatorReleaseStep, final boolean flockingPrey, final boolean flockingPredators) {
+        this.numberOfAgents = numberOfAgents;
+        this.steps = steps;
+        this.seed = seed;
+        this.size = size;
+        this.predatorReleaseStep = predatorReleaseStep;
+        this.flockingPrey = flockingPrey;
+        this.flockingPredators = flockingPredators;
+    }
+
+    /**
+     * Creates a copy of these settings with a different seed.
+     * @param seed Seed used for placing agents.
+     * @return New settings.
+     */
+    SimulationConfig withSeed(final long seed) {
+        return new SimulationConfig(numberOfAgents, steps, seed, size, predatorReleaseStep, flockingPrey,
+                flockingPredators);
+    }
+
+    @Override
+    public String toString() {
+        return "agents=" + numberOfAgents + " steps=" + steps + " seed=" + seed + " size=" + size
+                + " predatorReleaseStep=" + predatorReleaseStep + " flockingPrey=" + flockingPrey
+                + " flockingPredators=" + flockingPredators;
+    }
+}
@@ -1,10 +1,10 @@
 package se.peterjonsson.flocking;
 
-import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.Label;
 import javafx.scene.control.ProgressBar;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
@@ -17,7 +17,8 @@ import java.net.URISyntaxException;
 
 /**
  * A dialog to show when running a simulation.
- * This will automatically run an attached simulation and show its progress.
+ * This will automatically run an attached simulation and show its progress, throughput and remaining time.
+ * The simulation can be paused, and cancelling it keeps the steps simulated so far.
  */
 class SimulationDialog {
     /**
@@ -36,11 +37,41 @@ class SimulationDialog {
     private final FlockingSimulation simulation;
 
     /**
-     * Creates a new dialog containing a simulation.
+     * Listener called once the simulation has finished or has been cancelled.
+     */
+    private final Runnable finishedListener;
+
+    /**
+     * Task running the simulation.
+     */
+    private SimulationTask task;
+
+    /**
+     * Bar showing the share of simulated steps.
+     */
+    private ProgressBar progressBar;
+
+    /**
+     * Label showing the progress as text.
+     */
+    private Label detailLabel;
+
+    /**
+     * Button pausing and resuming the simulation.
+     */
+    private Button pauseButton;
+
+    /**
+     * Creates a new dialog containing a simulation and queues the simulation on an executor.
+     * This must be called on the JavaFX application thread.
      * @param flockingSimulation Simulation to attach and run.
+     * @param executor Executor running the simulation, which must call its listeners on the JavaFX application
+     *                 thread.
+     * @param finishedListener Listener called once the simulation has finished or has been cancelled.
      */
-    SimulationDialog(FlockingSimulation flockingSimulation) {
+    SimulationDialog(FlockingSimulation flockingSimulation, SimulationExecutor executor, Runnable finishedListener) {
         this.simulation = flockingSimulation;
+        this.finishedListener = finishedListener;
         stage = new Stage();
         stage.setTitle(TITLE);
         stage.initStyle(StageStyle.UTILITY);
@@ -56,11 +87,10 @@ class SimulationDialog {
             return;
         }
 
+        progressBar = (ProgressBar) root.lookup("#progress");
+        detailLabel = (Label) root.lookup("#detailLabel");
+        pauseButton = (Button) root.lookup("#pauseButton");
         Button cancelButton = (Button) root.lookup("#cancelButton");
-        cancelButton.setOnMouseClicked(event -> Platform.exit());
-
-        ProgressBar progressBar = (ProgressBar) root.lookup("#progress");
-        progressBar.progressProperty().bind(simulation.progressProperty);
 
         ImageView iconView = (ImageView) root.lookup("#icon");
         try {
@@ -70,16 +100,45 @@ class SimulationDialog {
             e.printStackTrace();
         }
 
+        task = executor.submit(simulation, this::showProgress);
+
+        pauseButton.setOnAction(event -> {
+            if (simulation.isPaused()) {
+                task.resume();
+            } else {
+                task.pause();
+            }
+        });
+        cancelButton.setOnAction(event -> {
+            cancelButton.setDisable(true);
+            pauseButton.setDisable(true);
+            task.cancel();
+        });
+
+        // Closing the dialog cancels the simulation, and the dialog is closed once it has stopped
+        stage.setOnCloseRequest(event -> {
+            event.consume();
+            cancelButton.fire();
+        });
+
         stage.setScene(new Scene(root));
         stage.show();
         stage.requestFocus();
+    }
+
+    /**
+     * Shows the progress of the simulation, and closes the dialog once the simulation has stopped.
+     * @param progress Progress of the simulation.
+     */
+    private void showProgress(SimulationProgress progress) {
+        progressBar.setProgress(progress.getFraction());
+        detailLabel.setText(progress.toString());
+        pauseButton.setText(progress.state == SimulationTask.State.PAUSED ? "Resume" : "Pause");
 
-        new Thread(() -> {
-            long startTime = System.currentTimeMillis();
-            simulation.run();
-            long totalTime = System.currentTimeMillis() - startTime;
-            System.out.println("Simulation time: " + totalTime / 1000 + " s");
-            Platform.runLater(stage::close);
-        }).start();
+        if (progress.state == SimulationTask.State.FINISHED || progress.state == SimulationTask.State.CANCELLED) {
+            System.out.println(progress);
+            stage.close();
+            finishedListener.run();
+        }
     }
 }
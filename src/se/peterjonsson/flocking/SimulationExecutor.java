@@ -0,0 +1,121 @@
+package se.peterjonsson.flocking;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs simulations on a shared pool with a fixed number of threads.
+ * Simulations submitted while every thread is busy wait in an unbounded queue, so submitting never blocks.
+ *
+ * The progress of every task is sampled {@link #PROGRESS_RATE} times per second by a single timer thread and
+ * handed to the progress listeners through a callback executor, for example {@code Platform::runLater} to
+ * update a user interface, see {@link SimulationTask}.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class SimulationExecutor {
+
+    /**
+     * Number of times per second that the progress of every task is published.
+     */
+    static final int PROGRESS_RATE = 10;
+
+    /**
+     * Threads running the simulations.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Thread publishing the progress of all tasks.
+     */
+    private final ScheduledExecutorService timer;
+
+    /**
+     * Executor that progress listeners are called on.
+     */
+    private final Executor callbackExecutor;
+
+    /**
+     * Tasks that have been submitted but are not yet done.
+     */
+    private final Set<SimulationTask> tasks = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates a new executor.
+     * Its threads are daemon threads, so they do not keep the application running.
+     * @param threads Maximum number of simulations running at the same time.
+     * @param callbackExecutor Executor that progress listeners are called on.
+     */
+    SimulationExecutor(int threads, Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        pool = Executors.newFixedThreadPool(threads, daemonThreads("Simulation"));
+        timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("Simulation progress"));
+        timer.scheduleAtFixedRate(this::publishProgress, 0, 1000 / PROGRESS_RATE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queues a simulation to run once a thread is free.
+     * @param simulation Simulation to run.
+     * @param progressListener Listener receiving the progress on the callback executor. The last progress it
+     *                         receives is in the {@link SimulationTask.State#FINISHED} or
+     *                         {@link SimulationTask.State#CANCELLED} state.
+     * @return Task that can be used for pausing and cancelling the simulation.
+     */
+    SimulationTask submit(FlockingSimulation simulation, Consumer<SimulationProgress> progressListener) {
+        SimulationTask task = new SimulationTask(simulation, progressListener, callbackExecutor);
+        tasks.add(task);
+        pool.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                tasks.remove(task);
+            }
+        });
+
+        return task;
+    }
+
+    /**
+     * Cancels all tasks and stops the executor.
+     * Running simulations stop after their current step.
+     */
+    void shutdown() {
+        for (SimulationTask task : tasks) {
+            task.cancel();
+        }
+
+        pool.shutdown();
+        timer.shutdown();
+    }
+
+    /**
+     * Publishes the progress of every task that is not yet done.
+     */
+    private void publishProgress() {
+        for (SimulationTask task : tasks) {
+            task.publish();
+        }
+    }
+
+    /**
+     * Creates a factory of numbered daemon threads.
+     * @param name Name of the threads.
+     * @return Thread factory.
+     */
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + " " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
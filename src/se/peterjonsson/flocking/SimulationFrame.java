@@ -1,9 +1,6 @@
 package se.peterjonsson.flocking;
 
-import javafx.embed.swing.SwingFXUtils;
-
 import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.util.List;
 
 /**
@@ -11,35 +8,100 @@ import java.util.List;
  */
 class SimulationFrame {
 
+    /**
+     * Size of the full-resolution image relative to the size of the simulation.
+     */
+    static final int IMAGE_SCALE = 2;
+
     private final int number;
-    private final List<Position> agents;
+    private final int size;
+    private final SwarmSnapshot agents;
     private final List<Position> obstacles;
-    private final List<Position> predators;
+    private final SwarmSnapshot predators;
 
     /**
      * Creates a new simulation frame from an existing state.
      * @param number Step number in the simulation.
-     * @param agents List of agents in their state to take a snapshot of.
+     * @param size Horizontal and vertical size of the simulation.
+     * @param agents Snapshot of all agents.
+     * @param obstacles Positions of all obstacles, which never change and are shared by every frame.
+     * @param predators Snapshot of all predators.
      */
-    SimulationFrame(int number, List<Position> agents, List<Position> obstacles, List<Position> predators) {
+    SimulationFrame(int number, int size, SwarmSnapshot agents, List<Position> obstacles, SwarmSnapshot predators) {
         this.number = number;
+        this.size = size;
         this.agents = agents;
         this.obstacles = obstacles;
         this.predators = predators;
     }
 
     /**
-     * Gets the visual image of the current frame.
-     * @return Frame image.
+     * Gets the step number of the frame in the simulation.
+     * @return Step number.
+     */
+    int getNumber() {
+        return number;
+    }
+
+    /**
+     * Gets the horizontal and vertical size of the simulation.
+     * @return Simulation size.
      */
-    javafx.scene.image.Image getImage() {
-        final int e = 2;
-        final BufferedImage image = new BufferedImage(FlockingSimulation.SIZE * e, FlockingSimulation.SIZE * e, BufferedImage.TYPE_INT_RGB);
-        Graphics2D graphics = image.createGraphics();
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the positions of all agents.
+     * @return Agent positions.
+     */
+    SwarmSnapshot getAgents() {
+        return agents;
+    }
 
+    /**
+     * Gets the positions of all obstacles.
+     * @return Obstacle positions.
+     */
+    List<Position> getObstacles() {
+        return obstacles;
+    }
+
+    /**
+     * Gets the positions of all predators.
+     * @return Predator positions.
+     */
+    SwarmSnapshot getPredators() {
+        return predators;
+    }
+
+    /**
+     * Gets the horizontal and vertical size of the full-resolution image of the frame.
+     * @return Image size in pixels.
+     */
+    int getImageSize() {
+        return size * IMAGE_SCALE;
+    }
+
+    /**
+     * Renders the frame onto a canvas of any size.
+     * The full-resolution image is scaled to fit the canvas, so that a canvas of {@link #getImageSize()} pixels
+     * looks exactly like {@link FrameRenderer#toImage(SimulationFrame)}.
+     * @param graphics Canvas to render onto.
+     * @param width Width of the canvas in pixels.
+     * @param height Height of the canvas in pixels.
+     */
+    void render(Graphics2D graphics, int width, int height) {
         // Clear graphics
         graphics.setColor(Color.WHITE);
-        graphics.fillRect(0, 0, FlockingSimulation.SIZE * e, FlockingSimulation.SIZE * e);
+        graphics.fillRect(0, 0, width, height);
+
+        double scale = Math.min((double) width / getImageSize(), (double) height / getImageSize());
+        if (scale != 1) {
+            // Small shapes would disappear when scaled down without antialiasing
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.scale(scale, scale);
+        }
 
         graphics.setColor(Color.BLUE); // Render agents in blue
 
@@ -49,18 +111,14 @@ class SimulationFrame {
         }
 
         // Render all agents.
-        for (Position agent : agents) {
-            Agent.render(agent, graphics);
+        for (int i = 0; i < agents.size(); i++) {
+            Agent.render(agents.x(i), agents.y(i), agents.angle(i), graphics);
         }
 
         // Render all predators.
-        for (Position predator : predators) {
-            Predator.render(predator, graphics);
+        for (int i = 0; i < predators.size(); i++) {
+            Predator.render(predators.x(i), predators.y(i), predators.angle(i), graphics);
         }
-
-        graphics.dispose();
-
-        return SwingFXUtils.toFXImage(image, null);
     }
 
 }
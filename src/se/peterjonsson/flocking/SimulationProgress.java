@@ -0,0 +1,114 @@
+package se.peterjonsson.flocking;
+
+/**
+ * Snapshot of the progress of a {@link SimulationTask}, with estimates of its throughput and remaining time.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class SimulationProgress {
+
+    /**
+     * State of the task.
+     */
+    final SimulationTask.State state;
+
+    /**
+     * Number of steps simulated so far.
+     */
+    final int step;
+
+    /**
+     * Total number of steps to simulate.
+     */
+    final int steps;
+
+    /**
+     * Time spent simulating so far in seconds, excluding time spent paused or queued.
+     */
+    final double elapsedSeconds;
+
+    /**
+     * Estimated number of steps simulated per second, or 0 if not yet known.
+     */
+    final double stepsPerSecond;
+
+    /**
+     * Creates a new progress snapshot.
+     * @param state State of the task.
+     * @param step Number of steps simulated so far.
+     * @param steps Total number of steps to simulate.
+     * @param elapsedSeconds Time spent simulating so far in seconds.
+     * @param stepsPerSecond Estimated number of steps simulated per second.
+     */
+    SimulationProgress(SimulationTask.State state, int step, int steps, double elapsedSeconds,
+                       double stepsPerSecond) {
+        this.state = state;
+        this.step = step;
+        this.steps = steps;
+        this.elapsedSeconds = elapsedSeconds;
+        this.stepsPerSecond = stepsPerSecond;
+    }
+
+    /**
+     * Gets the share of the steps simulated so far.
+     * @return Value between 0 and 1 inclusive.
+     */
+    double getFraction() {
+        return steps > 0 ? (double) step / steps : 1;
+    }
+
+    /**
+     * Gets the estimated time until all steps have been simulated.
+     * @return Remaining time in seconds, 0 once the task is done or NaN if not yet known.
+     */
+    double getRemainingSeconds() {
+        if (state == SimulationTask.State.FINISHED || state == SimulationTask.State.CANCELLED) {
+            return 0;
+        }
+
+        return stepsPerSecond > 0 ? (steps - step) / stepsPerSecond : Double.NaN;
+    }
+
+    /**
+     * Describes the progress for displaying to the user, for example
+     * {@code "Step 1200 of 5000, 85 steps/s, 0:44 remaining"}.
+     * @return Description of the progress.
+     */
+    @Override
+    public String toString() {
+        switch (state) {
+            case QUEUED:
+                return "Waiting for a free simulation thread";
+            case FINISHED:
+                return String.format("Simulated %d steps in %s", step, formatTime(elapsedSeconds));
+            case CANCELLED:
+                return String.format("Cancelled after %d of %d steps", step, steps);
+            default:
+                break;
+        }
+
+        StringBuilder text = new StringBuilder(String.format("Step %d of %d", step, steps));
+        if (state == SimulationTask.State.PAUSED) {
+            text.append(", paused");
+        } else if (stepsPerSecond > 0) {
+            text.append(String.format(", %.0f steps/s, %s remaining", stepsPerSecond,
+                    formatTime(getRemainingSeconds())));
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Formats a duration as minutes and seconds, with hours if needed.
+     * @param seconds Duration in seconds.
+     * @return Formatted duration.
+     */
+    private static String formatTime(double seconds) {
+        long total = Math.round(seconds);
+        if (total >= 3600) {
+            return String.format("%d:%02d:%02d", total / 3600, total / 60 % 60, total % 60);
+        }
+
+        return String.format("%d:%02d", total / 60, total % 60);
+    }
+}
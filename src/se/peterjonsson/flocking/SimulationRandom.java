@@ -0,0 +1,85 @@
+package se.peterjonsson.flocking;
+
+import java.util.Random;
+
+/**
+ * Random number generator whose state can be saved in a checkpoint and restored.
+ * It produces exactly the same numbers as a {@link Random} with the same seed, by using the same linear
+ * congruential generator, but keeps the state in a field that can be read.
+ *
+ * The state of {@link Random#nextGaussian()} is not part of the saved state, so it must not be used.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class SimulationRandom extends Random {
+
+    /**
+     * Version of the serialized form inherited from {@link Random}.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Multiplier of the linear congruential generator.
+     */
+    private static final long MULTIPLIER = 0x5DEECE66DL;
+
+    /**
+     * Increment of the linear congruential generator.
+     */
+    private static final long ADDEND = 0xBL;
+
+    /**
+     * Mask keeping the 48 bits of the state.
+     */
+    private static final long MASK = (1L << 48) - 1;
+
+    /**
+     * Current 48-bit state. This is set by the constructor of {@link Random} through {@link #setSeed(long)}.
+     */
+    private long state;
+
+    /**
+     * Creates a new generator.
+     * @param seed Initial seed.
+     */
+    SimulationRandom(long seed) {
+        super(seed);
+    }
+
+    /**
+     * Resets the generator to a seed.
+     * @param seed Seed to reset to.
+     */
+    @Override
+    public synchronized void setSeed(long seed) {
+        super.setSeed(seed);
+        state = (seed ^ MULTIPLIER) & MASK;
+    }
+
+    /**
+     * Gets the current state of the generator.
+     * @return 48-bit state.
+     */
+    synchronized long getState() {
+        return state;
+    }
+
+    /**
+     * Restores a state returned by {@link #getState()}.
+     * @param state 48-bit state.
+     */
+    synchronized void setState(long state) {
+        this.state = state & MASK;
+    }
+
+    /**
+     * Generates the next random bits.
+     * @param bits Number of random bits.
+     * @return Random bits.
+     */
+    @Override
+    protected synchronized int next(int bits) {
+        state = (state * MULTIPLIER + ADDEND) & MASK;
+        return (int) (state >>> (48 - bits));
+    }
+}
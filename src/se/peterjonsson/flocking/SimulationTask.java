@@ -0,0 +1,227 @@
+package se.peterjonsson.flocking;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * A simulation submitted to a {@link SimulationExecutor}, which can be paused, resumed and cancelled from any
+ * thread. Pausing and cancelling are cooperative and take effect between two steps of the simulation.
+ *
+ * The simulation thread does not report its progress. Instead the executor samples every task at a fixed rate,
+ * and the newest snapshot is handed to the progress listener through the callback executor. If the listener has
+ * not yet received the previous snapshot, that snapshot is replaced, so a slow listener is never flooded.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class SimulationTask {
+
+    /**
+     * State of a task.
+     */
+    enum State {
+        /**
+         * Waiting for a free thread.
+         */
+        QUEUED,
+
+        /**
+         * Simulating.
+         */
+        RUNNING,
+
+        /**
+         * Started, but waiting to be resumed.
+         */
+        PAUSED,
+
+        /**
+         * All steps have been simulated.
+         */
+        FINISHED,
+
+        /**
+         * Stopped before all steps were simulated.
+         */
+        CANCELLED
+    }
+
+    /**
+     * Weight of the newest sample in the smoothed throughput.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Simulation to run.
+     */
+    private final FlockingSimulation simulation;
+
+    /**
+     * Listener receiving the progress.
+     */
+    private final Consumer<SimulationProgress> progressListener;
+
+    /**
+     * Executor that the progress listener is called on.
+     */
+    private final Executor callbackExecutor;
+
+    /**
+     * Newest progress not yet received by the listener, or null if the listener is up to date.
+     */
+    private final AtomicReference<SimulationProgress> pendingProgress = new AtomicReference<>();
+
+    /**
+     * Indicates if the simulation has started or not.
+     */
+    private volatile boolean started = false;
+
+    /**
+     * Indicates if the simulation has returned or not. Guarded by this task.
+     */
+    private boolean stopped = false;
+
+    /**
+     * Indicates if the final progress has been published or not. Guarded by this task.
+     */
+    private boolean done = false;
+
+    /**
+     * Time of the last progress sample in nanoseconds. Guarded by this task.
+     */
+    private long sampleTime = 0;
+
+    /**
+     * Number of simulated steps at the last progress sample. Guarded by this task.
+     */
+    private int sampleStep = 0;
+
+    /**
+     * Time spent simulating up to the last sample in seconds. Guarded by this task.
+     */
+    private double elapsedSeconds = 0;
+
+    /**
+     * Smoothed number of steps simulated per second. Guarded by this task.
+     */
+    private double stepsPerSecond = 0;
+
+    /**
+     * Creates a new task.
+     * @param simulation Simulation to run.
+     * @param progressListener Listener receiving the progress.
+     * @param callbackExecutor Executor that the progress listener is called on.
+     */
+    SimulationTask(FlockingSimulation simulation, Consumer<SimulationProgress> progressListener,
+                   Executor callbackExecutor) {
+        this.simulation = simulation;
+        this.progressListener = progressListener;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Gets the simulation run by the task.
+     * @return Simulation.
+     */
+    FlockingSimulation getSimulation() {
+        return simulation;
+    }
+
+    /**
+     * Pauses the simulation before its next step.
+     * A queued task starts paused.
+     */
+    void pause() {
+        simulation.setPaused(true);
+        publish();
+    }
+
+    /**
+     * Resumes a paused simulation.
+     */
+    void resume() {
+        simulation.setPaused(false);
+        publish();
+    }
+
+    /**
+     * Stops the simulation before its next step. A queued task never starts.
+     */
+    void cancel() {
+        simulation.cancel();
+        publish();
+    }
+
+    /**
+     * Runs the simulation on the calling thread, unless the task has been cancelled, and publishes the final
+     * progress.
+     */
+    void run() {
+        try {
+            if (!simulation.isCancelled()) {
+                synchronized (this) {
+                    sampleTime = System.nanoTime();
+                    started = true;
+                }
+                simulation.run();
+            }
+        } finally {
+            synchronized (this) {
+                stopped = true;
+                publish();
+                done = true;
+            }
+        }
+    }
+
+    /**
+     * Samples the progress of the simulation and hands it to the listener.
+     * This is called by the executor at a fixed rate, and whenever the state of the task changes.
+     */
+    synchronized void publish() {
+        if (done) {
+            return;
+        }
+
+        int step = simulation.getSimulatedSteps();
+        State state = getState();
+
+        if (started) {
+            long now = System.nanoTime();
+            double seconds = (now - sampleTime) / 1e9;
+            sampleTime = now;
+
+            // Time spent paused is not counted, and does not lower the throughput
+            if (step > sampleStep && seconds > 0) {
+                double rate = (step - sampleStep) / seconds;
+                stepsPerSecond = stepsPerSecond == 0 ? rate : SMOOTHING * rate + (1 - SMOOTHING) * stepsPerSecond;
+            }
+            if (state == State.RUNNING || step > sampleStep) {
+                elapsedSeconds += seconds;
+            }
+            sampleStep = step;
+        }
+
+        SimulationProgress progress = new SimulationProgress(state, step, simulation.getSteps(), elapsedSeconds,
+                stepsPerSecond);
+        if (pendingProgress.getAndSet(progress) == null) {
+            callbackExecutor.execute(() -> progressListener.accept(pendingProgress.getAndSet(null)));
+        }
+    }
+
+    /**
+     * Gets the current state of the task.
+     * @return State of the task.
+     */
+    private State getState() {
+        if (stopped) {
+            // A simulation that failed also stops before its last step
+            return simulation.getSimulatedSteps() < simulation.getSteps() ? State.CANCELLED : State.FINISHED;
+        }
+        if (!started) {
+            return State.QUEUED;
+        }
+
+        return simulation.isPaused() ? State.PAUSED : State.RUNNING;
+    }
+}
@@ -0,0 +1,122 @@
+package se.peterjonsson.flocking;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid of square cells covering the simulation area.
+ * Used for finding nearby agents in a {@link Swarm} without scanning every agent in the simulation.
+ *
+ * The grid is rebuilt from the agent positions once per step. Agents keep moving while the step is
+ * in progress, so every query is widened by {@link #slack}, the furthest an agent can move between
+ * two rebuilds. Agents outside of the simulation area are clamped into the outermost cells.
+ * The grid is searched through {@link GridSearch} objects, which can be used from several threads at once.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class SpatialGrid {
+
+    /**
+     * Horizontal and vertical size of a single cell.
+     */
+    final double cellSize;
+
+    /**
+     * Number of cells in each direction.
+     */
+    final int columns;
+
+    /**
+     * Maximum distance an agent may have moved since the last rebuild.
+     */
+    final double slack;
+
+    /**
+     * Index of the first item of each cell in {@link #items}.
+     * The items of cell {@code c} are found between {@code cellStart[c]} and {@code cellStart[c + 1]}.
+     */
+    final int[] cellStart;
+
+    /**
+     * Insertion cursor for each cell, used while rebuilding.
+     */
+    private final int[] cellCursor;
+
+    /**
+     * Agent indices ordered by cell.
+     */
+    int[] items = new int[0];
+
+    /**
+     * Cell of each agent index, used while rebuilding.
+     */
+    private int[] itemCell = new int[0];
+
+    /**
+     * Agents that the grid was last built from.
+     */
+    Swarm agents;
+
+    /**
+     * Creates a new empty grid.
+     * @param size Horizontal and vertical size of the covered area.
+     * @param cellSize Size of a single cell. This should match the largest query radius.
+     * @param slack Maximum distance an agent may move between two rebuilds.
+     */
+    SpatialGrid(int size, double cellSize, double slack) {
+        this.cellSize = cellSize;
+        this.slack = slack;
+
+        columns = Math.max(1, (int) Math.ceil(size / cellSize));
+        cellStart = new int[columns * columns + 1];
+        cellCursor = new int[columns * columns];
+    }
+
+    /**
+     * Rebuilds the grid from the current agent positions.
+     * Agent indices must not change until the next rebuild, so dead agents may not be removed in between.
+     * @param agents Agents to index.
+     */
+    void rebuild(Swarm agents) {
+        this.agents = agents;
+
+        int count = agents.size();
+        if (items.length < count) {
+            items = new int[count];
+            itemCell = new int[count];
+        }
+
+        Arrays.fill(cellStart, 0);
+        for (int i = 0; i < count; i++) {
+            int cell = row(agents.y[i]) * columns + column(agents.x[i]);
+            itemCell[i] = cell;
+            cellStart[cell + 1]++;
+        }
+
+        for (int cell = 0; cell < columns * columns; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+
+        System.arraycopy(cellStart, 0, cellCursor, 0, cellCursor.length);
+        for (int i = 0; i < count; i++) {
+            items[cellCursor[itemCell[i]]++] = i;
+        }
+    }
+
+    /**
+     * Gets the grid column containing a horizontal coordinate.
+     * @param x Horizontal coordinate.
+     * @return Column, clamped to the grid.
+     */
+    int column(double x) {
+        return Math.min(columns - 1, Math.max(0, (int) Math.floor(x / cellSize)));
+    }
+
+    /**
+     * Gets the grid row containing a vertical coordinate.
+     * @param y Vertical coordinate.
+     * @return Row, clamped to the grid.
+     */
+    int row(double y) {
+        return Math.min(columns - 1, Math.max(0, (int) Math.floor(y / cellSize)));
+    }
+}
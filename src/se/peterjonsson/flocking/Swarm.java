@@ -0,0 +1,468 @@
+package se.peterjonsson.flocking;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * State of a group of moving entities, for example all {@link Agent} objects or all {@link Predator} objects.
+ * The state is stored as a structure of primitive arrays, so that updating the simulation allocates no objects.
+ * An entity is identified by its index, which stays the same until {@link #removeDead()} or {@link #reorder(int[])}
+ * is called. Every entity also has a stable ID, given in the order that entities are added, which never changes.
+ * Entities are in ID order unless they have been reordered, and {@link #idOrder()} gives the ID order either way.
+ *
+ * Updates are written to the {@code next} arrays. By default these are the same arrays as the current state,
+ * so an update is immediately visible to later updates in the same step. With double buffering enabled the
+ * {@code next} arrays are separate, every update reads the state from the start of the step, and
+ * {@link #swap()} makes the written state current.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class Swarm {
+
+    /**
+     * Horizontal positions.
+     */
+    double[] x;
+
+    /**
+     * Vertical positions.
+     */
+    double[] y;
+
+    /**
+     * Horizontal components of the normalized direction vectors.
+     */
+    double[] dx;
+
+    /**
+     * Vertical components of the normalized direction vectors.
+     */
+    double[] dy;
+
+    /**
+     * Horizontal positions written by updates.
+     */
+    double[] nextX;
+
+    /**
+     * Vertical positions written by updates.
+     */
+    double[] nextY;
+
+    /**
+     * Horizontal direction components written by updates.
+     */
+    double[] nextDx;
+
+    /**
+     * Vertical direction components written by updates.
+     */
+    double[] nextDy;
+
+    /**
+     * Stable IDs, in ascending order unless the entities have been reordered.
+     */
+    int[] id;
+
+    /**
+     * Indicates if updates are written to separate arrays or not.
+     */
+    private boolean doubleBuffered = false;
+
+    /**
+     * Entities that have been killed but not yet removed.
+     */
+    final BitSet dead = new BitSet();
+
+    /**
+     * Number of entities in the swarm.
+     */
+    private int size;
+
+    /**
+     * ID of the next entity added.
+     */
+    private int nextId = 0;
+
+    /**
+     * Indicates if the entities are in ascending ID order or not.
+     */
+    private boolean inIdOrder = true;
+
+    /**
+     * Entity indices in ascending ID order, valid if {@link #idOrderCurrent} is set.
+     */
+    private int[] idOrder = new int[0];
+
+    /**
+     * Indicates if {@link #idOrder} matches the current entities or not.
+     */
+    private boolean idOrderCurrent = false;
+
+    /**
+     * Index of every ID, or -1 for removed IDs, used while sorting by ID.
+     */
+    private int[] indexOfId = new int[0];
+
+    /**
+     * Array that {@link #reorder(int[])} permutes positions and directions into.
+     */
+    private double[] reorderValues = new double[0];
+
+    /**
+     * Array that {@link #reorder(int[])} permutes IDs into.
+     */
+    private int[] reorderIds = new int[0];
+
+    /**
+     * Creates a new empty swarm.
+     * @param capacity Initial capacity.
+     */
+    Swarm(int capacity) {
+        capacity = Math.max(capacity, 1);
+        x = new double[capacity];
+        y = new double[capacity];
+        dx = new double[capacity];
+        dy = new double[capacity];
+        id = new int[capacity];
+        useCurrentAsNext();
+    }
+
+    /**
+     * Enables or disables double buffering.
+     * @param doubleBuffered Write updates to separate arrays.
+     */
+    void setDoubleBuffered(boolean doubleBuffered) {
+        this.doubleBuffered = doubleBuffered;
+
+        if (doubleBuffered) {
+            allocateNext();
+        } else {
+            useCurrentAsNext();
+        }
+    }
+
+    /**
+     * Makes the state written since the last swap current.
+     * This has no effect unless double buffering is enabled.
+     */
+    void swap() {
+        if (!doubleBuffered) {
+            return;
+        }
+
+        double[] swap = x;
+        x = nextX;
+        nextX = swap;
+
+        swap = y;
+        y = nextY;
+        nextY = swap;
+
+        swap = dx;
+        dx = nextDx;
+        nextDx = swap;
+
+        swap = dy;
+        dy = nextDy;
+        nextDy = swap;
+    }
+
+    /**
+     * Adds an entity with the next ID.
+     * @param x Horizontal position.
+     * @param y Vertical position.
+     * @param dx Horizontal component of the normalized direction.
+     * @param dy Vertical component of the normalized direction.
+     * @return Index of the new entity.
+     */
+    int add(double x, double y, double dx, double dy) {
+        return add(x, y, dx, dy, nextId);
+    }
+
+    /**
+     * Adds an entity with a given ID, for example to hold a part of the entities of another swarm.
+     * IDs that are not added in ascending order make the swarm leave ID order, like {@link #reorder(int[])}.
+     * @param x Horizontal position.
+     * @param y Vertical position.
+     * @param dx Horizontal component of the normalized direction.
+     * @param dy Vertical component of the normalized direction.
+     * @param id Stable ID, which must not already be in the swarm.
+     * @return Index of the new entity.
+     */
+    int add(double x, double y, double dx, double dy, int id) {
+        if (size == this.x.length) {
+            int capacity = size * 2;
+            this.x = Arrays.copyOf(this.x, capacity);
+            this.y = Arrays.copyOf(this.y, capacity);
+            this.dx = Arrays.copyOf(this.dx, capacity);
+            this.dy = Arrays.copyOf(this.dy, capacity);
+            this.id = Arrays.copyOf(this.id, capacity);
+
+            if (doubleBuffered) {
+                allocateNext();
+            } else {
+                useCurrentAsNext();
+            }
+        }
+
+        this.x[size] = x;
+        this.y[size] = y;
+        this.dx[size] = dx;
+        this.dy[size] = dy;
+        this.id[size] = id;
+        if (size > 0 && this.id[size - 1] > id) {
+            inIdOrder = false;
+        }
+        nextId = Math.max(nextId, id + 1);
+        idOrderCurrent = false;
+
+        return size++;
+    }
+
+    /**
+     * Removes all entities, keeping the allocated arrays. The next ID starts from 0 again.
+     */
+    void clear() {
+        size = 0;
+        nextId = 0;
+        dead.clear();
+        inIdOrder = true;
+        idOrderCurrent = false;
+    }
+
+    /**
+     * Gets the number of entities in the swarm.
+     * This includes dead entities that have not yet been removed.
+     * @return Number of entities.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets the angle of an entity's direction.
+     * @param index Entity index.
+     * @return Angle in radians, between 0 and 2 PI.
+     */
+    double getAngle(int index) {
+        return (Math.atan2(dy[index], dx[index]) + 2 * Math.PI) % (2 * Math.PI);
+    }
+
+    /**
+     * Kills an entity.
+     * The entity keeps its index until {@link #removeDead()} is called.
+     * @param index Entity index.
+     */
+    void kill(int index) {
+        dead.set(index);
+    }
+
+    /**
+     * Gets if an entity is dead or not.
+     * @param index Entity index.
+     * @return Entity is dead.
+     */
+    boolean isDead(int index) {
+        return dead.get(index);
+    }
+
+    /**
+     * Removes all dead entities.
+     * The remaining entities keep their relative order, but may be moved to lower indices.
+     */
+    void removeDead() {
+        if (dead.isEmpty()) {
+            return;
+        }
+
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (!dead.get(i)) {
+                x[count] = x[i];
+                y[count] = y[i];
+                dx[count] = dx[i];
+                dy[count] = dy[i];
+                id[count] = id[i];
+                count++;
+            }
+        }
+
+        size = count;
+        dead.clear();
+        idOrderCurrent = false;
+    }
+
+    /**
+     * Moves the entities to new indices, for example to place entities that are close in space close in memory.
+     * Dead entities must have been removed.
+     * @param order Current index of the entity to move to every index, which must hold every index once.
+     */
+    void reorder(int[] order) {
+        if (reorderValues.length < x.length) {
+            reorderValues = new double[x.length];
+            reorderIds = new int[x.length];
+        }
+
+        x = permute(x, order);
+        y = permute(y, order);
+        dx = permute(dx, order);
+        dy = permute(dy, order);
+
+        int[] permutedIds = reorderIds;
+        for (int i = 0; i < size; i++) {
+            permutedIds[i] = id[order[i]];
+        }
+        reorderIds = id;
+        id = permutedIds;
+
+        if (!doubleBuffered) {
+            useCurrentAsNext();
+        }
+        inIdOrder = false;
+        idOrderCurrent = false;
+    }
+
+    /**
+     * Gets if the entities are in ascending ID order, which is until they are reordered.
+     * @return Entity indices are in ID order.
+     */
+    boolean isInIdOrder() {
+        return inIdOrder;
+    }
+
+    /**
+     * Gets the entity indices in ascending ID order, which are the indices themselves unless the entities have been
+     * reordered.
+     * @return Index of the entity with the lowest ID first. The array is valid until entities are added, removed or
+     *         reordered, and may be longer than the number of entities.
+     */
+    int[] idOrder() {
+        if (idOrderCurrent) {
+            return idOrder;
+        }
+
+        if (idOrder.length < x.length) {
+            idOrder = new int[x.length];
+        }
+
+        if (inIdOrder) {
+            for (int i = 0; i < size; i++) {
+                idOrder[i] = i;
+            }
+        } else {
+            // IDs are unique and below the next ID, so they can be sorted by placing every index at its ID
+            if (indexOfId.length < nextId) {
+                indexOfId = new int[Math.max(nextId, indexOfId.length * 2)];
+            }
+            Arrays.fill(indexOfId, 0, nextId, -1);
+            for (int i = 0; i < size; i++) {
+                indexOfId[id[i]] = i;
+            }
+
+            int rank = 0;
+            for (int entityId = 0; entityId < nextId; entityId++) {
+                if (indexOfId[entityId] != -1) {
+                    idOrder[rank++] = indexOfId[entityId];
+                }
+            }
+        }
+
+        idOrderCurrent = true;
+        return idOrder;
+    }
+
+    /**
+     * Writes the state of every entity and the next ID, so that it can be restored exactly.
+     * Dead entities must have been removed.
+     * @param out Output to write to.
+     * @throws IOException State could not be written.
+     */
+    void writeState(DataOutput out) throws IOException {
+        out.writeInt(size);
+        out.writeInt(nextId);
+        for (int i = 0; i < size; i++) {
+            out.writeInt(id[i]);
+            out.writeDouble(x[i]);
+            out.writeDouble(y[i]);
+            out.writeDouble(dx[i]);
+            out.writeDouble(dy[i]);
+        }
+    }
+
+    /**
+     * Replaces the state with one written by {@link #writeState(DataOutput)}.
+     * @param in Input to read from.
+     * @throws IOException State could not be read.
+     */
+    void readState(DataInput in) throws IOException {
+        int count = in.readInt();
+        nextId = in.readInt();
+
+        int capacity = Math.max(count, 1);
+        x = new double[capacity];
+        y = new double[capacity];
+        dx = new double[capacity];
+        dy = new double[capacity];
+        id = new int[capacity];
+        for (int i = 0; i < count; i++) {
+            id[i] = in.readInt();
+            x[i] = in.readDouble();
+            y[i] = in.readDouble();
+            dx[i] = in.readDouble();
+            dy[i] = in.readDouble();
+        }
+
+        size = count;
+        dead.clear();
+        inIdOrder = true;
+        for (int i = 1; i < count; i++) {
+            inIdOrder &= id[i - 1] < id[i];
+        }
+        idOrderCurrent = false;
+        if (doubleBuffered) {
+            allocateNext();
+        } else {
+            useCurrentAsNext();
+        }
+    }
+
+    /**
+     * Permutes the values of every entity, reusing the array of a previous permutation.
+     * @param values Values to permute, which are reused by the next permutation.
+     * @param order Current index of the entity to move to every index.
+     * @return Permuted values.
+     */
+    private double[] permute(double[] values, int[] order) {
+        double[] permuted = reorderValues;
+        for (int i = 0; i < size; i++) {
+            permuted[i] = values[order[i]];
+        }
+
+        reorderValues = values;
+        return permuted;
+    }
+
+    /**
+     * Allocates separate arrays for updates.
+     */
+    private void allocateNext() {
+        nextX = new double[x.length];
+        nextY = new double[y.length];
+        nextDx = new double[dx.length];
+        nextDy = new double[dy.length];
+    }
+
+    /**
+     * Writes updates directly to the current state.
+     */
+    private void useCurrentAsNext() {
+        nextX = x;
+        nextY = y;
+        nextDx = dx;
+        nextDy = dy;
+    }
+}
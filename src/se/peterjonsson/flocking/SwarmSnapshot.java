@@ -0,0 +1,177 @@
+package se.peterjonsson.flocking;
+
+/**
+ * Positions and directions of a group of entities in a {@link SimulationFrame}, in ID order.
+ *
+ * A snapshot is stored as primitive arrays, so taking one copies a few arrays instead of allocating an object per
+ * entity. Positions are rounded to single precision like in the trajectory file. The direction is either the raw
+ * direction vector of a {@link Swarm} or a quantized angle decoded from the trajectory file, and is only turned into
+ * an angle when {@link #angle(int)} is called, which is usually while rendering. Snapshots are never modified, so
+ * they can be shared between threads.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class SwarmSnapshot {
+
+    /**
+     * Snapshot without any entities.
+     */
+    static final SwarmSnapshot EMPTY = new SwarmSnapshot(0, new float[0], new float[0], new double[0], new double[0],
+            new int[0]);
+
+    /**
+     * Number of entities.
+     */
+    private final int size;
+
+    /**
+     * Horizontal positions.
+     */
+    private final float[] x;
+
+    /**
+     * Vertical positions.
+     */
+    private final float[] y;
+
+    /**
+     * Horizontal components of the normalized direction vectors, or null if the directions are quantized angles.
+     */
+    private final double[] dx;
+
+    /**
+     * Vertical components of the normalized direction vectors, or null if the directions are quantized angles.
+     */
+    private final double[] dy;
+
+    /**
+     * Angles in steps of {@link QuantizedSwarm#ANGLE_STEPS} per turn, or null if the directions are vectors.
+     */
+    private final int[] angleSteps;
+
+    /**
+     * Stable IDs, in ascending order.
+     */
+    private final int[] id;
+
+    /**
+     * Creates a snapshot from direction vectors. The arrays are used as they are, without copying them.
+     * @param size Number of entities.
+     * @param x Horizontal positions.
+     * @param y Vertical positions.
+     * @param dx Horizontal components of the normalized directions.
+     * @param dy Vertical components of the normalized directions.
+     * @param id Stable IDs, in ascending order.
+     */
+    SwarmSnapshot(int size, float[] x, float[] y, double[] dx, double[] dy, int[] id) {
+        this.size = size;
+        this.x = x;
+        this.y = y;
+        this.dx = dx;
+        this.dy = dy;
+        this.angleSteps = null;
+        this.id = id;
+    }
+
+    /**
+     * Creates a snapshot from quantized angles. The arrays are used as they are, without copying them.
+     * @param size Number of entities.
+     * @param x Horizontal positions.
+     * @param y Vertical positions.
+     * @param angleSteps Angles in steps of {@link QuantizedSwarm#ANGLE_STEPS} per turn.
+     * @param id Stable IDs, in ascending order.
+     */
+    SwarmSnapshot(int size, float[] x, float[] y, int[] angleSteps, int[] id) {
+        this.size = size;
+        this.x = x;
+        this.y = y;
+        this.dx = null;
+        this.dy = null;
+        this.angleSteps = angleSteps;
+        this.id = id;
+    }
+
+    /**
+     * Takes a snapshot of the current state of a swarm.
+     * @param swarm Swarm to take a snapshot of, without dead entities.
+     * @return Snapshot holding copies of the state.
+     */
+    static SwarmSnapshot of(Swarm swarm) {
+        int size = swarm.size();
+        float[] x = new float[size];
+        float[] y = new float[size];
+        double[] dx = new double[size];
+        double[] dy = new double[size];
+        int[] id = new int[size];
+
+        if (swarm.isInIdOrder()) {
+            for (int i = 0; i < size; i++) {
+                x[i] = (float) swarm.x[i];
+                y[i] = (float) swarm.y[i];
+            }
+            System.arraycopy(swarm.dx, 0, dx, 0, size);
+            System.arraycopy(swarm.dy, 0, dy, 0, size);
+            System.arraycopy(swarm.id, 0, id, 0, size);
+        } else {
+            int[] order = swarm.idOrder();
+            for (int i = 0; i < size; i++) {
+                int entity = order[i];
+                x[i] = (float) swarm.x[entity];
+                y[i] = (float) swarm.y[entity];
+                dx[i] = swarm.dx[entity];
+                dy[i] = swarm.dy[entity];
+                id[i] = swarm.id[entity];
+            }
+        }
+
+        return new SwarmSnapshot(size, x, y, dx, dy, id);
+    }
+
+    /**
+     * Gets the number of entities.
+     * @return Number of entities.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets the horizontal position of an entity.
+     * @param index Entity index, in ID order.
+     * @return Horizontal position.
+     */
+    float x(int index) {
+        return x[index];
+    }
+
+    /**
+     * Gets the vertical position of an entity.
+     * @param index Entity index, in ID order.
+     * @return Vertical position.
+     */
+    float y(int index) {
+        return y[index];
+    }
+
+    /**
+     * Gets the angle of an entity's direction, computed from the stored direction.
+     * @param index Entity index, in ID order.
+     * @return Angle in radians, between 0 and 2 PI. Angles of direction vectors are rounded to single precision.
+     */
+    double angle(int index) {
+        if (angleSteps != null) {
+            return QuantizedSwarm.toRadians(angleSteps[index]);
+        }
+
+        return (float) ((Math.atan2(dy[index], dx[index]) + 2 * Math.PI) % (2 * Math.PI));
+    }
+
+    /**
+     * Gets the stable ID of an entity.
+     * @param index Entity index, in ID order.
+     * @return Stable ID.
+     */
+    int id(int index) {
+        return id[index];
+    }
+}
@@ -0,0 +1,647 @@
+package se.peterjonsson.flocking;
+
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Software rasteriser that renders the full-resolution image of a {@link SimulationFrame} straight into an
+ * ARGB pixel buffer, for exporting frames.
+ *
+ * The image is split into wide tiles. Agents and predators are binned into the tiles that they overlap,
+ * after which every tile is filled independently, and in parallel if a pool is given: the obstacle background
+ * is copied and the triangles of the tile are drawn in their original order. Obstacles never move, so they are
+ * drawn into the background once, with Java2D.
+ *
+ * Triangles are rasterised with the same rules that Java2D uses for non-antialiased fills, so the result is
+ * identical to {@link FrameRenderer#toImage(SimulationFrame)}:
+ *  1. A rotated triangle is filled in fixed point with 1/1024 pixel precision, sampling every pixel at its
+ *     top-left corner.
+ *  2. A triangle that is not rotated at all is moved by a quarter pixel to normalize its coordinates, and
+ *     sampled at pixel centers.
+ *
+ * Java2D clips triangles that cross the edge of the image before filling them, which moves their pixels
+ * slightly. Those triangles are left to Java2D itself: once all tiles are done, the band along the edge of the
+ * image is drawn again on the calling thread, in the original order.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class TileRasterizer {
+
+    /**
+     * Horizontal size of a tile in pixels.
+     * Tiles are wide, so that the background is copied into them in long contiguous rows.
+     */
+    static final int TILE_WIDTH = 512;
+
+    /**
+     * Vertical size of a tile in pixels.
+     */
+    static final int TILE_HEIGHT = 32;
+
+    /**
+     * Number of fractional bits of fixed-point coordinates.
+     */
+    private static final int FIXED_SHIFT = 10;
+
+    /**
+     * A single pixel in fixed-point coordinates.
+     */
+    private static final int FIXED_ONE = 1 << FIXED_SHIFT;
+
+    /**
+     * Offset applied to the coordinates of triangles that are not rotated.
+     */
+    private static final float NORMALIZATION_OFFSET = 0.25f;
+
+    /**
+     * A single pixel in the error term of triangles that are not rotated.
+     */
+    private static final int ERROR_ONE = Integer.MAX_VALUE;
+
+    /**
+     * Distance in pixels from the edge of the image within which triangles are drawn by Java2D.
+     */
+    private static final int EDGE_MARGIN = 2;
+
+    /**
+     * Horizontal and vertical size of the image in pixels.
+     */
+    private final int imageSize;
+
+    /**
+     * Number of tiles along the horizontal side of the image.
+     */
+    private final int columns;
+
+    /**
+     * Number of tiles along the vertical side of the image.
+     */
+    private final int rows;
+
+    /**
+     * Width in pixels of the band along the edge of the image that can be covered by triangles drawn by Java2D.
+     */
+    private final int edgeBand;
+
+    /**
+     * White background with all obstacles, in ARGB.
+     */
+    private final int[] background;
+
+    /**
+     * Pool used for rasterising tiles in parallel, or null if tiles are rasterised on the calling thread.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Transform of the triangle being prepared.
+     */
+    private final AffineTransform transform = new AffineTransform();
+
+    /**
+     * Vertices of the triangle being prepared.
+     */
+    private final float[] points = new float[6];
+
+    /**
+     * Number of triangles in the frame being rendered.
+     */
+    private int count = 0;
+
+    /**
+     * Normalized vertices of every triangle that is not rotated, six coordinates each.
+     */
+    private float[] vertices = new float[0];
+
+    /**
+     * Fixed-point vertices of every rotated triangle, six coordinates each.
+     */
+    private int[] fixedVertices = new int[0];
+
+    /**
+     * Indicates if a triangle is rotated or not.
+     */
+    private boolean[] rotated = new boolean[0];
+
+    /**
+     * Indicates if a triangle is close enough to the edge of the image to be drawn by Java2D.
+     */
+    private boolean[] atEdge = new boolean[0];
+
+    /**
+     * ARGB color of every triangle.
+     */
+    private int[] colors = new int[0];
+
+    /**
+     * Pixel bounds of every triangle as the first column, first row, last column and last row, exclusive.
+     */
+    private int[] bounds = new int[0];
+
+    /**
+     * First index in {@link #tileTriangles} of every tile, followed by the total number of entries.
+     */
+    private final int[] tileStart;
+
+    /**
+     * Triangles overlapping each tile, in drawing order.
+     */
+    private int[] tileTriangles = new int[0];
+
+    /**
+     * Pixel buffer being rendered into.
+     */
+    private int[] target;
+
+    /**
+     * Creates a new rasteriser for frames of a simulation.
+     * Every frame rendered must have the given obstacles.
+     * @param size Horizontal and vertical size of the simulation.
+     * @param obstacles Positions of all obstacles.
+     * @param pool Pool used for rasterising tiles in parallel, or null to rasterise on the calling thread.
+     */
+    TileRasterizer(int size, List<Position> obstacles, ForkJoinPool pool) {
+        this.pool = pool;
+        imageSize = size * SimulationFrame.IMAGE_SCALE;
+        columns = (imageSize + TILE_WIDTH - 1) / TILE_WIDTH;
+        rows = (imageSize + TILE_HEIGHT - 1) / TILE_HEIGHT;
+        tileStart = new int[columns * rows + 1];
+
+        Dimension agentSize = Agent.getTriangleSize();
+        Dimension predatorSize = Predator.getTriangleSize();
+        double extent = Math.max(Math.hypot(agentSize.width, agentSize.height),
+                Math.hypot(predatorSize.width, predatorSize.height));
+        edgeBand = Math.min(imageSize, EDGE_MARGIN + 1 + (int) Math.ceil(extent));
+
+        SimulationFrame empty = new SimulationFrame(0, size, SwarmSnapshot.EMPTY, obstacles, SwarmSnapshot.EMPTY);
+        BufferedImage image = new BufferedImage(imageSize, imageSize, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        empty.render(graphics, imageSize, imageSize);
+        graphics.dispose();
+
+        background = image.getRGB(0, 0, imageSize, imageSize, null, 0, imageSize);
+    }
+
+    /**
+     * Gets the horizontal and vertical size of the rendered images.
+     * @return Image size in pixels.
+     */
+    int getImageSize() {
+        return imageSize;
+    }
+
+    /**
+     * Renders a frame.
+     * @param frame Frame to render.
+     * @param pixels Buffer to render into, or null to allocate a new buffer.
+     * @return Rendered ARGB pixels, row by row.
+     */
+    int[] render(SimulationFrame frame, int[] pixels) {
+        if (pixels == null || pixels.length != imageSize * imageSize) {
+            pixels = new int[imageSize * imageSize];
+        }
+
+        SwarmSnapshot agents = frame.getAgents();
+        SwarmSnapshot predators = frame.getPredators();
+        ensureCapacity(agents.size() + predators.size());
+
+        count = 0;
+        boolean edgeTriangles = false;
+        for (int i = 0; i < agents.size(); i++) {
+            edgeTriangles |= prepare(agents.x(i), agents.y(i), agents.angle(i), Agent.xPoints, Agent.yPoints,
+                    Agent.getTriangleSize(), Agent.color.getRGB());
+        }
+        for (int i = 0; i < predators.size(); i++) {
+            edgeTriangles |= prepare(predators.x(i), predators.y(i), predators.angle(i), Predator.xPoints,
+                    Predator.yPoints, Predator.getTriangleSize(), Predator.color.getRGB());
+        }
+
+        bin();
+
+        target = pixels;
+        if (pool == null) {
+            for (int tile = 0; tile < columns * rows; tile++) {
+                renderTile(tile);
+            }
+        } else {
+            pool.submit(() -> IntStream.range(0, columns * rows).parallel().forEach(this::renderTile)).join();
+        }
+
+        if (edgeTriangles) {
+            renderEdge(agents, predators);
+        }
+        target = null;
+
+        return pixels;
+    }
+
+    /**
+     * Creates an opaque RGB image that shares a pixel buffer of this rasteriser, without copying it.
+     * The alpha channel of the pixels is ignored, so the image can be encoded by writers without alpha support.
+     * @param pixels ARGB pixels of the image size.
+     * @return Image of type {@link BufferedImage#TYPE_INT_RGB} backed by the pixels.
+     */
+    BufferedImage toImage(int[] pixels) {
+        DirectColorModel colorModel = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+        return createImage(pixels, colorModel);
+    }
+
+    /**
+     * Creates an image that shares a pixel buffer, without copying it.
+     * @param pixels Pixels of the image size.
+     * @param colorModel Color model of the image.
+     * @return Image backed by the pixels.
+     */
+    private BufferedImage createImage(int[] pixels, DirectColorModel colorModel) {
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), imageSize,
+                imageSize, imageSize, colorModel.getMasks(), null);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Computes the vertices, color and bounds of a triangle, transformed like {@link Agent#render}.
+     * @param x Horizontal position of the triangle.
+     * @param y Vertical position of the triangle.
+     * @param angle Angle of the triangle in radians.
+     * @param xPoints Horizontal coordinates of the untransformed triangle.
+     * @param yPoints Vertical coordinates of the untransformed triangle.
+     * @param size Size of the untransformed triangle.
+     * @param color ARGB color of the triangle.
+     * @return The triangle is drawn by Java2D.
+     */
+    private boolean prepare(double x, double y, double angle, int[] xPoints, int[] yPoints, Dimension size,
+                            int color) {
+        int pixelX = (int) Math.round(x);
+        int pixelY = (int) Math.round(y);
+        double rotation = angle + Math.PI / 2;
+
+        transform.setToIdentity();
+        transform.translate(pixelX - size.width / 2, pixelY - size.height / 2);
+        transform.rotate(rotation, size.width / 2, size.height / 2);
+
+        for (int i = 0; i < 3; i++) {
+            points[i * 2] = xPoints[i];
+            points[i * 2 + 1] = yPoints[i];
+        }
+        transform.transform(points, 0, points, 0, 3);
+
+        int index = count++;
+        int offset = index * 6;
+        int boundsOffset = index * 4;
+        boolean isRotated = transform.getType() != AffineTransform.TYPE_TRANSLATION;
+
+        float minX = Float.MAX_VALUE;
+        float minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < 6; i += 2) {
+            float vertexX = points[i];
+            float vertexY = points[i + 1];
+            if (isRotated) {
+                fixedVertices[offset + i] = (int) (vertexX * FIXED_ONE);
+                fixedVertices[offset + i + 1] = (int) (vertexY * FIXED_ONE);
+            } else {
+                vertexX += NORMALIZATION_OFFSET;
+                vertexY += NORMALIZATION_OFFSET;
+                vertices[offset + i] = vertexX;
+                vertices[offset + i + 1] = vertexY;
+            }
+
+            minX = Math.min(minX, vertexX);
+            minY = Math.min(minY, vertexY);
+            maxX = Math.max(maxX, vertexX);
+            maxY = Math.max(maxY, vertexY);
+        }
+
+        // Bounds are one pixel larger than needed, the rasterisers clip exactly
+        bounds[boundsOffset] = clamp((int) Math.floor(minX) - 1);
+        bounds[boundsOffset + 1] = clamp((int) Math.floor(minY) - 1);
+        bounds[boundsOffset + 2] = clamp((int) Math.ceil(maxX) + 2);
+        bounds[boundsOffset + 3] = clamp((int) Math.ceil(maxY) + 2);
+
+        boolean isAtEdge = minX < EDGE_MARGIN || minY < EDGE_MARGIN
+                || maxX > imageSize - EDGE_MARGIN || maxY > imageSize - EDGE_MARGIN;
+
+        rotated[index] = isRotated;
+        atEdge[index] = isAtEdge;
+        colors[index] = color;
+
+        return isAtEdge;
+    }
+
+    /**
+     * Sorts all triangles into the tiles that they overlap, keeping their drawing order within each tile.
+     * Triangles at the edge of the image are left out, since they are drawn afterwards.
+     */
+    private void bin() {
+        Arrays.fill(tileStart, 0);
+
+        // Count the triangles of every tile
+        for (int i = 0; i < count; i++) {
+            int offset = i * 4;
+            if (atEdge[i] || bounds[offset] >= bounds[offset + 2] || bounds[offset + 1] >= bounds[offset + 3]) {
+                continue;
+            }
+
+            for (int row = bounds[offset + 1] / TILE_HEIGHT; row <= (bounds[offset + 3] - 1) / TILE_HEIGHT; row++) {
+                for (int column = bounds[offset] / TILE_WIDTH; column <= (bounds[offset + 2] - 1) / TILE_WIDTH;
+                     column++) {
+                    tileStart[row * columns + column + 1]++;
+                }
+            }
+        }
+
+        for (int tile = 0; tile < columns * rows; tile++) {
+            tileStart[tile + 1] += tileStart[tile];
+        }
+
+        if (tileTriangles.length < tileStart[columns * rows]) {
+            tileTriangles = new int[tileStart[columns * rows]];
+        }
+
+        // Fill in triangle order, moving every tile start to the end of the tile in the process
+        for (int i = 0; i < count; i++) {
+            int offset = i * 4;
+            if (atEdge[i] || bounds[offset] >= bounds[offset + 2] || bounds[offset + 1] >= bounds[offset + 3]) {
+                continue;
+            }
+
+            for (int row = bounds[offset + 1] / TILE_HEIGHT; row <= (bounds[offset + 3] - 1) / TILE_HEIGHT; row++) {
+                for (int column = bounds[offset] / TILE_WIDTH; column <= (bounds[offset + 2] - 1) / TILE_WIDTH;
+                     column++) {
+                    tileTriangles[tileStart[row * columns + column]++] = i;
+                }
+            }
+        }
+
+        // Restore the tile starts
+        for (int tile = columns * rows; tile > 0; tile--) {
+            tileStart[tile] = tileStart[tile - 1];
+        }
+        tileStart[0] = 0;
+    }
+
+    /**
+     * Renders a single tile into the {@link #target}.
+     * @param tile Tile index, row by row.
+     */
+    private void renderTile(int tile) {
+        int left = (tile % columns) * TILE_WIDTH;
+        int top = (tile / columns) * TILE_HEIGHT;
+        int right = Math.min(left + TILE_WIDTH, imageSize);
+        int bottom = Math.min(top + TILE_HEIGHT, imageSize);
+
+        for (int row = top; row < bottom; row++) {
+            System.arraycopy(background, row * imageSize + left, target, row * imageSize + left, right - left);
+        }
+
+        for (int i = tileStart[tile]; i < tileStart[tile + 1]; i++) {
+            fillTriangle(tileTriangles[i], left, top, right, bottom);
+        }
+    }
+
+    /**
+     * Draws the band along the edge of the image again, including the triangles at the edge of the image.
+     * Those are drawn by Java2D and all other triangles by this rasteriser, in their original order.
+     * @param agents Positions of all agents.
+     * @param predators Positions of all predators.
+     */
+    private void renderEdge(SwarmSnapshot agents, SwarmSnapshot predators) {
+        int inner = Math.max(edgeBand, imageSize - edgeBand);
+        int[][] strips = new int[][] {
+                { 0, 0, imageSize, edgeBand },
+                { 0, inner, imageSize, imageSize },
+                { 0, edgeBand, edgeBand, inner },
+                { inner, edgeBand, imageSize, inner }
+        };
+
+        for (int[] strip : strips) {
+            for (int row = strip[1]; row < strip[3]; row++) {
+                System.arraycopy(background, row * imageSize + strip[0], target, row * imageSize + strip[0],
+                        strip[2] - strip[0]);
+            }
+        }
+
+        // Drawn in ARGB, so that every pixel stays opaque
+        Graphics2D graphics = createImage(target, (DirectColorModel) ColorModel.getRGBdefault()).createGraphics();
+        for (int i = 0; i < count; i++) {
+            if (atEdge[i]) {
+                if (i < agents.size()) {
+                    Agent.render(agents.x(i), agents.y(i), agents.angle(i), graphics);
+                } else {
+                    int predator = i - agents.size();
+                    Predator.render(predators.x(predator), predators.y(predator), predators.angle(predator),
+                            graphics);
+                }
+                continue;
+            }
+
+            int offset = i * 4;
+            if (bounds[offset] >= edgeBand && bounds[offset + 1] >= edgeBand
+                    && bounds[offset + 2] <= inner && bounds[offset + 3] <= inner) {
+                continue;
+            }
+
+            for (int[] strip : strips) {
+                fillTriangle(i, strip[0], strip[1], strip[2], strip[3]);
+            }
+        }
+        graphics.dispose();
+    }
+
+    /**
+     * Fills the part of a triangle that is inside a rectangle.
+     * @param triangle Triangle index.
+     * @param left First column of the rectangle.
+     * @param top First row of the rectangle.
+     * @param right Last column of the rectangle, exclusive.
+     * @param bottom Last row of the rectangle, exclusive.
+     */
+    private void fillTriangle(int triangle, int left, int top, int right, int bottom) {
+        if (rotated[triangle]) {
+            fillFixedTriangle(triangle, left, top, right, bottom);
+        } else {
+            fillNormalizedTriangle(triangle, left, top, right, bottom);
+        }
+    }
+
+    /**
+     * Fills the part of a rotated triangle that is inside a rectangle.
+     * Pixels are sampled at their top-left corner, and edges include their upper but not their lower end.
+     * @param triangle Triangle index.
+     * @param left First column of the rectangle.
+     * @param top First row of the rectangle.
+     * @param right Last column of the rectangle, exclusive.
+     * @param bottom Last row of the rectangle, exclusive.
+     */
+    private void fillFixedTriangle(int triangle, int left, int top, int right, int bottom) {
+        int offset = triangle * 6;
+        int firstRow = Math.max(top, bounds[triangle * 4 + 1]);
+        int lastRow = Math.min(bottom, bounds[triangle * 4 + 3]);
+
+        for (int row = firstRow; row < lastRow; row++) {
+            long y = (long) row << FIXED_SHIFT;
+            long x0 = 0;
+            long x1 = 0;
+            int crossings = 0;
+
+            for (int edge = 0; edge < 3; edge++) {
+                int start = offset + edge * 2;
+                int end = offset + ((edge + 1) % 3) * 2;
+                long ax = fixedVertices[start];
+                long ay = fixedVertices[start + 1];
+                long bx = fixedVertices[end];
+                long by = fixedVertices[end + 1];
+                if (ay > by) {
+                    long swap = ax;
+                    ax = bx;
+                    bx = swap;
+                    swap = ay;
+                    ay = by;
+                    by = swap;
+                }
+
+                if (y < ay || y >= by) {
+                    continue;
+                }
+
+                // The crossing is stepped from the first row of the edge, like Java2D does
+                long dx = bx - ax;
+                long dy = by - ay;
+                long edgeTop = Math.floorDiv(ay + FIXED_ONE - 1, FIXED_ONE) << FIXED_SHIFT;
+                long x = ax + (edgeTop - ay) * dx / dy + ((y - edgeTop) >> FIXED_SHIFT) * ((dx << FIXED_SHIFT) / dy);
+
+                if (crossings++ == 0) {
+                    x0 = x;
+                } else {
+                    x1 = x;
+                }
+            }
+
+            if (crossings == 2) {
+                int from = (int) Math.floorDiv(Math.min(x0, x1) + FIXED_ONE - 1, FIXED_ONE);
+                int to = (int) Math.floorDiv(Math.max(x0, x1) + FIXED_ONE - 1, FIXED_ONE);
+                fillSpan(row, from, to, left, right, colors[triangle]);
+            }
+        }
+    }
+
+    /**
+     * Fills the part of a triangle that is not rotated and inside a rectangle.
+     * Pixels are sampled at their center, and edges include their upper but not their lower end. Edges are
+     * stepped from their first row in single precision with a 31-bit error term, like Java2D does, since
+     * crossings can fall exactly on a pixel boundary.
+     * @param triangle Triangle index.
+     * @param left First column of the rectangle.
+     * @param top First row of the rectangle.
+     * @param right Last column of the rectangle, exclusive.
+     * @param bottom Last row of the rectangle, exclusive.
+     */
+    private void fillNormalizedTriangle(int triangle, int left, int top, int right, int bottom) {
+        int offset = triangle * 6;
+        int firstRow = Math.max(top, bounds[triangle * 4 + 1]);
+        int lastRow = Math.min(bottom, bounds[triangle * 4 + 3]);
+
+        for (int row = firstRow; row < lastRow; row++) {
+            int x0 = 0;
+            int x1 = 0;
+            int crossings = 0;
+
+            for (int edge = 0; edge < 3; edge++) {
+                int start = offset + edge * 2;
+                int end = offset + ((edge + 1) % 3) * 2;
+                float ax = vertices[start];
+                float ay = vertices[start + 1];
+                float bx = vertices[end];
+                float by = vertices[end + 1];
+                if (ay > by) {
+                    float swap = ax;
+                    ax = bx;
+                    bx = swap;
+                    swap = ay;
+                    ay = by;
+                    by = swap;
+                }
+
+                int edgeTop = (int) Math.ceil(ay - 0.5f);
+                int edgeBottom = (int) Math.ceil(by - 0.5f);
+                if (row < edgeTop || row >= edgeBottom) {
+                    continue;
+                }
+
+                float dx = bx - ax;
+                float dy = by - ay;
+                float slope = dx / dy;
+                float startX = ax + (edgeTop + 0.5f - ay) * dx / dy;
+                int startColumn = (int) Math.ceil(startX - 0.5f);
+                long error = (int) ((startX - (startColumn - 0.5f)) * (double) ERROR_ONE);
+                long errorStep = (int) ((slope - Math.floor(slope)) * (double) ERROR_ONE);
+
+                long rows = row - edgeTop;
+                int x = (int) (startColumn + rows * (long) Math.floor(slope) + ((error + rows * errorStep) >> 31));
+                if (crossings++ == 0) {
+                    x0 = x;
+                } else {
+                    x1 = x;
+                }
+            }
+
+            if (crossings == 2) {
+                fillSpan(row, Math.min(x0, x1), Math.max(x0, x1), left, right, colors[triangle]);
+            }
+        }
+    }
+
+    /**
+     * Fills a horizontal span of pixels, clipped to a rectangle.
+     * @param row Row of the span.
+     * @param from First column of the span.
+     * @param to Last column of the span, exclusive.
+     * @param left First column of the rectangle.
+     * @param right Last column of the rectangle, exclusive.
+     * @param color ARGB color to fill with.
+     */
+    private void fillSpan(int row, int from, int to, int left, int right, int color) {
+        from = Math.max(from, left);
+        to = Math.min(to, right);
+        if (from < to) {
+            Arrays.fill(target, row * imageSize + from, row * imageSize + to, color);
+        }
+    }
+
+    /**
+     * Makes room for a number of triangles.
+     * @param capacity Number of triangles.
+     */
+    private void ensureCapacity(int capacity) {
+        if (colors.length >= capacity) {
+            return;
+        }
+
+        vertices = new float[capacity * 6];
+        fixedVertices = new int[capacity * 6];
+        rotated = new boolean[capacity];
+        atEdge = new boolean[capacity];
+        colors = new int[capacity];
+        bounds = new int[capacity * 4];
+    }
+
+    /**
+     * Clamps a pixel coordinate to the image.
+     * @param coordinate Pixel coordinate.
+     * @return Coordinate between 0 and the image size inclusive.
+     */
+    private int clamp(int coordinate) {
+        return Math.max(0, Math.min(coordinate, imageSize));
+    }
+}
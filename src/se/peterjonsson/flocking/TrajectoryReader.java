@@ -0,0 +1,282 @@
+package se.peterjonsson.flocking;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads frames lazily from a trajectory file created by a {@link TrajectoryWriter}.
+ * Only the frame index is kept in memory. Each requested frame is read into a reusable buffer and decoded on
+ * demand, so memory use does not grow with the number of steps or agents.
+ *
+ * A frame is decoded by applying the deltas from the nearest keyframe before it. The last decoded state is kept,
+ * so reading frames in increasing order only decodes every frame once. Frames can be read from any thread.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class TrajectoryReader implements Closeable {
+
+    /**
+     * Channel of the file being read.
+     */
+    private final FileChannel channel;
+
+    /**
+     * File offset of every frame, followed by the offset of the frame index.
+     */
+    private final long[] frameOffsets;
+
+    /**
+     * Horizontal and vertical size of the simulation.
+     */
+    private final int size;
+
+    /**
+     * Positions of all obstacles, shared by every frame.
+     */
+    private final List<Position> obstacles;
+
+    /**
+     * Frame number of every keyframe, in ascending order.
+     */
+    private final int[] keyframes;
+
+    /**
+     * Decoded state of all agents in the {@link #decodedFrame}.
+     */
+    private final QuantizedSwarm agents;
+
+    /**
+     * Decoded state of all predators in the {@link #decodedFrame}.
+     */
+    private final QuantizedSwarm predators;
+
+    /**
+     * Decompressor of the encoded frames.
+     */
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * Reusable buffer holding the compressed frame being decoded.
+     */
+    private byte[] compressed = new byte[16 * 1024];
+
+    /**
+     * Buffer wrapping {@link #compressed}, for reading frames from the file.
+     */
+    private ByteBuffer frameBuffer = ByteBuffer.wrap(compressed);
+
+    /**
+     * Reusable buffer holding the decompressed frame being decoded.
+     */
+    private ByteBuffer decoded = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * Index of the frame held by {@link #agents} and {@link #predators}, or -1 if no frame has been decoded.
+     */
+    private int decodedFrame = -1;
+
+    /**
+     * Step number of the {@link #decodedFrame}.
+     */
+    private int decodedStep = 0;
+
+    /**
+     * Opens a trajectory file.
+     * @param path Path of the file.
+     * @throws IOException File could not be read or is not a trajectory file.
+     */
+    TrajectoryReader(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            ByteBuffer header = read(0, TrajectoryWriter.HEADER_SIZE);
+            if (header.getInt() != TrajectoryWriter.MAGIC || header.getInt() != TrajectoryWriter.VERSION) {
+                throw new IOException("Not a supported trajectory file: " + path);
+            }
+
+            int frameCount = header.getInt();
+            long indexOffset = header.getLong();
+            size = header.getInt();
+            agents = new QuantizedSwarm(header.getInt());
+            predators = new QuantizedSwarm(header.getInt());
+            int obstacleCount = header.getInt();
+
+            List<Position> obstacleList = new ArrayList<>(obstacleCount);
+            ByteBuffer obstacleBuffer = read(TrajectoryWriter.HEADER_SIZE, obstacleCount * 8);
+            for (int i = 0; i < obstacleCount; i++) {
+                obstacleList.add(new Position(obstacleBuffer.getFloat(), obstacleBuffer.getFloat()));
+            }
+            obstacles = Collections.unmodifiableList(obstacleList);
+
+            frameOffsets = new long[frameCount + 1];
+            ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                    channel.size() - indexOffset);
+            for (int i = 0; i < frameCount; i++) {
+                frameOffsets[i] = index.getLong();
+            }
+            frameOffsets[frameCount] = indexOffset;
+
+            keyframes = new int[index.getInt()];
+            for (int i = 0; i < keyframes.length; i++) {
+                keyframes[i] = index.getInt();
+            }
+            if (frameCount > 0 && (keyframes.length == 0 || keyframes[0] != 0)) {
+                throw new IOException("Trajectory file does not start with a keyframe: " + path);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the number of frames in the file.
+     * @return Number of frames.
+     */
+    int getFrameCount() {
+        return frameOffsets.length - 1;
+    }
+
+    /**
+     * Gets the horizontal and vertical size of the recorded simulation.
+     * @return Simulation size.
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Reads and decodes a single frame.
+     * @param index Frame index.
+     * @return Requested simulation frame.
+     */
+    synchronized SimulationFrame getFrame(int index) {
+        if (index < 0 || index >= getFrameCount()) {
+            throw new IndexOutOfBoundsException("Frame " + index + " of " + getFrameCount());
+        }
+
+        int keyframe = Arrays.binarySearch(keyframes, index);
+        int first = keyframe >= 0 ? index : keyframes[-keyframe - 2];
+
+        // Continue from the last decoded frame if it is on the way
+        if (decodedFrame >= first && decodedFrame <= index) {
+            first = decodedFrame + 1;
+        }
+
+        try {
+            for (int frame = first; frame <= index; frame++) {
+                decodeFrame(frame);
+            }
+        } catch (IOException e) {
+            decodedFrame = -1;
+            throw new UncheckedIOException(e);
+        }
+
+        return new SimulationFrame(decodedStep, size, agents.toSnapshot(), obstacles, predators.toSnapshot());
+    }
+
+    /**
+     * Closes the file.
+     * Frames can not be read after this.
+     * @throws IOException File could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            inflater.end();
+        }
+        channel.close();
+    }
+
+    /**
+     * Decodes a frame on top of the {@link #decodedFrame}, which must be the frame before unless it is a keyframe.
+     * @param index Frame index.
+     * @throws IOException Frame could not be read or is corrupt.
+     */
+    private void decodeFrame(int index) throws IOException {
+        long offset = frameOffsets[index];
+        int length = (int) (frameOffsets[index + 1] - offset);
+        if (compressed.length < length) {
+            compressed = new byte[Math.max(length, compressed.length * 2)];
+            frameBuffer = ByteBuffer.wrap(compressed);
+        }
+
+        ByteBuffer buffer = frameBuffer;
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of trajectory file");
+            }
+        }
+        buffer.flip();
+
+        byte type = buffer.get();
+        int step = buffer.getInt();
+        int agentCount = buffer.getInt();
+        int predatorCount = buffer.getInt();
+        int encodedSize = buffer.getInt();
+
+        // The compressed data follows the frame header in the same buffer
+        int compressedStart = buffer.position();
+        int compressedSize = buffer.remaining();
+
+        // One byte more than needed, so that the end of the compressed data is always reached
+        if (decoded.capacity() <= encodedSize) {
+            decoded = ByteBuffer.allocate(Math.max(encodedSize + 1, decoded.capacity() * 2));
+        }
+
+        inflater.reset();
+        inflater.setInput(compressed, compressedStart, compressedSize);
+        try {
+            if (inflater.inflate(decoded.array(), 0, encodedSize + 1) != encodedSize || !inflater.finished()) {
+                throw new IOException("Corrupt trajectory frame " + index);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt trajectory frame " + index, e);
+        }
+
+        decoded.clear();
+        decoded.limit(encodedSize);
+        if (type == TrajectoryWriter.KEYFRAME) {
+            agents.decodeKeyframe(decoded, agentCount);
+            predators.decodeKeyframe(decoded, predatorCount);
+        } else {
+            agents.decodeDelta(decoded, agentCount);
+            predators.decodeDelta(decoded, predatorCount);
+        }
+
+        decodedFrame = index;
+        decodedStep = step;
+    }
+
+    /**
+     * Reads a region of the file.
+     * @param offset File offset.
+     * @param length Number of bytes.
+     * @return Buffer containing the region.
+     * @throws IOException Region could not be read.
+     */
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of trajectory file");
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+}
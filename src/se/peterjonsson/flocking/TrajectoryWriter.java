@@ -0,0 +1,342 @@
+package se.peterjonsson.flocking;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Streams simulation frames to a compact binary trajectory file while a simulation is running.
+ * Frames are read back by a {@link TrajectoryReader}.
+ *
+ * Every {@link #DEFAULT_KEYFRAME_INTERVAL} frames, and whenever entities have been added, a keyframe holds the
+ * full state of every entity. Other frames only hold the change from the previous frame, see
+ * {@link QuantizedSwarm}. Entities are identified by their stable IDs, so deaths are stored as removals.
+ *
+ * All values are big-endian. The file consists of:
+ *  1. A header: magic number, format version, frame count, index offset, simulation size, agent speed,
+ *     predator speed, obstacle count and the position of every obstacle as float32 x and y. Obstacles never
+ *     move, so they are only stored once.
+ *  2. One record per frame: frame type, step number, agent count, predator count and the size of the encoded
+ *     agents and predators, followed by the encoded agents and predators compressed with deflate.
+ *  3. A frame index holding the file offset of every frame record, followed by the number of keyframes and
+ *     the frame number of every keyframe.
+ *
+ * @author Peter Jonsson <95jonpet@gmail.com>
+ */
+class TrajectoryWriter implements Closeable {
+
+    /**
+     * Magic number identifying a trajectory file.
+     */
+    static final int MAGIC = 0x464c4f4b;
+
+    /**
+     * Current format version.
+     */
+    static final int VERSION = 3;
+
+    /**
+     * File offset of the frame count in the header, directly followed by the index offset.
+     */
+    static final int FRAME_COUNT_OFFSET = 8;
+
+    /**
+     * Size of the header, excluding obstacles.
+     */
+    static final int HEADER_SIZE = 36;
+
+    /**
+     * Size of a frame record header.
+     */
+    static final int FRAME_HEADER_SIZE = 17;
+
+    /**
+     * Frame type of a keyframe.
+     */
+    static final byte KEYFRAME = 0;
+
+    /**
+     * Frame type of a frame holding the change from the previous frame.
+     */
+    static final byte DELTA = 1;
+
+    /**
+     * Default number of frames from one keyframe to the next.
+     */
+    static final int DEFAULT_KEYFRAME_INTERVAL = 32;
+
+    /**
+     * Channel of the file being written.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Number of frames from one keyframe to the next.
+     */
+    private final int keyframeInterval;
+
+    /**
+     * Recorded state of all agents.
+     */
+    private final QuantizedSwarm agents = new QuantizedSwarm(Agent.SPEED);
+
+    /**
+     * Recorded state of all predators.
+     */
+    private final QuantizedSwarm predators = new QuantizedSwarm(Predator.SPEED);
+
+    /**
+     * Compressor of the encoded frames.
+     */
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+    /**
+     * Reusable buffer holding the encoded agents and predators of the frame being written.
+     */
+    private ByteBuffer encoded = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * Reusable buffer holding the frame being written.
+     */
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    /**
+     * File offset of every frame written so far.
+     */
+    private long[] frameOffsets = new long[1024];
+
+    /**
+     * Number of frames written so far.
+     */
+    private int frameCount = 0;
+
+    /**
+     * Frame number of every keyframe written so far.
+     */
+    private int[] keyframes = new int[64];
+
+    /**
+     * Number of keyframes written so far.
+     */
+    private int keyframeCount = 0;
+
+    /**
+     * Creates a new trajectory file with the default keyframe interval, replacing any existing file.
+     * @param path Path of the file.
+     * @param size Horizontal and vertical size of the simulation.
+     * @param obstacles Obstacles of the simulation.
+     * @throws IOException File could not be created.
+     */
+    TrajectoryWriter(Path path, int size, List<Obstacle> obstacles) throws IOException {
+        this(path, size, obstacles, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    /**
+     * Creates a new trajectory file, replacing any existing file.
+     * @param path Path of the file.
+     * @param size Horizontal and vertical size of the simulation.
+     * @param obstacles Obstacles of the simulation.
+     * @param keyframeInterval Number of frames from one keyframe to the next.
+     * @throws IOException File could not be created.
+     */
+    TrajectoryWriter(Path path, int size, List<Obstacle> obstacles, int keyframeInterval) throws IOException {
+        this.keyframeInterval = keyframeInterval;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + obstacles.size() * 8);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(0); // Frame count, written on close
+        header.putLong(0); // Index offset, written on close
+        header.putInt(size);
+        header.putInt(Agent.SPEED);
+        header.putInt(Predator.SPEED);
+        header.putInt(obstacles.size());
+        for (Obstacle obstacle : obstacles) {
+            header.putFloat(obstacle.x);
+            header.putFloat(obstacle.y);
+        }
+
+        header.flip();
+        writeFully(header);
+    }
+
+    /**
+     * Continues a trajectory file from a state written by {@link #writeState(DataOutput)}.
+     * Anything written to the file after the state was taken is discarded, so the file continues exactly as if
+     * it had never been interrupted.
+     * @param path Path of the file.
+     * @param state Input to read the state from.
+     * @throws IOException File could not be opened, or is shorter than when the state was taken.
+     */
+    TrajectoryWriter(Path path, DataInput state) throws IOException {
+        keyframeInterval = state.readInt();
+        long position = state.readLong();
+
+        frameCount = state.readInt();
+        frameOffsets = new long[Math.max(frameCount, 1024)];
+        for (int i = 0; i < frameCount; i++) {
+            frameOffsets[i] = state.readLong();
+        }
+
+        keyframeCount = state.readInt();
+        keyframes = new int[Math.max(keyframeCount, 64)];
+        for (int i = 0; i < keyframeCount; i++) {
+            keyframes[i] = state.readInt();
+        }
+
+        agents.readState(state);
+        predators.readState(state);
+
+        channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        if (channel.size() < position) {
+            channel.close();
+            throw new IOException("Trajectory file is shorter than the checkpoint: " + path);
+        }
+        channel.truncate(position);
+        channel.position(position);
+    }
+
+    /**
+     * Appends a frame to the file.
+     * The swarms must not contain dead entities.
+     * @param step Step number of the frame.
+     * @param agents State of all agents.
+     * @param predators State of all predators.
+     * @throws IOException Frame could not be written.
+     */
+    void writeFrame(int step, Swarm agents, Swarm predators) throws IOException {
+        int entities = agents.size() + predators.size() + this.agents.size() + this.predators.size();
+        int maxSize = 16 + entities * QuantizedSwarm.MAX_ENTITY_SIZE;
+        if (encoded.capacity() < maxSize) {
+            encoded = ByteBuffer.allocate(Math.max(maxSize, encoded.capacity() * 2));
+        }
+
+        boolean keyframe = frameCount % keyframeInterval == 0
+                || !this.agents.canEncodeDelta(agents) || !this.predators.canEncodeDelta(predators);
+
+        encoded.clear();
+        if (keyframe) {
+            this.agents.encodeKeyframe(agents, encoded);
+            this.predators.encodeKeyframe(predators, encoded);
+        } else {
+            this.agents.encodeDelta(agents, encoded);
+            this.predators.encodeDelta(predators, encoded);
+        }
+        int encodedSize = encoded.position();
+
+        // Incompressible data grows by a few bytes per block at most
+        int compressedCapacity = FRAME_HEADER_SIZE + encodedSize + encodedSize / 64 + 64;
+        if (buffer.capacity() < compressedCapacity) {
+            buffer = ByteBuffer.allocate(Math.max(compressedCapacity, buffer.capacity() * 2));
+        }
+
+        if (frameCount == frameOffsets.length) {
+            frameOffsets = Arrays.copyOf(frameOffsets, frameCount * 2);
+        }
+        if (keyframe) {
+            if (keyframeCount == keyframes.length) {
+                keyframes = Arrays.copyOf(keyframes, keyframeCount * 2);
+            }
+            keyframes[keyframeCount++] = frameCount;
+        }
+        frameOffsets[frameCount++] = channel.position();
+
+        buffer.clear();
+        buffer.put(keyframe ? KEYFRAME : DELTA);
+        buffer.putInt(step);
+        buffer.putInt(agents.size());
+        buffer.putInt(predators.size());
+        buffer.putInt(encodedSize);
+
+        deflater.reset();
+        deflater.setInput(encoded.array(), 0, encodedSize);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (!buffer.hasRemaining()) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2).put((ByteBuffer) buffer.flip());
+            }
+            int length = deflater.deflate(buffer.array(), buffer.position(), buffer.remaining());
+            buffer.position(buffer.position() + length);
+        }
+
+        buffer.flip();
+        writeFully(buffer);
+    }
+
+    /**
+     * Writes everything needed for continuing the file after a restart, see
+     * {@link #TrajectoryWriter(Path, DataInput)}.
+     * @param out Output to write to.
+     * @throws IOException State could not be written.
+     */
+    void writeState(DataOutput out) throws IOException {
+        out.writeInt(keyframeInterval);
+        out.writeLong(channel.position());
+
+        out.writeInt(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            out.writeLong(frameOffsets[i]);
+        }
+
+        out.writeInt(keyframeCount);
+        for (int i = 0; i < keyframeCount; i++) {
+            out.writeInt(keyframes[i]);
+        }
+
+        agents.writeState(out);
+        predators.writeState(out);
+    }
+
+    /**
+     * Writes the frame index and completes the header.
+     * @throws IOException File could not be completed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            long indexOffset = channel.position();
+
+            ByteBuffer index = ByteBuffer.allocate(frameCount * 8 + 4 + keyframeCount * 4);
+            for (int i = 0; i < frameCount; i++) {
+                index.putLong(frameOffsets[i]);
+            }
+            index.putInt(keyframeCount);
+            for (int i = 0; i < keyframeCount; i++) {
+                index.putInt(keyframes[i]);
+            }
+            index.flip();
+            writeFully(index);
+
+            ByteBuffer header = ByteBuffer.allocate(12);
+            header.putInt(frameCount);
+            header.putLong(indexOffset);
+            header.flip();
+            channel.position(FRAME_COUNT_OFFSET);
+            writeFully(header);
+        } finally {
+            deflater.end();
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes the remaining content of a buffer at the current channel position.
+     * @param source Buffer to write.
+     * @throws IOException Buffer could not be written.
+     */
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+}